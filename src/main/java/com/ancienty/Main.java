@@ -1,9 +1,11 @@
 package com.ancienty;
 
 import com.ancienty.database.Database;
+import com.ancienty.database.TombstonePurger;
 import com.ancienty.gui.*;
 import com.ancienty.client.ServiceOperationsGUI;
 import com.ancienty.server.ServerMain;
+import com.ancienty.server.model.InvoiceCodecs;
 
 import javax.swing.*;
 import java.awt.*;
@@ -19,6 +21,14 @@ public class Main {
     public static void main(String[] args) {
         // Initialize database
         database = new Database();
+
+        // Remove deleted invoices in the background once nothing has changed for a while
+        new TombstonePurger(database, 200, 10_000, 5_000, () -> true).start();
+
+        // Build the export codecs in the background so the first preview is not slow
+        Thread warmUp = new Thread(InvoiceCodecs::warmUp, "codec-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
         
         // Set look and feel
         try {
@@ -1,5 +1,7 @@
 package com.ancienty.client;
 
+import com.ancienty.server.protocol.FrameCompression;
+
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -26,6 +28,11 @@ public class ServiceOperationsGUI {
     private static final int CLOSE_BUTTON_WIDTH     = 120;
     private static final int CLOSE_BUTTON_HEIGHT    = 35;
 
+    // TCP payloads at least this large are sent deflate-compressed
+    private static final int TCP_COMPRESSION_THRESHOLD = 1024;
+    // Command code of the server's "busy, retry later" reply
+    private static final int TCP_STATUS_BUSY = 31;
+
     private final Runnable returnToMain;
     private final JFrame   frame;
 
@@ -433,12 +440,27 @@ public class ServiceOperationsGUI {
              DataOutputStream output = new DataOutputStream(socket.getOutputStream());
              DataInputStream input   = new DataInputStream(socket.getInputStream())) {
             appendInfo("TCP Query List", "Fatura listesi isteniyor...");
-            sendBinaryTcpMessage(output, 2, 2, "ALL_INVOICES");
-            BinaryTcpResponse response = readBinaryTcpResponse(input);
-            if (response != null) {
-                appendResult("TCP Query List:\nResponse: " + response.content + "\n\n");
-            } else {
-                appendError("TCP Query List", "Sunucudan yanıt alınamadı");
+            // Type 3: streamed list, chunk frames arrive until the end-of-stream frame (type 0)
+            sendBinaryTcpMessage(output, 2, 3, "ALL_INVOICES");
+            boolean first = true;
+            while (true) {
+                BinaryTcpResponse response = readBinaryTcpResponse(input);
+                if (response == null) {
+                    appendError("TCP Query List", "Sunucudan yanıt alınamadı");
+                    return;
+                }
+                if (response.command == TCP_STATUS_BUSY) {
+                    appendError("TCP Query List", response.content);
+                    return;
+                }
+                if (response.type == 0) {
+                    appendSuccess("TCP Query List", "Toplam fatura: " + response.content);
+                    return;
+                }
+                // Rows are shown as each chunk arrives, not after the whole list
+                String rows = response.content.endsWith("\n") ? response.content : response.content + "\n";
+                appendResult((first ? "TCP Query List:\n" : "") + rows);
+                first = false;
             }
         } catch (java.net.ConnectException e) {
             appendError("TCP Query List", "Sunucuya bağlanılamadı. Sunucunun çalıştığından emin olun.");
@@ -452,18 +474,28 @@ public class ServiceOperationsGUI {
     /**
      * Send binary TCP message according to Phase 2 protocol:
      * - 2 bytes: Message Length (command+type+content length)
-     * - 1 byte: Command (1=UploadInvoice, 2=QueryInvoice)
+     * - 1 byte: Command (1=UploadInvoice, 2=QueryInvoice) with compression flags in the high bits
      * - 1 byte: Type (1=XML or series upload/query, 2=JSON or name upload/query)
-     * - Remaining bytes: UTF-8 content
+     * - Remaining bytes: UTF-8 content (deflate-compressed for large payloads)
+     * Every request advertises deflate so the server may compress large responses.
      */
     private void sendBinaryTcpMessage(DataOutputStream output, int command, int type, String content) throws IOException {
         byte[] contentBytes = content.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int originalLength = contentBytes.length;
+        boolean compressed = false;
+        if (contentBytes.length >= TCP_COMPRESSION_THRESHOLD) {
+            byte[] compressedBytes = FrameCompression.compress(FrameCompression.CODEC_DEFLATE, contentBytes, 0, contentBytes.length);
+            if (compressedBytes.length < contentBytes.length) {
+                contentBytes = compressedBytes;
+                compressed = true;
+            }
+        }
         int messageLength = 1 + contentBytes.length;
         appendInfo("TCP Binary Protocol",
-                String.format("Gönderiliyor - Komut: %d, Tür: %d, İçerik uzunluğu: %d",
-                        command, type, contentBytes.length));
+                String.format("Gönderiliyor - Komut: %d, Tür: %d, İçerik uzunluğu: %d (gönderilen: %d)",
+                        command, type, originalLength, contentBytes.length));
         output.writeShort(messageLength);
-        output.writeByte(command);
+        output.writeByte(FrameCompression.commandByte(command, FrameCompression.CODEC_DEFLATE, compressed));
         output.writeByte(type);
         output.write(contentBytes);
         output.flush();
@@ -475,7 +507,8 @@ public class ServiceOperationsGUI {
     private BinaryTcpResponse readBinaryTcpResponse(DataInputStream input) throws IOException {
         try {
             int messageLength = input.readUnsignedShort();
-            int command       = input.readUnsignedByte();
+            int commandByte   = input.readUnsignedByte();
+            int command       = FrameCompression.command(commandByte);
             int type          = input.readUnsignedByte();
             int contentLength = messageLength - 1;
             if (contentLength < 0) {
@@ -484,6 +517,12 @@ public class ServiceOperationsGUI {
             }
             byte[] contentBytes = new byte[contentLength];
             input.readFully(contentBytes);
+            if (FrameCompression.isCompressed(commandByte)) {
+                int codec = FrameCompression.codec(commandByte);
+                byte[] uncompressed = new byte[FrameCompression.uncompressedLength(contentBytes, 0, contentBytes.length)];
+                FrameCompression.decompress(codec, contentBytes, 0, contentBytes.length, uncompressed);
+                contentBytes = uncompressed;
+            }
             String content = new String(contentBytes, java.nio.charset.StandardCharsets.UTF_8);
             appendInfo("TCP Binary Protocol",
                     String.format("Alındı - Komut: %d, Tür: %d, Yanıt: %s", command, type, content));
@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Phase 1 Database implementation with direct access.
@@ -35,9 +38,14 @@ public class Database {
                     "  customerId INTEGER NOT NULL," +
                     "  discount DOUBLE NOT NULL," +
                     "  totalBefore DOUBLE NOT NULL," +
-                    "  totalAfter DOUBLE NOT NULL" +
+                    "  totalAfter DOUBLE NOT NULL," +
+                    "  deleted INTEGER NOT NULL DEFAULT 0" + // tombstone, see deleteInvoice
                     ");";
 
+    // Lets the purger find tombstones without scanning live invoices
+    protected static final String TOMBSTONE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS idx_invoice_tombstones ON invoice(id) WHERE deleted = 1;";
+
     private static final String INVOICE_ITEMS_TABLE_SQL =
             "CREATE TABLE IF NOT EXISTS invoiceItems (" +
                     "  invoiceId INTEGER NOT NULL, " +
@@ -46,9 +54,26 @@ public class Database {
                     "  lineTotal DOUBLE NOT NULL" +
                     ");";
 
+    // Keys per multi-get statement: two parameters each, below SQLite's classic 999-variable limit
+    private static final int MULTI_GET_CHUNK = 400;
+
+    // Operations passed to recordInvoiceChange
+    public static final String CHANGE_INSERT = "INSERT";
+    public static final String CHANGE_DELETE = "DELETE";
+
     private Connection connection;
     private final String databasePath;
 
+    // Advances on every committed invoice insert or delete made through this instance.
+    // The epoch tells versions of different server runs apart.
+    private final long versionEpoch = System.currentTimeMillis();
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    private final List<InvoiceChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    // Transaction state belongs to the shared connection, so writers take turns
+    private final ReentrantLock transactionLock = new ReentrantLock();
+
     public Database() {
         this("upload_system.db"); // Default client database
     }
@@ -80,6 +105,8 @@ public class Database {
             connection = DriverManager.getConnection(url);
             if (!exists) {
                 createTables(connection);
+            } else {
+                upgradeTables(connection);
             }
         } catch (SQLException e) {
             System.err.println("Error connecting to DB: " + e.getMessage());
@@ -92,10 +119,141 @@ public class Database {
             s.execute(ITEMS_TABLE_SQL);
             s.execute(INVOICE_TABLE_SQL);
             s.execute(INVOICE_ITEMS_TABLE_SQL);
+            s.execute(TOMBSTONE_INDEX_SQL);
             System.out.println("Database tables created");
         }
     }
 
+    /**
+     * Called instead of {@link #createTables(Connection)} when the database
+     * file already exists, to add tables and indexes introduced since it was
+     * created. Runs from the constructor; implementations must be idempotent
+     * and must not rely on subclass fields.
+     */
+    protected void upgradeTables(Connection conn) throws SQLException {
+        if (!hasColumn(conn, "invoice", "deleted")) {
+            try (Statement s = conn.createStatement()) {
+                s.execute("ALTER TABLE invoice ADD COLUMN deleted INTEGER NOT NULL DEFAULT 0");
+            }
+        }
+        try (Statement s = conn.createStatement()) {
+            s.execute(TOMBSTONE_INDEX_SQL);
+        }
+    }
+
+    protected static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try (Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called inside the transaction of every invoice insert, after the invoice
+     * row is written, and every delete, before the row is removed, so that
+     * subclasses can record the change in the same commit. Does nothing by
+     * default.
+     *
+     * @param operation {@link #CHANGE_INSERT} or {@link #CHANGE_DELETE}
+     */
+    protected void recordInvoiceChange(String operation, int invoiceId) throws SQLException {
+    }
+
+    // ──────────────────────────────── TRANSACTIONS ────────────────────────────────
+
+    /**
+     * Starts a write transaction on the shared connection. Every thread that
+     * writes (request handlers, background writers) must go through this pair:
+     * toggling auto-commit from one thread would otherwise commit or end the
+     * open transaction of another. Always pair with {@link #endTransaction()}
+     * in a finally block. Readers do not take part.
+     */
+    protected void beginTransaction() throws SQLException {
+        transactionLock.lock();
+        if (transactionLock.getHoldCount() == 1) {
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * Restores auto-commit and lets the next writer in. Anything not committed
+     * by then must have been rolled back by the caller.
+     */
+    protected void endTransaction() {
+        try {
+            if (transactionLock.getHoldCount() == 1) {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ignore) {
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    // ──────────────────────────────── DATA VERSION ────────────────────────────────
+
+    /**
+     * Current data version, e.g. for ETags. Only changes made through this
+     * instance are counted.
+     */
+    public long getDataVersion() {
+        return dataVersion.get();
+    }
+
+    /**
+     * Data version prefixed with the epoch of this instance, unique across restarts.
+     */
+    public String getDataVersionTag() {
+        return Long.toString(versionEpoch, 36) + "-" + dataVersion.get();
+    }
+
+    /**
+     * Called after a committed change to the invoice tables.
+     */
+    protected void advanceDataVersion() {
+        dataVersion.incrementAndGet();
+    }
+
+    // ──────────────────────────────── CHANGE LISTENERS ────────────────────────────────
+
+    public void addInvoiceChangeListener(InvoiceChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    protected boolean hasInvoiceChangeListeners() {
+        return !changeListeners.isEmpty();
+    }
+
+    /**
+     * Reports committed changes to the listeners. Callers that have to query
+     * extra data for the event should check {@link #hasInvoiceChangeListeners()} first.
+     */
+    protected void fireInvoicesChanged(List<InvoiceChangeListener.InvoiceChange> changes) {
+        if (changes.isEmpty()) return;
+        for (InvoiceChangeListener listener : changeListeners) {
+            try {
+                listener.invoicesChanged(changes);
+            } catch (RuntimeException e) {
+                System.err.println("Invoice change listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Single-invoice change event; resolves the customer name only when someone is listening.
+     */
+    protected void fireInvoiceChanged(String series, String number, int customerId) {
+        if (!hasInvoiceChangeListeners()) return;
+        Customer customer = getCustomer(customerId);
+        fireInvoicesChanged(List.of(new InvoiceChangeListener.InvoiceChange(
+                series, number, customer != null ? customer.name : null)));
+    }
+
     // ──────────────────────────────── CUSTOMER OPERATIONS ────────────────────────────────
 
     /**
@@ -228,7 +386,7 @@ public class Database {
         String itemSql = "INSERT INTO invoiceItems(invoiceId, itemId, quantity, lineTotal) VALUES(?,?,?,?)";
 
         try {
-            connection.setAutoCommit(false);
+            beginTransaction();
 
             // Calculate totals
             double totalBefore = 0;
@@ -255,6 +413,7 @@ public class Database {
                     invoiceId = keys.getInt(1);
                 }
             }
+            recordInvoiceChange(CHANGE_INSERT, invoiceId);
 
             // Insert invoice items
             try (PreparedStatement ps = connection.prepareStatement(itemSql)) {
@@ -273,13 +432,15 @@ public class Database {
             }
 
             connection.commit();
+            advanceDataVersion();
+            fireInvoiceChanged(series, number, customerId);
             return true;
         } catch (Exception ex) {
             System.err.println("Error saving invoice: " + ex.getMessage());
             try { connection.rollback(); } catch (SQLException ignore) {}
             return false;
         } finally {
-            try { connection.setAutoCommit(true); } catch (SQLException ignore) {}
+            endTransaction();
         }
     }
 
@@ -288,7 +449,7 @@ public class Database {
      */
     public String[] getInvoiceList() {
         List<String> out = new ArrayList<>();
-        String sql = "SELECT id, series, number FROM invoice ORDER BY id";
+        String sql = "SELECT id, series, number FROM invoice WHERE deleted = 0 ORDER BY id";
         try (PreparedStatement ps = connection.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
@@ -306,13 +467,87 @@ public class Database {
         return out.toArray(new String[0]);
     }
 
+    /**
+     * Streams the invoice list row by row in the same format as {@link #getInvoiceList()},
+     * without materializing it. Rows are handed to the consumer while the cursor is open.
+     *
+     * @return number of rows delivered
+     */
+    public int streamInvoiceList(InvoiceListConsumer consumer) throws IOException {
+        int count = 0;
+        String sql = "SELECT id, series, number FROM invoice WHERE deleted = 0 ORDER BY id";
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setFetchSize(256);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept("("
+                            + rs.getInt("id")
+                            + ") "
+                            + rs.getString("series")
+                            + " - "
+                            + rs.getString("number")
+                    );
+                    count++;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error streaming invoices: " + e.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * Streams one page of invoices with id greater than afterId, ordered by id.
+     * When customerName is not null only invoices of customers whose name
+     * contains it (case-insensitive) are returned. Rows are handed to the
+     * consumer while the cursor is open.
+     *
+     * @return number of rows delivered
+     */
+    public int streamInvoicePage(String customerName, int afterId, int limit, InvoiceConsumer consumer) throws IOException {
+        int count = 0;
+        String sql = "SELECT i.*, c.name as customerName, c.ssn, c.isCompany " +
+                     "FROM invoice i LEFT JOIN customer c ON i.customerId = c.id " +
+                     "WHERE i.id > ? AND i.deleted = 0" + (customerName != null ? " AND LOWER(c.name) LIKE LOWER(?)" : "") +
+                     " ORDER BY i.id LIMIT ?";
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            int index = 1;
+            ps.setInt(index++, afterId);
+            if (customerName != null) {
+                ps.setString(index++, "%" + customerName + "%");
+            }
+            ps.setInt(index, limit);
+            ps.setFetchSize(Math.min(limit, 256));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new Invoice(
+                            rs.getInt("id"),
+                            rs.getString("series"),
+                            rs.getString("number"),
+                            rs.getInt("customerId"),
+                            rs.getString("customerName"),
+                            rs.getString("ssn"),
+                            rs.getBoolean("isCompany"),
+                            rs.getDouble("discount"),
+                            rs.getDouble("totalBefore"),
+                            rs.getDouble("totalAfter")
+                    ));
+                    count++;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error streaming invoice page: " + e.getMessage());
+        }
+        return count;
+    }
+
     /**
      * Get invoice by ID
      */
     public Invoice getInvoice(int invoiceId) {
         String sql = "SELECT i.*, c.name as customerName, c.ssn, c.isCompany " +
                      "FROM invoice i JOIN customer c ON i.customerId = c.id " +
-                     "WHERE i.id = ?";
+                     "WHERE i.id = ? AND i.deleted = 0";
         try (PreparedStatement ps = connection.prepareStatement(sql)) {
             ps.setInt(1, invoiceId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -342,7 +577,7 @@ public class Database {
     public Invoice getInvoiceBySeriesAndNumber(String series, String number) {
         String sql = "SELECT i.*, c.name as customerName, c.ssn, c.isCompany " +
                      "FROM invoice i JOIN customer c ON i.customerId = c.id " +
-                     "WHERE i.series = ? AND i.number = ?";
+                     "WHERE i.series = ? AND i.number = ? AND i.deleted = 0";
         try (PreparedStatement ps = connection.prepareStatement(sql)) {
             ps.setString(1, series);
             ps.setString(2, number);
@@ -367,6 +602,60 @@ public class Database {
         }
     }
 
+    /**
+     * Looks up many invoices by series and number. Keys are resolved in
+     * chunks, each with one statement on the (series, number) index.
+     *
+     * @return invoices in key order, null where no invoice matches
+     */
+    public Invoice[] getInvoicesBySeriesAndNumbers(List<InvoiceKey> keys) {
+        Map<InvoiceKey, Invoice> found = new HashMap<>(keys.size() * 2);
+        for (int start = 0; start < keys.size(); start += MULTI_GET_CHUNK) {
+            List<InvoiceKey> chunk = keys.subList(start, Math.min(start + MULTI_GET_CHUNK, keys.size()));
+            StringBuilder sql = new StringBuilder(
+                "SELECT i.*, c.name as customerName, c.ssn, c.isCompany " +
+                "FROM invoice i JOIN customer c ON i.customerId = c.id " +
+                "WHERE i.deleted = 0 AND (i.series, i.number) IN (VALUES (?, ?)");
+            for (int i = 1; i < chunk.size(); i++) {
+                sql.append(", (?, ?)");
+            }
+            sql.append(')');
+            try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (InvoiceKey key : chunk) {
+                    ps.setString(index++, key.series);
+                    ps.setString(index++, key.number);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Invoice invoice = new Invoice(
+                                rs.getInt("id"),
+                                rs.getString("series"),
+                                rs.getString("number"),
+                                rs.getInt("customerId"),
+                                rs.getString("customerName"),
+                                rs.getString("ssn"),
+                                rs.getBoolean("isCompany"),
+                                rs.getDouble("discount"),
+                                rs.getDouble("totalBefore"),
+                                rs.getDouble("totalAfter")
+                        );
+                        // Same first-match semantics as getInvoiceBySeriesAndNumber
+                        found.putIfAbsent(new InvoiceKey(invoice.series, invoice.number), invoice);
+                    }
+                }
+            } catch (SQLException e) {
+                System.err.println("Error in multi-get invoice query: " + e.getMessage());
+            }
+        }
+
+        Invoice[] invoices = new Invoice[keys.size()];
+        for (int i = 0; i < invoices.length; i++) {
+            invoices[i] = found.get(keys.get(i));
+        }
+        return invoices;
+    }
+
     /**
      * Get invoice items for export (compatible with both client and server database schemas)
      */
@@ -416,46 +705,43 @@ public class Database {
     }
 
     /**
-     * Delete invoice and its items
+     * Deletes an invoice by marking it as deleted with a single UPDATE; the
+     * row and its items are removed later by {@link #purgeDeletedInvoices(int)}.
+     * Every read skips deleted invoices.
      */
     public boolean deleteInvoice(String series, String number) {
+        String sql = "UPDATE invoice SET deleted = 1 WHERE id = " +
+                     "(SELECT id FROM invoice WHERE series = ? AND number = ? AND deleted = 0 LIMIT 1) " +
+                     "RETURNING id, customerId";
         try {
-            connection.setAutoCommit(false);
+            beginTransaction();
 
-            // Get invoice ID first
-            String findSql = "SELECT id FROM invoice WHERE series = ? AND number = ?";
             int invoiceId;
-            try (PreparedStatement ps = connection.prepareStatement(findSql)) {
+            int customerId;
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
                 ps.setString(1, series);
                 ps.setString(2, number);
                 try (ResultSet rs = ps.executeQuery()) {
-                    if (!rs.next()) return false;
+                    if (!rs.next()) {
+                        connection.rollback();
+                        return false;
+                    }
                     invoiceId = rs.getInt("id");
+                    customerId = rs.getInt("customerId");
                 }
             }
-
-            // Delete invoice items first
-            String delItems = "DELETE FROM invoiceItems WHERE invoiceId = ?";
-            try (PreparedStatement ps = connection.prepareStatement(delItems)) {
-                ps.setInt(1, invoiceId);
-                ps.executeUpdate();
-            }
-
-            // Delete invoice
-            String delInvoice = "DELETE FROM invoice WHERE id = ?";
-            try (PreparedStatement ps = connection.prepareStatement(delInvoice)) {
-                ps.setInt(1, invoiceId);
-                ps.executeUpdate();
-            }
+            recordInvoiceChange(CHANGE_DELETE, invoiceId);
 
             connection.commit();
+            advanceDataVersion();
+            fireInvoiceChanged(series, number, customerId);
             return true;
         } catch (Exception e) {
             System.err.println("Error deleting invoice: " + e.getMessage());
             try { connection.rollback(); } catch (SQLException ignore) {}
             return false;
         } finally {
-            try { connection.setAutoCommit(true); } catch (SQLException ignore) {}
+            endTransaction();
         }
     }
 
@@ -466,7 +752,7 @@ public class Database {
         List<Invoice> invoices = new ArrayList<>();
         String sql = "SELECT i.*, c.name as customerName, c.ssn, c.isCompany " +
                      "FROM invoice i JOIN customer c ON i.customerId = c.id " +
-                     "WHERE LOWER(c.name) LIKE LOWER(?) ORDER BY i.id";
+                     "WHERE i.deleted = 0 AND LOWER(c.name) LIKE LOWER(?) ORDER BY i.id";
         try (PreparedStatement ps = connection.prepareStatement(sql)) {
             ps.setString(1, "%" + customerName + "%"); // Support partial matches
             try (ResultSet rs = ps.executeQuery()) {
@@ -498,7 +784,7 @@ public class Database {
         List<Invoice> invoices = new ArrayList<>();
         String sql = "SELECT i.*, c.name as customerName, c.ssn, c.isCompany " +
                      "FROM invoice i JOIN customer c ON i.customerId = c.id " +
-                     "ORDER BY i.id DESC";
+                     "WHERE i.deleted = 0 ORDER BY i.id DESC";
         try (PreparedStatement ps = connection.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
@@ -529,43 +815,139 @@ public class Database {
     }
 
     /**
-     * Delete invoice by ID (overloaded method for GUI compatibility)
+     * Delete invoice by ID (overloaded method for GUI compatibility); marks
+     * it as deleted like {@link #deleteInvoice(String, String)}.
      */
     public boolean deleteInvoice(int invoiceId) {
+        // Keys of the invoice for the change event, read before it is gone
+        Invoice deleted = hasInvoiceChangeListeners() ? getInvoice(invoiceId) : null;
         try {
-            connection.setAutoCommit(false);
-
-            // Delete invoice items first
-            String delItems = "DELETE FROM invoiceItems WHERE invoiceId = ?";
-            try (PreparedStatement ps = connection.prepareStatement(delItems)) {
-                ps.setInt(1, invoiceId);
-                ps.executeUpdate();
-            }
+            beginTransaction();
 
-            // Delete invoice
-            String delInvoice = "DELETE FROM invoice WHERE id = ?";
-            try (PreparedStatement ps = connection.prepareStatement(delInvoice)) {
+            String sql = "UPDATE invoice SET deleted = 1 WHERE id = ? AND deleted = 0";
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
                 ps.setInt(1, invoiceId);
-                int rowsAffected = ps.executeUpdate();
-                if (rowsAffected == 0) {
+                if (ps.executeUpdate() == 0) {
                     connection.rollback();
                     return false;
                 }
             }
+            recordInvoiceChange(CHANGE_DELETE, invoiceId);
 
             connection.commit();
+            advanceDataVersion();
+            if (deleted != null) {
+                fireInvoicesChanged(List.of(new InvoiceChangeListener.InvoiceChange(
+                        deleted.series, deleted.number, deleted.customerName)));
+            }
             return true;
         } catch (Exception e) {
             System.err.println("Error deleting invoice by ID: " + e.getMessage());
             try { connection.rollback(); } catch (SQLException ignore) {}
             return false;
         } finally {
-            try { connection.setAutoCommit(true); } catch (SQLException ignore) {}
+            endTransaction();
+        }
+    }
+
+    /**
+     * Physically removes up to limit deleted invoices, oldest first, with
+     * their items, in one transaction. Readers never see deleted invoices, so
+     * nothing observable changes and no event is fired.
+     *
+     * @return number of invoices removed; less than limit once none are left
+     */
+    public int purgeDeletedInvoices(int limit) {
+        limit = Math.min(limit, MULTI_GET_CHUNK);
+        List<Integer> ids = new ArrayList<>(limit);
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id FROM invoice WHERE deleted = 1 ORDER BY id LIMIT ?")) {
+            ps.setInt(1, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error finding deleted invoices: " + e.getMessage());
+            return 0;
+        }
+        if (ids.isEmpty()) return 0;
+
+        String placeholders = "?" + ",?".repeat(ids.size() - 1);
+        try {
+            beginTransaction();
+            try (PreparedStatement items = connection.prepareStatement(
+                     "DELETE FROM invoiceItems WHERE invoiceId IN (" + placeholders + ")");
+                 PreparedStatement invoices = connection.prepareStatement(
+                     "DELETE FROM invoice WHERE deleted = 1 AND id IN (" + placeholders + ")")) {
+                for (int i = 0; i < ids.size(); i++) {
+                    items.setInt(i + 1, ids.get(i));
+                    invoices.setInt(i + 1, ids.get(i));
+                }
+                items.executeUpdate();
+                invoices.executeUpdate();
+            }
+            connection.commit();
+            return ids.size();
+        } catch (SQLException e) {
+            System.err.println("Error purging deleted invoices: " + e.getMessage());
+            try { connection.rollback(); } catch (SQLException ignore) {}
+            return 0;
+        } finally {
+            endTransaction();
         }
     }
 
     // ──────────────────────────────── DATA CLASSES ────────────────────────────────
 
+    /**
+     * Receives rows from {@link #streamInvoiceList(InvoiceListConsumer)}.
+     */
+    @FunctionalInterface
+    public interface InvoiceListConsumer {
+        void accept(String entry) throws IOException;
+    }
+
+    /**
+     * Receives rows from {@link #streamInvoicePage(String, int, int, InvoiceConsumer)}.
+     */
+    @FunctionalInterface
+    public interface InvoiceConsumer {
+        void accept(Invoice invoice) throws IOException;
+    }
+
+    /**
+     * Series/number pair identifying an invoice.
+     */
+    public static class InvoiceKey {
+        public final String series;
+        public final String number;
+
+        public InvoiceKey(String series, String number) {
+            this.series = series;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof InvoiceKey)) return false;
+            InvoiceKey key = (InvoiceKey) other;
+            return Objects.equals(series, key.series) && Objects.equals(number, key.number);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(series, number);
+        }
+
+        @Override
+        public String toString() {
+            return series + "-" + number;
+        }
+    }
+
     public static class Customer {
         public final int id;
         public final String name;
@@ -0,0 +1,31 @@
+package com.ancienty.database;
+
+import java.util.List;
+
+/**
+ * Notified after invoice inserts and deletes have been committed, e.g. to
+ * invalidate cached query results. Called on the writing thread; keep it cheap.
+ */
+@FunctionalInterface
+public interface InvoiceChangeListener {
+
+    /**
+     * @param changes invoices inserted or deleted by one commit
+     */
+    void invoicesChanged(List<InvoiceChange> changes);
+
+    /**
+     * Identifies a changed invoice by the keys it can be queried with.
+     */
+    class InvoiceChange {
+        public final String series;
+        public final String number;
+        public final String customerName; // null if the customer no longer exists
+
+        public InvoiceChange(String series, String number, String customerName) {
+            this.series = series;
+            this.number = number;
+            this.customerName = customerName;
+        }
+    }
+}
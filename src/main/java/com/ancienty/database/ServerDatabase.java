@@ -1,7 +1,13 @@
 package com.ancienty.database;
 
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Histogram;
+import com.ancienty.metrics.Metrics;
+
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Enhanced Database for Server use with additional features:
@@ -9,9 +15,19 @@ import java.util.*;
  * - Source tracking (DESKTOP, HTTP, TCP)
  * - Better data integrity with unique constraints
  * - Enhanced invoice item tracking
+ * - Outbox of invoice inserts and deletes for incremental sync ({@link #changesSince})
+ * - Reference to the archived original payload ({@link #setPayloadRefs})
+ * - Bulk deletes by id list or range ({@link #deleteInvoices})
  */
 public class ServerDatabase extends Database {
 
+    private static final Logger log = LogManager.getLogger(ServerDatabase.class);
+
+    private static final Histogram SINGLE_COMMIT_TIME = Metrics.histogram("hugin_db_commit_duration_seconds",
+            "Time to commit an invoice transaction", "operation", "single");
+    private static final Histogram BATCH_COMMIT_TIME = Metrics.histogram("hugin_db_commit_duration_seconds",
+            "Time to commit an invoice transaction", "operation", "batch");
+
     // Enhanced server schema with additional fields
     private static final String SERVER_INVOICE_TABLE_SQL =
             "CREATE TABLE IF NOT EXISTS invoice (" +
@@ -25,6 +41,8 @@ public class ServerDatabase extends Database {
                     "  createdAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
                     "  uploadedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
                     "  source TEXT DEFAULT 'DESKTOP'," + // DESKTOP, HTTP, TCP
+                    "  payloadRef INTEGER," + // position of the raw upload in the payload archive, NULL if not archived
+                    "  deleted INTEGER NOT NULL DEFAULT 0," + // tombstone, removed by purgeDeletedInvoices
                     "  UNIQUE(series, number)" + // Prevent duplicate invoices
                     ");";
 
@@ -38,9 +56,33 @@ public class ServerDatabase extends Database {
                     "  PRIMARY KEY (invoiceId, itemId)" +
                     ");";
 
+    // Change log written in the transaction of each insert/delete; seq orders the changes
+    private static final String INVOICE_OUTBOX_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS invoiceOutbox (" +
+                    "  seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "  operation TEXT NOT NULL," + // INSERT, DELETE
+                    "  invoiceId INTEGER NOT NULL," +
+                    "  series TEXT NOT NULL," +
+                    "  number TEXT NOT NULL," +
+                    "  totalAfter DOUBLE NOT NULL," +
+                    "  source TEXT," +
+                    "  changedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                    ");";
+
+    // Invoices tombstoned per bulk delete transaction; two statements bind one parameter per id
+    private static final int DELETE_CHUNK = 400;
+
+    // Highest invoice id known to be committed; readers of recent invoices stop here so
+    // they never see rows of a transaction still open on the shared connection
+    private final AtomicLong committedInvoiceId = new AtomicLong();
+    // Same for the outbox, so a change is only handed out once its transaction has committed
+    private final AtomicLong committedOutboxSeq = new AtomicLong();
+
     public ServerDatabase(String databasePath) {
         super(databasePath);
-        System.out.println("ServerDatabase initialized with enhanced schema: " + databasePath);
+        committedInvoiceId.set(queryMaxInvoiceId());
+        committedOutboxSeq.set(queryMaxOutboxSeq());
+        log.info("ServerDatabase initialized with enhanced schema: {}", databasePath);
     }
 
     @Override
@@ -63,82 +105,485 @@ public class ServerDatabase extends Database {
             // Create enhanced server tables
             s.execute(SERVER_INVOICE_TABLE_SQL);
             s.execute(SERVER_INVOICE_ITEMS_TABLE_SQL);
+            s.execute(INVOICE_OUTBOX_TABLE_SQL);
 
             // Create indexes for better performance
             s.execute("CREATE INDEX IF NOT EXISTS idx_invoice_series_number ON invoice(series, number);");
             s.execute("CREATE INDEX IF NOT EXISTS idx_invoice_customer ON invoice(customerId);");
             s.execute("CREATE INDEX IF NOT EXISTS idx_invoice_source ON invoice(source);");
             s.execute("CREATE INDEX IF NOT EXISTS idx_invoice_date ON invoice(uploadedAt);");
+            s.execute(TOMBSTONE_INDEX_SQL);
+
+            log.info("Enhanced server database tables created with indexes");
+        }
+    }
 
-            System.out.println("Enhanced server database tables created with indexes");
+    @Override
+    protected void upgradeTables(Connection conn) throws SQLException {
+        super.upgradeTables(conn);
+        try (Statement s = conn.createStatement()) {
+            // Databases created before the outbox start it empty; earlier invoices need a full sync once
+            s.execute(INVOICE_OUTBOX_TABLE_SQL);
+            if (!hasColumn(conn, "invoice", "payloadRef")) {
+                s.execute("ALTER TABLE invoice ADD COLUMN payloadRef INTEGER");
+                log.info("Added invoice.payloadRef column");
+            }
         }
     }
 
+    /**
+     * Copies the invoice's keys into the outbox; for a delete this runs before the row is removed.
+     */
+    @Override
+    protected void recordInvoiceChange(String operation, int invoiceId) throws SQLException {
+        String sql = "INSERT INTO invoiceOutbox(operation, invoiceId, series, number, totalAfter, source) " +
+                "SELECT ?, id, series, number, totalAfter, source FROM invoice WHERE id = ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, operation);
+            ps.setInt(2, invoiceId);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
+    protected void advanceDataVersion() {
+        committedOutboxSeq.set(queryMaxOutboxSeq());
+        super.advanceDataVersion();
+    }
+
     /**
      * Save invoice with source tracking for server database
      */
     public boolean saveInvoiceWithSource(String series, String number, int customerId, double discount, 
                                        Map<String, Double> items, String source) {
-        String invSql = "INSERT INTO invoice(series, number, customerId, discount, totalBefore, totalAfter, source, uploadedAt) VALUES(?,?,?,?,?,?,?,CURRENT_TIMESTAMP)";
-        String itemSql = "INSERT INTO invoiceItems(invoiceId, itemId, quantity, lineTotal, unitPrice) VALUES(?,?,?,?,?)";
+        try {
+            beginTransaction();
+
+            Map<String, Double> itemPrices = getItems();
+            int invoiceId = insertInvoiceRows(series, number, customerId, discount, items, source, itemPrices, getItemIds());
+
+            long commitStart = System.nanoTime();
+            getConnection().commit();
+            SINGLE_COMMIT_TIME.recordSince(commitStart);
+            committedInvoiceId.accumulateAndGet(invoiceId, Math::max);
+            advanceDataVersion();
+            fireInvoiceChanged(series, number, customerId);
+            log.debug("Invoice saved to server database with source: {}", source);
+            return true;
+        } catch (Exception ex) {
+            log.warn("Error saving invoice to server database: {}", ex.getMessage());
+            try { getConnection().rollback(); } catch (SQLException ignore) {}
+            return false;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Save a batch of invoices in a single transaction.
+     * Each invoice is written under its own savepoint, so a rejected invoice
+     * (e.g. duplicate series/number) does not roll back the rest of the batch.
+     * Null entries are reported as failed without touching the database.
+     *
+     * @return per-invoice result in the same order as the input
+     */
+    public boolean[] saveInvoicesWithSource(List<PendingInvoice> invoices, String source) {
+        boolean[] results = new boolean[invoices.size()];
+        if (invoices.isEmpty()) return results;
 
         try {
-            getConnection().setAutoCommit(false);
+            beginTransaction();
 
-            // Calculate totals
-            double totalBefore = 0;
+            // Item catalog is loaded once for the whole batch
             Map<String, Double> itemPrices = getItems();
-            for (var entry : items.entrySet()) {
-                double lineTotal = itemPrices.get(entry.getKey()) * entry.getValue();
-                totalBefore += lineTotal;
-            }
-            double totalAfter = totalBefore - discount;
-
-            // Insert invoice header with source tracking
-            int invoiceId;
-            try (PreparedStatement ps = getConnection().prepareStatement(invSql, Statement.RETURN_GENERATED_KEYS)) {
-                ps.setString(1, series);
-                ps.setString(2, number);
-                ps.setInt(3, customerId);
-                ps.setDouble(4, discount);
-                ps.setDouble(5, totalBefore);
-                ps.setDouble(6, totalAfter);
-                ps.setString(7, source);
+            Map<String, Integer> itemIds = getItemIds();
+            int lastInvoiceId = 0;
+
+            for (int i = 0; i < invoices.size(); i++) {
+                PendingInvoice invoice = invoices.get(i);
+                if (invoice == null) continue;
+
+                Savepoint savepoint = getConnection().setSavepoint();
+                try {
+                    lastInvoiceId = insertInvoiceRows(invoice.series, invoice.number, invoice.customerId,
+                            invoice.discount, invoice.items, source, itemPrices, itemIds);
+                    getConnection().releaseSavepoint(savepoint);
+                    results[i] = true;
+                } catch (Exception ex) {
+                    log.warn("Error saving batch invoice {}-{}: {}", invoice.series, invoice.number, ex.getMessage());
+                    getConnection().rollback(savepoint);
+                }
+            }
+
+            long commitStart = System.nanoTime();
+            getConnection().commit();
+            BATCH_COMMIT_TIME.recordSince(commitStart);
+            committedInvoiceId.accumulateAndGet(lastInvoiceId, Math::max);
+            advanceDataVersion();
+            fireBatchSaved(invoices, results);
+            log.debug("Invoice batch saved to server database with source: {}", source);
+        } catch (Exception ex) {
+            log.error("Error saving invoice batch to server database", ex);
+            try { getConnection().rollback(); } catch (SQLException ignore) {}
+            Arrays.fill(results, false);
+        } finally {
+            endTransaction();
+        }
+        return results;
+    }
+
+    /**
+     * One change event for every invoice of a committed batch; customer names
+     * are looked up once per distinct customer.
+     */
+    private void fireBatchSaved(List<PendingInvoice> invoices, boolean[] saved) {
+        if (!hasInvoiceChangeListeners()) return;
+        Map<Integer, String> customerNames = new HashMap<>();
+        List<InvoiceChangeListener.InvoiceChange> changes = new ArrayList<>();
+        for (int i = 0; i < invoices.size(); i++) {
+            if (!saved[i]) continue;
+            PendingInvoice invoice = invoices.get(i);
+            String customerName = customerNames.computeIfAbsent(invoice.customerId, id -> {
+                Customer customer = getCustomer(id);
+                return customer != null ? customer.name : null;
+            });
+            changes.add(new InvoiceChangeListener.InvoiceChange(invoice.series, invoice.number, customerName));
+        }
+        fireInvoicesChanged(changes);
+    }
+
+    /**
+     * Insert invoice header and items. Caller owns the transaction.
+     *
+     * @return id of the new invoice
+     */
+    private int insertInvoiceRows(String series, String number, int customerId, double discount,
+                                   Map<String, Double> items, String source,
+                                   Map<String, Double> itemPrices, Map<String, Integer> itemIds) throws SQLException {
+        String invSql = "INSERT INTO invoice(series, number, customerId, discount, totalBefore, totalAfter, source, uploadedAt) VALUES(?,?,?,?,?,?,?,CURRENT_TIMESTAMP)";
+        String itemSql = "INSERT INTO invoiceItems(invoiceId, itemId, quantity, lineTotal, unitPrice) VALUES(?,?,?,?,?)";
+
+        // Calculate totals
+        double totalBefore = 0;
+        for (var entry : items.entrySet()) {
+            Double price = itemPrices.get(entry.getKey());
+            if (price == null) throw new SQLException("Unknown item: " + entry.getKey());
+            totalBefore += price * entry.getValue();
+        }
+        double totalAfter = totalBefore - discount;
+
+        // Insert invoice header with source tracking
+        int invoiceId;
+        try (PreparedStatement ps = getConnection().prepareStatement(invSql, Statement.RETURN_GENERATED_KEYS)) {
+            ps.setString(1, series);
+            ps.setString(2, number);
+            ps.setInt(3, customerId);
+            ps.setDouble(4, discount);
+            ps.setDouble(5, totalBefore);
+            ps.setDouble(6, totalAfter);
+            ps.setString(7, source);
+            try {
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                // The series/number may still be held by a deleted invoice the purger has not reached
+                if (purgeDeletedInvoice(series, number) == 0) throw e;
                 ps.executeUpdate();
+            }
+
+            try (ResultSet keys = ps.getGeneratedKeys()) {
+                if (!keys.next()) throw new SQLException("No invoice ID generated");
+                invoiceId = keys.getInt(1);
+            }
+        }
+        recordInvoiceChange(CHANGE_INSERT, invoiceId);
+
+        // Insert invoice items with unit prices
+        try (PreparedStatement ps = getConnection().prepareStatement(itemSql)) {
+            for (var entry : items.entrySet()) {
+                Integer itemId = itemIds.get(entry.getKey());
+                if (itemId == null) continue;
+                double quantity = entry.getValue();
+                double unitPrice = itemPrices.get(entry.getKey());
+                double lineTotal = unitPrice * quantity;
+                ps.setInt(1, invoiceId);
+                ps.setInt(2, itemId);
+                ps.setDouble(3, quantity);
+                ps.setDouble(4, lineTotal);
+                ps.setDouble(5, unitPrice);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return invoiceId;
+    }
 
-                try (ResultSet keys = ps.getGeneratedKeys()) {
-                    if (!keys.next()) throw new SQLException("No invoice ID generated");
-                    invoiceId = keys.getInt(1);
+    // ──────────────────────────────── RECENT INVOICES ────────────────────────────────
+
+    /**
+     * Highest invoice id committed so far, 0 for an empty database.
+     */
+    public long getLastCommittedInvoiceId() {
+        return committedInvoiceId.get();
+    }
+
+    /**
+     * Committed invoices with an id above afterId in id order, at most limit
+     * of them; ids grow with every insert, so paging by the last id returned
+     * visits each invoice once.
+     */
+    public List<InvoiceSummary> getInvoicesAfter(long afterId, int limit) {
+        List<InvoiceSummary> out = new ArrayList<>();
+        String sql = "SELECT id, series, number, totalAfter, source FROM invoice WHERE id > ? AND id <= ? AND deleted = 0 ORDER BY id LIMIT ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setLong(1, afterId);
+            ps.setLong(2, committedInvoiceId.get());
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new InvoiceSummary(rs.getLong("id"), rs.getString("series"), rs.getString("number"),
+                            rs.getDouble("totalAfter"), rs.getString("source")));
                 }
             }
+        } catch (SQLException e) {
+            log.error("Error fetching invoices after id {}: {}", afterId, e.getMessage());
+        }
+        return out;
+    }
 
-            // Insert invoice items with unit prices
-            try (PreparedStatement ps = getConnection().prepareStatement(itemSql)) {
-                for (var entry : items.entrySet()) {
-                    Integer itemId = lookupItemId(entry.getKey());
-                    if (itemId == null) continue;
-                    double quantity = entry.getValue();
-                    double unitPrice = itemPrices.get(entry.getKey());
-                    double lineTotal = unitPrice * quantity;
-                    ps.setInt(1, invoiceId);
-                    ps.setInt(2, itemId);
-                    ps.setDouble(3, quantity);
-                    ps.setDouble(4, lineTotal);
-                    ps.setDouble(5, unitPrice);
-                    ps.addBatch();
+    // ──────────────────────────────── OUTBOX ────────────────────────────────
+
+    /**
+     * Committed invoice changes after the given sequence number, oldest
+     * first, at most limit of them. A consumer passes the seq of the last
+     * change it applied (0 to start) and reads until a page comes back short;
+     * each page is one range scan of the outbox primary key.
+     */
+    public List<ChangeRecord> changesSince(long sequence, int limit) {
+        List<ChangeRecord> out = new ArrayList<>();
+        String sql = "SELECT seq, operation, invoiceId, series, number, totalAfter, source, changedAt " +
+                "FROM invoiceOutbox WHERE seq > ? AND seq <= ? ORDER BY seq LIMIT ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setLong(1, sequence);
+            ps.setLong(2, committedOutboxSeq.get());
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new ChangeRecord(rs.getLong("seq"), rs.getString("operation"), rs.getLong("invoiceId"),
+                            rs.getString("series"), rs.getString("number"), rs.getDouble("totalAfter"),
+                            rs.getString("source"), rs.getString("changedAt")));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error fetching invoice changes after seq {}: {}", sequence, e.getMessage());
+        }
+        return out;
+    }
+
+    /**
+     * Sequence number of the latest committed change, 0 if there is none.
+     */
+    public long getLastChangeSequence() {
+        return committedOutboxSeq.get();
+    }
+
+    private long queryMaxOutboxSeq() {
+        try (PreparedStatement ps = getConnection().prepareStatement("SELECT MAX(seq) FROM invoiceOutbox");
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            log.error("Error reading the last outbox sequence", e);
+            return 0;
+        }
+    }
+
+    private long queryMaxInvoiceId() {
+        try (PreparedStatement ps = getConnection().prepareStatement("SELECT MAX(id) FROM invoice");
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            log.error("Error reading the last invoice id", e);
+            return 0;
+        }
+    }
+
+    // ──────────────────────────────── BULK DELETE ────────────────────────────────
+
+    /**
+     * Marks every invoice with an id in one of the ranges as deleted, with
+     * the same outbox records and change events as single deletes. Work is
+     * committed in chunks of a few hundred invoices, so a month-end
+     * correction does not hold the connection in one long transaction; a
+     * failure leaves the chunks before it deleted. Ids that do not exist or
+     * are already deleted are skipped.
+     *
+     * @return number of invoices deleted
+     */
+    public int deleteInvoices(List<IdRange> ranges) {
+        List<Long> singles = new ArrayList<>();
+        int deleted = 0;
+        for (IdRange range : ranges) {
+            if (range.from == range.to) {
+                singles.add(range.from);
+                continue;
+            }
+            long next = range.from;
+            while (next <= range.to) {
+                List<Long> ids = liveIdsBetween(next, range.to, DELETE_CHUNK);
+                if (ids.isEmpty()) break;
+                deleted += markDeleted(ids);
+                next = ids.get(ids.size() - 1) + 1;
+            }
+        }
+        for (int start = 0; start < singles.size(); start += DELETE_CHUNK) {
+            deleted += markDeleted(singles.subList(start, Math.min(start + DELETE_CHUNK, singles.size())));
+        }
+        return deleted;
+    }
+
+    private List<Long> liveIdsBetween(long from, long to, int limit) {
+        List<Long> ids = new ArrayList<>(limit);
+        String sql = "SELECT id FROM invoice WHERE id BETWEEN ? AND ? AND deleted = 0 ORDER BY id LIMIT ?";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
                 }
-                ps.executeBatch();
             }
+        } catch (SQLException e) {
+            log.error("Error listing invoices {}-{} for deletion: {}", from, to, e.getMessage());
+        }
+        return ids;
+    }
 
+    /**
+     * Tombstones one chunk of invoices in its own transaction.
+     */
+    private int markDeleted(List<Long> ids) {
+        String in = " IN (?" + ",?".repeat(ids.size() - 1) + ")";
+        String eventSql = "SELECT i.series, i.number, c.name FROM invoice i LEFT JOIN customer c ON i.customerId = c.id " +
+                "WHERE i.deleted = 0 AND i.id" + in;
+        String outboxSql = "INSERT INTO invoiceOutbox(operation, invoiceId, series, number, totalAfter, source) " +
+                "SELECT '" + CHANGE_DELETE + "', id, series, number, totalAfter, source FROM invoice WHERE deleted = 0 AND id" + in;
+        String updateSql = "UPDATE invoice SET deleted = 1 WHERE deleted = 0 AND id" + in;
+        List<InvoiceChangeListener.InvoiceChange> changes = new ArrayList<>();
+        try {
+            beginTransaction();
+            if (hasInvoiceChangeListeners()) {
+                try (PreparedStatement ps = getConnection().prepareStatement(eventSql)) {
+                    bindIds(ps, ids);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            changes.add(new InvoiceChangeListener.InvoiceChange(rs.getString(1), rs.getString(2), rs.getString(3)));
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement ps = getConnection().prepareStatement(outboxSql)) {
+                bindIds(ps, ids);
+                ps.executeUpdate();
+            }
+            int deleted;
+            try (PreparedStatement ps = getConnection().prepareStatement(updateSql)) {
+                bindIds(ps, ids);
+                deleted = ps.executeUpdate();
+            }
             getConnection().commit();
-            System.out.println("Invoice saved to server database with source: " + source);
-            return true;
-        } catch (Exception ex) {
-            System.err.println("Error saving invoice to server database: " + ex.getMessage());
+            if (deleted > 0) {
+                advanceDataVersion();
+                fireInvoicesChanged(changes);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            log.error("Error deleting {} invoices: {}", ids.size(), e.getMessage());
             try { getConnection().rollback(); } catch (SQLException ignore) {}
-            return false;
+            return 0;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    private static void bindIds(PreparedStatement ps, List<Long> ids) throws SQLException {
+        for (int i = 0; i < ids.size(); i++) {
+            ps.setLong(i + 1, ids.get(i));
+        }
+    }
+
+    /**
+     * Removes the deleted invoice holding a series/number, so that it can be
+     * saved again. Runs inside the caller's transaction.
+     *
+     * @return number of invoices removed
+     */
+    private int purgeDeletedInvoice(String series, String number) throws SQLException {
+        String itemsSql = "DELETE FROM invoiceItems WHERE invoiceId IN " +
+                "(SELECT id FROM invoice WHERE series = ? AND number = ? AND deleted = 1)";
+        try (PreparedStatement ps = getConnection().prepareStatement(itemsSql)) {
+            ps.setString(1, series);
+            ps.setString(2, number);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = getConnection().prepareStatement(
+                "DELETE FROM invoice WHERE series = ? AND number = ? AND deleted = 1")) {
+            ps.setString(1, series);
+            ps.setString(2, number);
+            return ps.executeUpdate();
+        }
+    }
+
+    // ──────────────────────────────── PAYLOAD ARCHIVE ────────────────────────────────
+
+    /**
+     * Records where the raw payloads of saved invoices were archived, in one
+     * transaction. Invoices deleted in the meantime are skipped.
+     *
+     * @return number of invoices updated
+     */
+    public int setPayloadRefs(List<InvoiceKey> keys, long[] refs) {
+        if (keys.isEmpty()) return 0;
+        String sql = "UPDATE invoice SET payloadRef = ? WHERE series = ? AND number = ? AND deleted = 0";
+        try {
+            beginTransaction();
+            int updated = 0;
+            try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+                for (int i = 0; i < keys.size(); i++) {
+                    ps.setLong(1, refs[i]);
+                    ps.setString(2, keys.get(i).series);
+                    ps.setString(3, keys.get(i).number);
+                    ps.addBatch();
+                }
+                for (int count : ps.executeBatch()) {
+                    if (count > 0) updated += count;
+                }
+            }
+            getConnection().commit();
+            return updated;
+        } catch (SQLException e) {
+            log.error("Error recording payload references: {}", e.getMessage());
+            try { getConnection().rollback(); } catch (SQLException ignore) {}
+            return 0;
         } finally {
-            try { getConnection().setAutoCommit(true); } catch (SQLException ignore) {}
+            endTransaction();
+        }
+    }
+
+    /**
+     * Archive reference of an invoice's raw payload, 0 if the invoice does
+     * not exist or its payload was not archived.
+     */
+    public long getPayloadRef(String series, String number) {
+        String sql = "SELECT payloadRef FROM invoice WHERE series = ? AND number = ? AND deleted = 0";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+            ps.setString(1, series);
+            ps.setString(2, number);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            log.error("Error fetching payload reference of {}-{}: {}", series, number, e.getMessage());
+            return 0;
         }
     }
 
@@ -147,14 +592,14 @@ public class ServerDatabase extends Database {
      */
     public Map<String, Integer> getInvoiceStatsBySource() {
         Map<String, Integer> stats = new HashMap<>();
-        String sql = "SELECT source, COUNT(*) as count FROM invoice GROUP BY source";
+        String sql = "SELECT source, COUNT(*) as count FROM invoice WHERE deleted = 0 GROUP BY source";
         try (PreparedStatement ps = getConnection().prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
                 stats.put(rs.getString("source"), rs.getInt("count"));
             }
         } catch (SQLException e) {
-            System.err.println("Error fetching invoice statistics: " + e.getMessage());
+            log.error("Error fetching invoice statistics", e);
         }
         return stats;
     }
@@ -164,7 +609,7 @@ public class ServerDatabase extends Database {
      */
     public String[] getRecentInvoices() {
         List<String> out = new ArrayList<>();
-        String sql = "SELECT id, series, number, source, uploadedAt FROM invoice ORDER BY uploadedAt DESC LIMIT 10";
+        String sql = "SELECT id, series, number, source, uploadedAt FROM invoice WHERE deleted = 0 ORDER BY uploadedAt DESC LIMIT 10";
         try (PreparedStatement ps = getConnection().prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
@@ -179,22 +624,106 @@ public class ServerDatabase extends Database {
                 );
             }
         } catch (SQLException e) {
-            System.err.println("Error fetching recent invoices: " + e.getMessage());
+            log.error("Error fetching recent invoices", e);
         }
         return out.toArray(new String[0]);
     }
 
-    // Make lookupItemId accessible to this class
-    private Integer lookupItemId(String name) {
-        String sql = "SELECT id FROM items WHERE name = ?";
-        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
-            ps.setString(1, name);
-            try (ResultSet rs = ps.executeQuery()) {
-                return rs.next() ? rs.getInt("id") : null;
+    /**
+     * Returns map of itemName→id.
+     */
+    private Map<String, Integer> getItemIds() {
+        Map<String, Integer> ids = new HashMap<>();
+        String sql = "SELECT id, name FROM items";
+        try (PreparedStatement ps = getConnection().prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                ids.putIfAbsent(rs.getString("name"), rs.getInt("id"));
             }
         } catch (SQLException e) {
-            System.err.println("Error looking up item: " + e.getMessage());
-            return null;
+            log.error("Error fetching item ids", e);
+        }
+        return ids;
+    }
+
+    // ──────────────────────────────── DATA CLASSES ────────────────────────────────
+
+    /**
+     * Inclusive range of invoice ids; a single id has from == to.
+     */
+    public static class IdRange {
+        public final long from;
+        public final long to;
+
+        public IdRange(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * One row of the invoice outbox. For a DELETE the fields describe the
+     * invoice as it was before it was removed.
+     */
+    public static class ChangeRecord {
+        public final long seq;
+        public final String operation; // INSERT or DELETE
+        public final long invoiceId;
+        public final String series;
+        public final String number;
+        public final double totalAfter;
+        public final String source;
+        public final String changedAt;
+
+        public ChangeRecord(long seq, String operation, long invoiceId, String series, String number,
+                            double totalAfter, String source, String changedAt) {
+            this.seq = seq;
+            this.operation = operation;
+            this.invoiceId = invoiceId;
+            this.series = series;
+            this.number = number;
+            this.totalAfter = totalAfter;
+            this.source = source;
+            this.changedAt = changedAt;
+        }
+    }
+
+    /**
+     * Header fields of a committed invoice, as published to change feeds.
+     */
+    public static class InvoiceSummary {
+        public final long id;
+        public final String series;
+        public final String number;
+        public final double totalAfter;
+        public final String source;
+
+        public InvoiceSummary(long id, String series, String number, double totalAfter, String source) {
+            this.id = id;
+            this.series = series;
+            this.number = number;
+            this.totalAfter = totalAfter;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Invoice with a resolved customer, ready to be written by {@link #saveInvoicesWithSource}.
+     */
+    public static class PendingInvoice {
+        public final String series;
+        public final String number;
+        public final int customerId;
+        public final double discount;
+        public final Map<String, Double> items;
+
+        public PendingInvoice(String series, String number, int customerId, double discount,
+                              Map<String, Double> items) {
+            this.series = series;
+            this.number = number;
+            this.customerId = customerId;
+            this.discount = discount;
+            this.items = items;
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.ancienty.database;
+
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Metrics;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Background removal of deleted invoices.
+ *
+ * Deletes only mark invoices as deleted; this purger removes the rows and
+ * their items with {@link Database#purgeDeletedInvoices(int)}, one small
+ * batch per transaction, and only in quiet periods: no invoice committed or
+ * deleted for the quiet time and the caller's idle check passing (on the
+ * server, no request holding a database slot). It stops at the first sign
+ * of activity and tries again on the next run.
+ */
+public class TombstonePurger implements InvoiceChangeListener {
+
+    private static final Logger log = LogManager.getLogger(TombstonePurger.class);
+
+    private final Database database;
+    private final int batchSize;
+    private final long quietNanos;
+    private final long intervalMs;
+    private final BooleanSupplier databaseIdle;
+    private final ScheduledExecutorService scheduler;
+    private volatile long lastChange = System.nanoTime();
+
+    private final LongAdder purged = new LongAdder();
+
+    public TombstonePurger(Database database, int batchSize, long quietMs, long intervalMs, BooleanSupplier databaseIdle) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMs);
+        this.intervalMs = intervalMs;
+        this.databaseIdle = databaseIdle;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tombstone-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        database.addInvoiceChangeListener(this);
+
+        Metrics.counter("hugin_tombstones_purged_total", "Deleted invoices physically removed", purged::sum);
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::purge, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void invoicesChanged(List<InvoiceChange> changes) {
+        lastChange = System.nanoTime();
+    }
+
+    public long getPurgedCount() {
+        return purged.sum();
+    }
+
+    private boolean isQuiet() {
+        return System.nanoTime() - lastChange >= quietNanos && databaseIdle.getAsBoolean();
+    }
+
+    private void purge() {
+        try {
+            int removed;
+            int total = 0;
+            do {
+                if (!isQuiet() || Thread.currentThread().isInterrupted()) break;
+                removed = database.purgeDeletedInvoices(batchSize);
+                total += removed;
+                purged.add(removed);
+            } while (removed > 0);
+            if (total > 0) {
+                log.debug("Purged {} deleted invoices", total);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error purging deleted invoices", e);
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package com.ancienty.gui;
 
 import com.ancienty.database.Database;
+import com.ancienty.server.model.InvoiceCodecs;
 import com.ancienty.server.model.InvoiceUploadData;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -182,9 +181,7 @@ public class JsonExportGUI {
             Database.Invoice inv = database.getInvoiceById(invId);
             if (inv == null) throw new RuntimeException("Detay bulunamadı");
             InvoiceUploadData.UploadSystem jsonData = createJsonInvoiceData(inv);
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.enable(SerializationFeature.INDENT_OUTPUT);
-            String jsonString = mapper.writeValueAsString(jsonData);
+            String jsonString = InvoiceCodecs.jsonDocumentWriter(true).writeValueAsString(jsonData);
             txtPreview.setText(jsonString);
             txtPreview.setForeground(Color.BLACK);
             btnExport.setEnabled(true);
@@ -271,10 +268,8 @@ public class JsonExportGUI {
                     file = new File(file.getAbsolutePath() + ".json");
                 }
                 InvoiceUploadData.UploadSystem jsonData = createJsonInvoiceData(invoice);
-                ObjectMapper mapper = new ObjectMapper();
-                mapper.enable(SerializationFeature.INDENT_OUTPUT);
                 try (FileWriter writer = new FileWriter(file)) {
-                    mapper.writeValue(writer, jsonData);
+                    InvoiceCodecs.jsonDocumentWriter(true).writeValue(writer, jsonData);
                 }
                 JOptionPane.showMessageDialog(frame,
                         "JSON dosyası başarıyla kaydedildi:\n" + file.getAbsolutePath(),
@@ -1,8 +1,8 @@
 package com.ancienty.gui;
 
 import com.ancienty.database.Database;
+import com.ancienty.server.model.InvoiceCodecs;
 import com.ancienty.server.model.InvoiceUploadData;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -235,8 +235,7 @@ public class XmlExportGUI {
             }
             uploadSystem.invoiceData = invoiceData;
 
-            XmlMapper xmlMapper = new XmlMapper();
-            return xmlMapper.writerWithDefaultPrettyPrinter().writeValueAsString(uploadSystem);
+            return InvoiceCodecs.xmlDocumentWriter(true).writeValueAsString(uploadSystem);
 
         } catch (Exception e) {
             System.err.println("Error creating XML content: " + e.getMessage());
@@ -0,0 +1,243 @@
+package com.ancienty.logging;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer feeding a background
+ * writer thread. Request threads claim a slot with one CAS, store the raw
+ * event and return; formatting and I/O happen on the writer thread. When the
+ * buffer is full the event is dropped and counted rather than blocking the
+ * caller, and the drop count is reported in the log once space frees up.
+ */
+class AsyncRingBufferAppender {
+
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final int DRAIN_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+
+    private static final class Event {
+        volatile long sequence;
+        long timestamp;
+        LogLevel level;
+        String logger;
+        String thread;
+        String format;
+        Object arg1;
+        Object arg2;
+        Object[] args;
+        Throwable throwable;
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDrops;
+
+    private final RollingFileWriter fileWriter;
+    private final boolean console;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private final StringBuilder line = new StringBuilder(256);
+
+    AsyncRingBufferAppender(int capacity, RollingFileWriter fileWriter, boolean console) {
+        int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+        this.ring = new Event[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+            ring[i].sequence = i;
+        }
+        this.fileWriter = fileWriter;
+        this.console = console;
+        this.writerThread = new Thread(this::drainLoop, "log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    void publish(LogLevel level, String logger, String format,
+                 Object arg1, Object arg2, Object[] args, Throwable throwable) {
+        long slot;
+        Event event;
+        while (true) {
+            slot = tail.get();
+            event = ring[(int) (slot & mask)];
+            long diff = event.sequence - slot;
+            if (diff == 0) {
+                if (tail.compareAndSet(slot, slot + 1)) break;
+            } else if (diff < 0) {
+                // Slot still holds an undrained event from the previous lap
+                dropped.incrementAndGet();
+                return;
+            }
+            // diff > 0: another producer claimed this slot after our read of tail; retry
+        }
+
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.logger = logger;
+        event.thread = Thread.currentThread().getName();
+        event.format = format;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.args = args;
+        event.throwable = throwable;
+        event.sequence = slot + 1; // publish to the writer
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer thread after it has drained everything published so far.
+     */
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            int drained = drainBatch();
+            if (drained == 0) {
+                flushOutputs();
+                if (!running && head == tail.get()) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        if (fileWriter != null) {
+            fileWriter.close();
+        }
+    }
+
+    private int drainBatch() {
+        int drained = 0;
+        long next = head;
+        while (drained < DRAIN_BATCH) {
+            Event event = ring[(int) (next & mask)];
+            if (event.sequence != next + 1) {
+                break;
+            }
+            write(format(event));
+            clear(event);
+            event.sequence = next + ring.length; // free the slot for the next lap
+            next++;
+            drained++;
+        }
+        head = next;
+        if (drained > 0) {
+            reportDrops();
+        }
+        return drained;
+    }
+
+    private void reportDrops() {
+        long total = dropped.get();
+        if (total != reportedDrops) {
+            line.setLength(0);
+            line.append(TIMESTAMP.format(Instant.now())).append(" WARN  [log-writer] AsyncRingBufferAppender - ")
+                .append(total - reportedDrops).append(" log events dropped (buffer full)\n");
+            reportedDrops = total;
+            write(line.toString());
+        }
+    }
+
+    private String format(Event event) {
+        line.setLength(0);
+        line.append(TIMESTAMP.format(Instant.ofEpochMilli(event.timestamp))).append(' ');
+        String levelName = event.level.name();
+        line.append(levelName);
+        for (int i = levelName.length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(" [").append(event.thread).append("] ").append(event.logger).append(" - ");
+        appendMessage(event);
+        line.append('\n');
+        if (event.throwable != null) {
+            StringWriter trace = new StringWriter();
+            event.throwable.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+        return line.toString();
+    }
+
+    private void appendMessage(Event event) {
+        String format = event.format;
+        if (format == null) {
+            line.append("null");
+            return;
+        }
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = format.indexOf("{}", start)) >= 0) {
+            line.append(format, start, placeholder);
+            line.append(argument(event, argIndex++));
+            start = placeholder + 2;
+        }
+        line.append(format, start, format.length());
+    }
+
+    private static Object argument(Event event, int index) {
+        if (event.args != null) {
+            return index < event.args.length ? event.args[index] : "{}";
+        }
+        if (index == 0) return event.arg1;
+        if (index == 1) return event.arg2;
+        return "{}";
+    }
+
+    private static void clear(Event event) {
+        event.format = null;
+        event.arg1 = null;
+        event.arg2 = null;
+        event.args = null;
+        event.throwable = null;
+        event.thread = null;
+    }
+
+    private void write(String text) {
+        if (console) {
+            System.out.print(text);
+        }
+        if (fileWriter != null) {
+            try {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                fileWriter.write(bytes, bytes.length);
+            } catch (IOException e) {
+                System.err.println("Log dosyasına yazılamadı: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flushOutputs() {
+        if (console) {
+            System.out.flush();
+        }
+        if (fileWriter != null) {
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                System.err.println("Log dosyasına yazılamadı: " + e.getMessage());
+            }
+        }
+    }
+}
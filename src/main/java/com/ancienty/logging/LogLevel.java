@@ -0,0 +1,25 @@
+package com.ancienty.logging;
+
+/**
+ * Log levels in increasing severity. OFF disables a logger entirely.
+ */
+public enum LogLevel {
+    TRACE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF;
+
+    /**
+     * Parses a level name, falling back to the given default for null or unknown names.
+     */
+    public static LogLevel parse(String name, LogLevel fallback) {
+        if (name == null) return fallback;
+        try {
+            return LogLevel.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
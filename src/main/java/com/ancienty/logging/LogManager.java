@@ -0,0 +1,103 @@
+package com.ancienty.logging;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry point of the logging package. Hands out one Logger per component and
+ * owns the shared asynchronous appender. Until configure() is called, loggers
+ * run at INFO and write to the console only.
+ */
+public final class LogManager {
+
+    private static final Map<String, Logger> LOGGERS = new ConcurrentHashMap<>();
+    private static volatile LogSettings settings = consoleDefaults();
+    private static volatile AsyncRingBufferAppender appender;
+
+    private LogManager() {
+    }
+
+    public static Logger getLogger(Class<?> type) {
+        return getLogger(type.getSimpleName());
+    }
+
+    public static Logger getLogger(String name) {
+        return LOGGERS.computeIfAbsent(name, n -> new Logger(n, levelFor(n, settings)));
+    }
+
+    /**
+     * Applies new settings: replaces the appender and updates the level of
+     * every logger created so far.
+     */
+    public static synchronized void configure(LogSettings newSettings) {
+        LogSettings effective = newSettings != null ? newSettings : LogSettings.defaults();
+        RollingFileWriter fileWriter = null;
+        if (effective.file != null && !effective.file.isBlank()) {
+            try {
+                long maxBytes = Math.max(1, effective.maxFileSizeMb) * 1024L * 1024L;
+                fileWriter = new RollingFileWriter(effective.file, maxBytes, effective.maxFiles);
+            } catch (IOException e) {
+                System.err.println("Log dosyası açılamadı, yalnızca konsola yazılacak: " + e.getMessage());
+            }
+        }
+        boolean console = effective.console || fileWriter == null;
+        int bufferSize = effective.bufferSize > 0 ? effective.bufferSize : 8192;
+
+        AsyncRingBufferAppender previous = appender;
+        appender = new AsyncRingBufferAppender(bufferSize, fileWriter, console);
+        settings = effective;
+        for (Logger logger : LOGGERS.values()) {
+            logger.setLevel(levelFor(logger.getName(), effective));
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    public static boolean isPayloadDumpEnabled() {
+        return settings.payloadDump;
+    }
+
+    public static long getDroppedCount() {
+        AsyncRingBufferAppender current = appender;
+        return current != null ? current.getDroppedCount() : 0;
+    }
+
+    /**
+     * Drains pending events and stops the writer thread.
+     */
+    public static synchronized void shutdown() {
+        if (appender != null) {
+            appender.shutdown();
+            appender = null;
+        }
+    }
+
+    static AsyncRingBufferAppender appender() {
+        AsyncRingBufferAppender current = appender;
+        if (current == null) {
+            synchronized (LogManager.class) {
+                if (appender == null) {
+                    appender = new AsyncRingBufferAppender(LogSettings.defaults().bufferSize, null, true);
+                }
+                current = appender;
+            }
+        }
+        return current;
+    }
+
+    private static LogLevel levelFor(String name, LogSettings source) {
+        LogLevel base = LogLevel.parse(source.level, LogLevel.INFO);
+        if (source.components != null) {
+            return LogLevel.parse(source.components.get(name), base);
+        }
+        return base;
+    }
+
+    private static LogSettings consoleDefaults() {
+        LogSettings defaults = LogSettings.defaults();
+        defaults.file = null;
+        return defaults;
+    }
+}
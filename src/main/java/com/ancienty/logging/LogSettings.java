@@ -0,0 +1,30 @@
+package com.ancienty.logging;
+
+import java.util.Map;
+
+/**
+ * Logging configuration, read from the "logging" section of server-config.json.
+ */
+public class LogSettings {
+    public String level;                   // default level for all components
+    public Map<String, String> components; // per-component level overrides, keyed by logger name
+    public String file;                    // rolling log file; null disables file output
+    public int maxFileSizeMb;              // roll the file once it reaches this size
+    public int maxFiles;                   // rolled files to keep (server.log.1 ... server.log.N)
+    public boolean console;                // also write to standard output
+    public boolean payloadDump;            // log raw request payloads at DEBUG
+    public int bufferSize;                 // ring buffer slots, rounded up to a power of two
+
+    public static LogSettings defaults() {
+        LogSettings settings = new LogSettings();
+        settings.level = "INFO";
+        settings.components = Map.of();
+        settings.file = "logs/server.log";
+        settings.maxFileSizeMb = 10;
+        settings.maxFiles = 5;
+        settings.console = true;
+        settings.payloadDump = false;
+        settings.bufferSize = 8192;
+        return settings;
+    }
+}
@@ -0,0 +1,85 @@
+package com.ancienty.logging;
+
+/**
+ * Component logger. Messages use "{}" placeholders and are formatted on the
+ * appender thread, so a disabled call costs one level comparison and an
+ * enabled call costs one ring-buffer slot. Primitive arguments are boxed at
+ * the call site; guard those calls with isDebugEnabled() on hot paths.
+ */
+public final class Logger {
+
+    private final String name;
+    private volatile LogLevel level;
+
+    Logger(String name, LogLevel level) {
+        this.name = name;
+        this.level = level;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void setLevel(LogLevel level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(LogLevel candidate) {
+        return candidate.ordinal() >= level.ordinal() && candidate != LogLevel.OFF;
+    }
+
+    public boolean isTraceEnabled() { return isEnabled(LogLevel.TRACE); }
+    public boolean isDebugEnabled() { return isEnabled(LogLevel.DEBUG); }
+    public boolean isInfoEnabled() { return isEnabled(LogLevel.INFO); }
+
+    /**
+     * True when raw request payloads may be logged: DEBUG is enabled for this
+     * component and payload dumps are switched on in the configuration.
+     */
+    public boolean isPayloadDumpEnabled() {
+        return isDebugEnabled() && LogManager.isPayloadDumpEnabled();
+    }
+
+    // ──────────────────────────────── TRACE ────────────────────────────────
+
+    public void trace(String message) { log(LogLevel.TRACE, message, null, null, null, null); }
+    public void trace(String format, Object arg) { log(LogLevel.TRACE, format, arg, null, null, null); }
+    public void trace(String format, Object arg1, Object arg2) { log(LogLevel.TRACE, format, arg1, arg2, null, null); }
+    public void trace(String format, Object... args) { log(LogLevel.TRACE, format, null, null, args, null); }
+
+    // ──────────────────────────────── DEBUG ────────────────────────────────
+
+    public void debug(String message) { log(LogLevel.DEBUG, message, null, null, null, null); }
+    public void debug(String format, Object arg) { log(LogLevel.DEBUG, format, arg, null, null, null); }
+    public void debug(String format, Object arg1, Object arg2) { log(LogLevel.DEBUG, format, arg1, arg2, null, null); }
+    public void debug(String format, Object... args) { log(LogLevel.DEBUG, format, null, null, args, null); }
+
+    // ──────────────────────────────── INFO ────────────────────────────────
+
+    public void info(String message) { log(LogLevel.INFO, message, null, null, null, null); }
+    public void info(String format, Object arg) { log(LogLevel.INFO, format, arg, null, null, null); }
+    public void info(String format, Object arg1, Object arg2) { log(LogLevel.INFO, format, arg1, arg2, null, null); }
+    public void info(String format, Object... args) { log(LogLevel.INFO, format, null, null, args, null); }
+
+    // ──────────────────────────────── WARN ────────────────────────────────
+
+    public void warn(String message) { log(LogLevel.WARN, message, null, null, null, null); }
+    public void warn(String format, Object arg) { log(LogLevel.WARN, format, arg, null, null, null); }
+    public void warn(String format, Object arg1, Object arg2) { log(LogLevel.WARN, format, arg1, arg2, null, null); }
+    public void warn(String format, Object... args) { log(LogLevel.WARN, format, null, null, args, null); }
+
+    // ──────────────────────────────── ERROR ────────────────────────────────
+
+    public void error(String message) { log(LogLevel.ERROR, message, null, null, null, null); }
+    public void error(String format, Object arg) { log(LogLevel.ERROR, format, arg, null, null, null); }
+    public void error(String format, Object arg1, Object arg2) { log(LogLevel.ERROR, format, arg1, arg2, null, null); }
+    public void error(String format, Object... args) { log(LogLevel.ERROR, format, null, null, args, null); }
+    public void error(String message, Throwable throwable) { log(LogLevel.ERROR, message, null, null, null, throwable); }
+
+    private void log(LogLevel eventLevel, String format, Object arg1, Object arg2, Object[] args, Throwable throwable) {
+        if (eventLevel.ordinal() < level.ordinal()) {
+            return;
+        }
+        LogManager.appender().publish(eventLevel, name, format, arg1, arg2, args, throwable);
+    }
+}
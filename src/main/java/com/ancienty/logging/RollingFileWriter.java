@@ -0,0 +1,73 @@
+package com.ancienty.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Size-based rolling log file. When the active file reaches the size limit it
+ * becomes file.1, the previous file.1 becomes file.2 and so on; the oldest
+ * file beyond maxFiles is deleted. Only used from the appender thread.
+ */
+class RollingFileWriter {
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private OutputStream out;
+    private long written;
+
+    RollingFileWriter(String path, long maxBytes, int maxFiles) throws IOException {
+        this.file = new File(path);
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(0, maxFiles);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Log dizini oluşturulamadı: " + parent);
+        }
+        open();
+    }
+
+    void write(byte[] data, int length) throws IOException {
+        if (written > 0 && written + length > maxBytes) {
+            roll();
+        }
+        out.write(data, 0, length);
+        written += length;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    void close() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        written = file.length();
+    }
+
+    private void roll() throws IOException {
+        out.close();
+        if (maxFiles == 0) {
+            file.delete();
+        } else {
+            new File(file.getPath() + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File source = new File(file.getPath() + "." + i);
+                if (source.exists()) {
+                    source.renameTo(new File(file.getPath() + "." + (i + 1)));
+                }
+            }
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+        open();
+    }
+}
@@ -0,0 +1,85 @@
+package com.ancienty.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with log-linear buckets, as in HdrHistogram.
+ *
+ * Durations are counted in microseconds. The first 2 * SUB_BUCKETS buckets
+ * are one microsecond wide. Above that, every power of two is split into
+ * SUB_BUCKETS buckets of equal width. A bucket is therefore at most 1/16 of
+ * its lower bound wide, so quantiles are read with at most ~6% error at every
+ * scale. Buckets reach up to 2^27 µs (about 134 s), with a last bucket for
+ * anything longer. Finding the bucket is one leading-zero count and a shift,
+ * and each bucket is a LongAdder, so recording takes no lock and does not
+ * allocate.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MICROS_BITS = 27;
+
+    static final int BOUNDED_BUCKETS = bucketIndex(1L << MAX_MICROS_BITS) + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDED_BUCKETS + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int index = micros > 1L << MAX_MICROS_BITS ? BOUNDED_BUCKETS : bucketIndex(micros);
+        buckets[index].increment();
+        count.increment();
+        sumNanos.add(Math.max(0, nanos));
+    }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Per-bucket counts, not cumulative; the last entry is the overflow bucket.
+     */
+    long[] bucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Bucket whose range (lower bound exclusive, upper bound inclusive) holds
+     * the given number of microseconds.
+     */
+    private static int bucketIndex(long micros) {
+        long x = Math.max(0, micros - 1);
+        // Power-of-two range above the linear buckets; 0 inside them
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(x) - SUB_BUCKET_BITS);
+        return SUB_BUCKETS * shift + (int) (x >> shift);
+    }
+
+    static double upperBoundSeconds(int bucket) {
+        int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+        long upperMicros = (long) (bucket - SUB_BUCKETS * shift + 1) << shift;
+        return upperMicros / 1_000_000.0;
+    }
+}
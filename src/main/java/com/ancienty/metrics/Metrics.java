@@ -0,0 +1,140 @@
+package com.ancienty.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry.
+ *
+ * Metrics are identified by name plus label pairs, e.g.
+ * {@code Metrics.counter("hugin_tcp_requests_total", "...", "command", "QueryInvoice")}.
+ * Looking one up builds a key string, so hot paths should fetch their
+ * counters and histograms once and keep them. Values that already live
+ * elsewhere (queue sizes, cache statistics) are registered as callbacks and
+ * read only when the registry is scraped.
+ */
+public final class Metrics {
+
+    private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        // Rendered label set ("" or {a="b",...}) -> Counter, Histogram, LongSupplier or DoubleSupplier
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(renderLabels(labels), key -> new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).series.computeIfAbsent(renderLabels(labels), key -> new Histogram());
+    }
+
+    /**
+     * Counter whose value is kept by someone else; replaces an earlier registration of the same series.
+     */
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).series.put(renderLabels(labels), value);
+    }
+
+    /**
+     * Gauge read on every scrape; replaces an earlier registration of the same series.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series.put(renderLabels(labels), value);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : FAMILIES.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            family.series.forEach((labels, metric) -> writeSeries(out, family.name, labels, metric));
+        }
+        return out.toString();
+    }
+
+    private static void writeSeries(StringBuilder out, String name, String labels, Object metric) {
+        if (metric instanceof Counter) {
+            sample(out, name, labels, ((Counter) metric).get());
+        } else if (metric instanceof LongSupplier) {
+            sample(out, name, labels, ((LongSupplier) metric).getAsLong());
+        } else if (metric instanceof DoubleSupplier) {
+            out.append(name).append(labels).append(' ').append(formatDouble(((DoubleSupplier) metric).getAsDouble())).append('\n');
+        } else if (metric instanceof Histogram) {
+            Histogram histogram = (Histogram) metric;
+            long[] counts = histogram.bucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < Histogram.BOUNDED_BUCKETS ? formatDouble(Histogram.upperBoundSeconds(i)) : "+Inf";
+                sample(out, name + "_bucket", withLabel(labels, "le", le), cumulative);
+            }
+            out.append(name).append("_sum").append(labels).append(' ')
+               .append(formatDouble(histogram.getSumNanos() / 1e9)).append('\n');
+            // Buckets and count are read separately; report the bucket total so they always agree
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " already registered as " + family.type);
+        }
+        return family;
+    }
+
+    private static String renderLabels(String... labels) {
+        if (labels.length == 0) return "";
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder rendered = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) rendered.append(',');
+            rendered.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return rendered.append('}').toString();
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
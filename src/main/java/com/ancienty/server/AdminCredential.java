@@ -0,0 +1,31 @@
+package com.ancienty.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * The admin API key (server.admin.apiKey) that destructive commands, bulk
+ * delete on HTTP and TCP, must present. Without a configured key those
+ * commands are disabled.
+ */
+final class AdminCredential {
+
+    private final byte[] key;
+
+    AdminCredential(String key) {
+        this.key = key != null ? key.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    boolean isConfigured() {
+        return key != null;
+    }
+
+    /**
+     * Compares in constant time, so the key cannot be guessed byte by byte
+     * from response times.
+     */
+    boolean matches(String presented) {
+        return key != null && presented != null
+            && MessageDigest.isEqual(key, presented.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,137 @@
+package com.ancienty.server;
+
+import com.ancienty.metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control shared by the TCP and HTTP servers.
+ * Bounds concurrent TCP connections, concurrent HTTP exchanges, queued work
+ * and in-flight database operations, so overload is answered with a fast
+ * "busy" reply instead of an ever-growing queue.
+ */
+public class AdmissionController {
+
+    private final Semaphore tcpConnections;
+    private final Semaphore httpExchanges;
+    private final Semaphore dbOperations;
+    private final int maxDbOperations;
+    private final long dbAcquireTimeoutMs;
+    private final int workerThreads;
+    private final int workQueueCapacity;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionController(ServerConfig config) {
+        int maxConnections = config.getMaxConnections();
+        int maxDbOperations = config.getMaxInFlightDbOperations();
+        this.tcpConnections = new Semaphore(maxConnections);
+        this.httpExchanges = new Semaphore(maxConnections);
+        this.dbOperations = new Semaphore(maxDbOperations);
+        this.maxDbOperations = maxDbOperations;
+        this.dbAcquireTimeoutMs = config.getDbAcquireTimeoutMs();
+        this.workerThreads = config.getWorkerThreads();
+        this.workQueueCapacity = config.getWorkQueueCapacity();
+        this.retryAfterSeconds = config.getRetryAfterSeconds();
+
+        Metrics.gauge("hugin_tcp_open_connections", "Open TCP connections",
+            () -> maxConnections - tcpConnections.availablePermits());
+        Metrics.gauge("hugin_http_exchanges_in_flight", "HTTP exchanges past admission control",
+            () -> maxConnections - httpExchanges.availablePermits());
+        Metrics.gauge("hugin_db_operations_in_flight", "Requests holding a database slot",
+            () -> maxDbOperations - dbOperations.availablePermits());
+        Metrics.counter("hugin_admission_rejected_total", "Requests answered busy by admission control", rejected::get);
+    }
+
+    public boolean tryAcquireTcpConnection() {
+        return admit(tcpConnections.tryAcquire());
+    }
+
+    public void releaseTcpConnection() {
+        tcpConnections.release();
+    }
+
+    public boolean tryAcquireHttpExchange() {
+        return admit(httpExchanges.tryAcquire());
+    }
+
+    public void releaseHttpExchange() {
+        httpExchanges.release();
+    }
+
+    /**
+     * Waits up to the configured timeout for a database slot.
+     */
+    public boolean tryAcquireDbOperation() {
+        try {
+            return admit(dbOperations.tryAcquire(dbAcquireTimeoutMs, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return admit(false);
+        }
+    }
+
+    /**
+     * Waits as long as it takes for a database slot; for background writers
+     * that have no client waiting on a quick 503.
+     */
+    public void acquireDbOperation() throws InterruptedException {
+        dbOperations.acquire();
+    }
+
+    public void releaseDbOperation() {
+        dbOperations.release();
+    }
+
+    /**
+     * True while no request holds a database slot; background maintenance
+     * checks this to stay out of the way of traffic.
+     */
+    public boolean isDatabaseIdle() {
+        return dbOperations.availablePermits() == maxDbOperations;
+    }
+
+    /**
+     * Records a rejection that happened outside this controller (e.g. a full work queue).
+     */
+    public void recordRejection() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Fixed-size worker pool with a bounded queue. Work that does not fit is
+     * passed to the rejection handler instead of queueing without limit.
+     */
+    public ThreadPoolExecutor newWorkerPool(String namePrefix, RejectedExecutionHandler rejectionHandler) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(workQueueCapacity), threadFactory, rejectionHandler);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private boolean admit(boolean acquired) {
+        if (!acquired) {
+            rejected.incrementAndGet();
+        }
+        return acquired;
+    }
+}
@@ -0,0 +1,158 @@
+package com.ancienty.server;
+
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.server.model.InvoiceUploadData;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background persistence for asynchronous HTTP uploads.
+ *
+ * Accepted documents wait in a bounded queue; a single writer thread drains
+ * them in batches, saves each batch in one transaction through
+ * {@link InvoiceIngestService} and records the outcome on the upload tickets.
+ * The writer takes a database slot from the admission controller like any
+ * request, so async uploads share the database fairly with synchronous ones.
+ * Saved documents have their request body archived like synchronous uploads.
+ */
+class AsyncUploadQueue {
+
+    private static final Logger log = LogManager.getLogger(AsyncUploadQueue.class);
+    private static final long POLL_MS = 1000;
+
+    private static class PendingUpload {
+        final UploadTicketStore.Ticket ticket;
+        final InvoiceUploadData.UploadSystem document;
+        // The request body as received, archived once the document is saved
+        final InvoiceIngestService.Format format;
+        final Charset charset;
+        final byte[] payload;
+
+        PendingUpload(UploadTicketStore.Ticket ticket, InvoiceUploadData.UploadSystem document,
+                      InvoiceIngestService.Format format, Charset charset, byte[] payload) {
+            this.ticket = ticket;
+            this.document = document;
+            this.format = format;
+            this.charset = charset;
+            this.payload = payload;
+        }
+    }
+
+    private final InvoiceIngestService ingestService;
+    private final AdmissionController admission;
+    private final UploadTicketStore tickets;
+    private final BlockingQueue<PendingUpload> queue;
+    private final int batchSize;
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    AsyncUploadQueue(InvoiceIngestService ingestService, AdmissionController admission, UploadTicketStore tickets,
+                     int capacity, int batchSize) {
+        this.ingestService = ingestService;
+        this.admission = admission;
+        this.tickets = tickets;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.writerThread = new Thread(this::writeLoop, "upload-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        writerThread.start();
+    }
+
+    /**
+     * Stops accepting work and lets the writer finish what is already queued.
+     */
+    void stop() {
+        running = false;
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a validated document with the payload it was decoded from.
+     *
+     * @return its ticket, or null if the queue or the ticket store is full
+     */
+    UploadTicketStore.Ticket submit(InvoiceUploadData.UploadSystem document, InvoiceIngestService.Format format,
+                                    Charset charset, byte[] payload) {
+        if (!running) return null;
+        UploadTicketStore.Ticket ticket = tickets.create();
+        if (ticket == null) {
+            return null;
+        }
+        if (!queue.offer(new PendingUpload(ticket, document, format, charset, payload))) {
+            tickets.discard(ticket);
+            return null;
+        }
+        return ticket;
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<PendingUpload> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingUpload first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    tickets.purgeExpired();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                persist(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Error persisting async upload batch", e);
+                for (PendingUpload upload : batch) {
+                    tickets.complete(upload.ticket, false, "Fatura Kaydedilemedi");
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void persist(List<PendingUpload> batch) throws InterruptedException {
+        List<InvoiceUploadData.UploadSystem> documents = new ArrayList<>(batch.size());
+        for (PendingUpload upload : batch) {
+            documents.add(upload.document);
+        }
+
+        admission.acquireDbOperation();
+        boolean[] saved;
+        try {
+            saved = ingestService.openSession("HTTP").save(documents);
+        } finally {
+            admission.releaseDbOperation();
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingUpload upload = batch.get(i);
+            if (saved[i]) {
+                ingestService.archivePayload(upload.document, upload.format, upload.charset,
+                    upload.payload, 0, upload.payload.length);
+            }
+            tickets.complete(upload.ticket, saved[i], saved[i] ? "Fatura Kaydedildi" : "Fatura Kaydedilemedi");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Async upload batch of {} invoices persisted", batch.size());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.ancienty.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request body that fails once more than a fixed number of bytes have been
+ * read from it. Wrapped around the decompressed stream, so the limit applies
+ * to what the handler actually holds, not to what came over the wire.
+ */
+class BoundedInputStream extends FilterInputStream {
+
+    /**
+     * The body is larger than the configured limit; answered with 413.
+     */
+    static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(long limit) {
+            super("Request body exceeds " + limit + " bytes");
+        }
+    }
+
+    private final long limit;
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+        this.remaining = limit;
+    }
+
+    /**
+     * True if the exception, or one it wraps (some parsers wrap I/O errors),
+     * comes from an exceeded limit.
+     */
+    static boolean isLimitExceeded(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LimitExceededException) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            consumed(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // Ask for one byte more than allowed so an exact-size body still passes
+        int n = super.read(b, off, (int) Math.min(len, remaining + 1));
+        if (n > 0) {
+            consumed(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining + 1));
+        if (skipped > 0) {
+            consumed(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void consumed(long n) throws LimitExceededException {
+        remaining -= n;
+        if (remaining < 0) {
+            throw new LimitExceededException(limit);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.ancienty.server;
+
+import com.ancienty.database.ServerDatabase;
+
+import java.util.Locale;
+
+/**
+ * Text format of the invoice change feed, the same on HTTP and TCP: one line
+ * per change, fields separated by tabs:
+ * seq, operation (INSERT/DELETE), invoice id, series, number, total, source, time.
+ */
+final class ChangeFeedFormat {
+
+    private ChangeFeedFormat() {}
+
+    static void appendLine(StringBuilder out, ServerDatabase.ChangeRecord change) {
+        out.append(change.seq).append('\t')
+           .append(change.operation).append('\t')
+           .append(change.invoiceId).append('\t')
+           .append(change.series).append('\t')
+           .append(change.number).append('\t')
+           .append(String.format(Locale.ROOT, "%.2f", change.totalAfter)).append('\t')
+           .append(change.source).append('\t')
+           .append(change.changedAt).append('\n');
+    }
+}
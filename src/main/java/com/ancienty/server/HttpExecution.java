@@ -0,0 +1,145 @@
+package com.ancienty.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution layer of the HTTP server.
+ *
+ * Two modes, selected by http.executor.mode in server-config.json:
+ * - "bounded": fixed worker pool with a bounded queue (sizes from the admission section)
+ * - "virtual": one virtual thread per exchange; concurrency is bounded by the
+ *   admission exchange limit instead of a pool size
+ *
+ * Every exchange is counted while it waits and while it runs, so queue depth
+ * and active workers are available in both modes. Endpoints may additionally
+ * have their own concurrency limit, so a slow endpoint cannot take every worker.
+ */
+public class HttpExecution implements Executor {
+
+    public static final String MODE_BOUNDED = "bounded";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private final String mode;
+    private final ExecutorService delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final Map<String, EndpointLimit> endpointLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Concurrency limit of one endpoint.
+     */
+    public static class EndpointLimit {
+        public final int maxConcurrent;
+        private final Semaphore permits;
+        private final AtomicLong rejected = new AtomicLong();
+
+        EndpointLimit(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+            this.permits = new Semaphore(maxConcurrent);
+        }
+
+        public boolean tryAcquire() {
+            if (permits.tryAcquire()) {
+                return true;
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        public void release() {
+            permits.release();
+        }
+
+        public int getInFlight() {
+            return maxConcurrent - permits.availablePermits();
+        }
+
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+    }
+
+    public HttpExecution(ServerConfig config, AdmissionController admission, RejectedExecutionHandler rejectionHandler) {
+        if (MODE_VIRTUAL.equalsIgnoreCase(config.getHttpExecutorMode())) {
+            this.mode = MODE_VIRTUAL;
+            this.delegate = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-vworker-", 1).factory());
+        } else {
+            this.mode = MODE_BOUNDED;
+            this.delegate = admission.newWorkerPool("http-worker", rejectionHandler);
+        }
+        config.getHttpEndpointLimits().forEach((endpoint, limit) -> {
+            if (limit != null && limit > 0) {
+                endpointLimits.put(endpoint, new EndpointLimit(limit));
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the limit for the endpoint, or null when it is unlimited
+     */
+    public EndpointLimit getEndpointLimit(String endpoint) {
+        return endpointLimits.get(endpoint);
+    }
+
+    public Map<String, EndpointLimit> getEndpointLimits() {
+        return endpointLimits;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getActiveWorkers() {
+        return active.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Pool size in bounded mode, 0 in virtual mode (no fixed pool).
+     */
+    public int getPoolSize() {
+        return delegate instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) delegate).getPoolSize() : 0;
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
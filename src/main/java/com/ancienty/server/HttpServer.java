@@ -2,258 +2,1588 @@ package com.ancienty.server;
 
 import com.ancienty.database.Database;
 import com.ancienty.database.ServerDatabase;
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Counter;
+import com.ancienty.metrics.Histogram;
+import com.ancienty.metrics.Metrics;
+import com.ancienty.server.model.InvoiceCodecs;
 import com.ancienty.server.model.InvoiceUploadData;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import javax.xml.namespace.QName;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Phase 2 HTTP Server implementation with proper JSON/XML libraries
- * Uses Gson for JSON and Jackson for XML processing
+ * Uploads are decoded and saved by the shared {@link InvoiceIngestService}
  * Enhanced with better error handling and debugging
+ *
+ * Requests run on the configured {@link HttpExecution} (bounded pool or virtual
+ * threads) behind an admission filter; when the pool, the exchange limit, the
+ * endpoint's own limit or the database slots are exhausted the server answers
+ * 503 with Retry-After instead of queueing.
  */
 public class HttpServer {
     
+    private static final Logger log = LogManager.getLogger(HttpServer.class);
+    
     private final Database database;
     private final ServerConfig config;
+    private final AdmissionController admission;
+    private final InvoiceQueryCache queryCache;
     private com.sun.net.httpserver.HttpServer server;
+    private HttpExecution execution;
+    private UploadTicketStore uploadTickets;
+    private AsyncUploadQueue asyncUploads;
+    private InvoiceEventFeed eventFeed; // null unless the database is a ServerDatabase
+    private PayloadArchive payloadArchive; // null when archiving is disabled
+    private Map<String, RateLimiter> rateLimiters;
+    private Set<String> rateLimitApiKeys;
+    private AdminCredential adminCredential;
+    
+    // Exchange attribute carrying the ETag a successful QueryInvoice response is sent with
+    private static final String ETAG_ATTRIBUTE = "com.ancienty.server.etag";
     
-    // Proper library instances
-    private final Gson gson;
-    private final ObjectMapper jsonMapper;
-    private final XmlMapper xmlMapper;
+    // Set while an exchange the worker pool rejected runs on the dispatcher thread
+    private static final ThreadLocal<Boolean> OVERLOADED = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    
+    private final InvoiceIngestService ingestService;
 
-    public HttpServer(Database database, ServerConfig config) {
+    public HttpServer(Database database, ServerConfig config, AdmissionController admission, InvoiceQueryCache queryCache,
+                      InvoiceIngestService ingestService) {
         this.database = database;
         this.config = config;
-        this.gson = new GsonBuilder().setPrettyPrinting().create();
-        this.jsonMapper = new ObjectMapper();
-        this.xmlMapper = new XmlMapper();
+        this.admission = admission;
+        this.queryCache = queryCache;
+        this.ingestService = ingestService;
+    }
+
+    public void start() throws IOException {
+        server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(config.getHttpPort()), 0);
         
-        // Configure to ignore unknown properties
-        this.xmlMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        rateLimiters = RateLimiter.fromRules(config.getHttpRateLimits(), config.getRateLimitMaxClients());
+        rateLimitApiKeys = config.getRateLimitApiKeys();
+        adminCredential = new AdminCredential(config.getAdminApiKey());
+        uploadTickets = new UploadTicketStore(config.getAsyncUploadMaxTickets(),
+            TimeUnit.SECONDS.toMillis(config.getAsyncUploadTicketTtlSeconds()));
+        asyncUploads = new AsyncUploadQueue(ingestService, admission, uploadTickets,
+            config.getAsyncUploadQueueCapacity(), config.getHttpBatchCommitSize());
+        asyncUploads.start();
+        
+        // Register endpoints behind admission control
+        AdmissionFilter admissionFilter = new AdmissionFilter(exchange -> true);
+        // Async uploads only parse and enqueue; the background writer takes its own database slot
+        createContext(config.getUploadInvoiceEndpoint(), new UploadInvoiceHandler())
+            .getFilters().add(new AdmissionFilter(exchange -> !isAsyncRequest(exchange)));
+        // The batch takes a database slot per commit, not while it waits for the client to send more lines
+        createContext(config.getBatchUploadInvoiceEndpoint(), new BatchUploadInvoiceHandler())
+            .getFilters().add(new AdmissionFilter(exchange -> false));
+        // Conditional GETs are answered before admission control, without a database slot
+        List<Filter> queryFilters = createContext(config.getQueryInvoiceEndpoint(), new QueryInvoiceHandler()).getFilters();
+        queryFilters.add(new NotModifiedFilter());
+        queryFilters.add(admissionFilter);
+        createContext(config.getMultiQueryInvoiceEndpoint(), new MultiQueryInvoiceHandler()).getFilters().add(admissionFilter);
+        // Event streams outlive their exchange; they are bounded by the subscriber limit instead
+        if (database instanceof ServerDatabase) {
+            eventFeed = new InvoiceEventFeed((ServerDatabase) database, config.getEventFeedMaxSubscribers(),
+                config.getEventFeedBufferSize(), config.getEventFeedPageSize());
+            createContext(config.getInvoiceEventsEndpoint(), new InvoiceEventsHandler());
+            createContext(config.getInvoiceChangesEndpoint(), new InvoiceChangesHandler()).getFilters().add(admissionFilter);
+            // Bulk delete only exists with an admin key; the key is checked before admission and the body
+            if (adminCredential.isConfigured()) {
+                List<Filter> deleteFilters = createContext(config.getDeleteInvoicesEndpoint(), new DeleteInvoicesHandler()).getFilters();
+                deleteFilters.add(new AdminKeyFilter());
+                deleteFilters.add(admissionFilter);
+            } else {
+                log.info("{} disabled: no admin.apiKey configured", config.getDeleteInvoicesEndpoint());
+            }
+        }
+        payloadArchive = ingestService.getPayloadArchive();
+        if (payloadArchive != null) {
+            createContext(config.getInvoicePayloadEndpoint(), new InvoicePayloadHandler()).getFilters().add(admissionFilter);
+        }
+        // Status stays outside admission control so it answers while the server is overloaded
+        createContext(config.getStatusEndpoint(), new StatusHandler());
+        createContext(config.getUploadStatusEndpoint(), new UploadStatusHandler());
+        createContext(config.getMetricsEndpoint(), new MetricsHandler());
+        
+        // Rejected exchanges (bounded mode) run on the dispatcher just long enough to answer 503
+        execution = new HttpExecution(config, admission, (task, pool) -> {
+            admission.recordRejection();
+            OVERLOADED.set(Boolean.TRUE);
+            try {
+                task.run();
+            } finally {
+                OVERLOADED.remove();
+            }
+        });
+        server.setExecutor(execution);
+        server.start();
+        
+        Metrics.gauge("hugin_http_executor_queue_depth", "HTTP exchanges waiting for a worker", execution::getQueueDepth);
+        Metrics.gauge("hugin_http_executor_active_workers", "HTTP workers running an exchange", execution::getActiveWorkers);
+        Metrics.gauge("hugin_async_upload_queue_depth", "Async uploads waiting for the background writer", asyncUploads::getQueueDepth);
+        Metrics.gauge("hugin_upload_tickets", "Async upload tickets held in memory", uploadTickets::size);
+        Metrics.counter("hugin_log_events_dropped_total", "Log events dropped because the log buffer was full",
+            LogManager::getDroppedCount);
+        
+        log.info("HTTP Server started on port {} ({} executor)", config.getHttpPort(), execution.getMode());
+        log.info("Endpoints: POST {}, POST {}, GET {}, POST {}, GET {}, GET {}, GET {}, POST {}, GET {}, GET {}, GET {}", config.getUploadInvoiceEndpoint(),
+            config.getBatchUploadInvoiceEndpoint(), config.getQueryInvoiceEndpoint(),
+            config.getMultiQueryInvoiceEndpoint(), config.getInvoiceEventsEndpoint(), config.getInvoiceChangesEndpoint(),
+            config.getInvoicePayloadEndpoint(), config.getDeleteInvoicesEndpoint(), config.getUploadStatusEndpoint(),
+            config.getStatusEndpoint(), config.getMetricsEndpoint());
+    }
+
+    /**
+     * Registers a handler behind the metrics filter; endpoints with a rate
+     * limit get the limiter next, ahead of admission control.
+     */
+    private HttpContext createContext(String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new MetricsFilter(path));
+        RateLimiter limiter = rateLimiters.get(path);
+        if (limiter != null) {
+            context.getFilters().add(new RateLimitFilter(limiter));
+            Metrics.counter("hugin_rate_limited_total", "Requests rejected by the per-client rate limit",
+                limiter::getRejectedCount, "transport", "http", "endpoint", path);
+        }
+        return context;
+    }
+
+    public void stop() {
+        if (server != null) {
+            if (eventFeed != null) {
+                eventFeed.stop();
+            }
+            server.stop(0);
+            if (execution != null) {
+                execution.shutdown();
+            }
+            // Let the background writer persist what it already accepted
+            asyncUploads.stop();
+            log.info("HTTP Server stopped");
+        }
+    }
+
+    /**
+     * Current execution layer, null before start().
+     */
+    public HttpExecution getExecution() {
+        return execution;
+    }
+
+    /**
+     * Admits an exchange only if an exchange slot, a slot of the endpoint's
+     * own limit and (when the exchange needs one) a database slot are free,
+     * otherwise answers 503 with Retry-After without reading the request body.
+     */
+    private class AdmissionFilter extends Filter {
+        private final Predicate<HttpExchange> needsDatabase;
+
+        AdmissionFilter(Predicate<HttpExchange> needsDatabase) {
+            this.needsDatabase = needsDatabase;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (OVERLOADED.get() || !admission.tryAcquireHttpExchange()) {
+                sendBusy(exchange);
+                return;
+            }
+            try {
+                HttpExecution.EndpointLimit endpointLimit = execution.getEndpointLimit(exchange.getHttpContext().getPath());
+                if (endpointLimit != null && !endpointLimit.tryAcquire()) {
+                    admission.recordRejection();
+                    sendBusy(exchange);
+                    return;
+                }
+                try {
+                    if (!needsDatabase.test(exchange)) {
+                        chain.doFilter(exchange);
+                        return;
+                    }
+                    if (!admission.tryAcquireDbOperation()) {
+                        sendBusy(exchange);
+                        return;
+                    }
+                    try {
+                        chain.doFilter(exchange);
+                    } finally {
+                        admission.releaseDbOperation();
+                    }
+                } finally {
+                    if (endpointLimit != null) {
+                        endpointLimit.release();
+                    }
+                }
+            } finally {
+                admission.releaseHttpExchange();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Admission control";
+        }
+    }
+
+    /**
+     * Counts every exchange of an endpoint by status code and records its
+     * latency, including time spent in the filters behind it.
+     */
+    private static class MetricsFilter extends Filter {
+        private final String endpoint;
+        private final Histogram latency;
+        private final Map<Integer, Counter> requestsByStatus = new ConcurrentHashMap<>();
+
+        MetricsFilter(String endpoint) {
+            this.endpoint = endpoint;
+            this.latency = Metrics.histogram("hugin_http_request_duration_seconds",
+                "HTTP exchange latency up to the last response byte", "endpoint", endpoint);
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                latency.recordSince(start);
+                requestsByStatus.computeIfAbsent(exchange.getResponseCode(), status ->
+                    Metrics.counter("hugin_http_requests_total", "HTTP exchanges by endpoint and status",
+                        "endpoint", endpoint, "status", String.valueOf(status))).increment();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Metrics";
+        }
+    }
+
+    /**
+     * GET /metrics
+     * All server metrics in the Prometheus text format
+     */
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            sendResponse(exchange, 200, Metrics.scrape(), "text/plain; version=0.0.4; charset=utf-8");
+        }
+    }
+
+    /**
+     * Per-client token bucket check, keyed by the API key header when the
+     * client sends one and by remote address otherwise. Over-limit exchanges
+     * get 429 with Retry-After before anything else touches them.
+     */
+    private class RateLimitFilter extends Filter {
+        private final RateLimiter limiter;
+
+        RateLimitFilter(RateLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long waitNanos = limiter.tryAcquire(clientKey(exchange));
+            if (waitNanos == 0) {
+                chain.doFilter(exchange);
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Rate limit exceeded by {} on {}", clientKey(exchange), exchange.getHttpContext().getPath());
+            }
+            long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+            sendResponse(exchange, 429, "İstek sınırı aşıldı, lütfen daha sonra tekrar deneyin");
+        }
+
+        @Override
+        public String description() {
+            return "Rate limit";
+        }
+    }
+
+    /**
+     * Rate limit bucket of a client: its API key if the key is configured,
+     * otherwise its remote address. Unknown keys are ignored, so rotating the
+     * header neither earns new tokens nor fills the bucket table.
+     */
+    private String clientKey(HttpExchange exchange) {
+        String apiKey = exchange.getRequestHeaders().getFirst(config.getRateLimitApiKeyHeader());
+        if (apiKey != null && rateLimitApiKeys.contains(apiKey.trim())) {
+            return "key:" + apiKey.trim();
+        }
+        return "ip:" + exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    /**
+     * Tags QueryInvoice responses with an ETag built from the database data
+     * version and the negotiated format, and answers a matching If-None-Match
+     * with 304 straight away. The version is read before the query runs, so a
+     * concurrent write can only make a tag older than the data, never newer.
+     */
+    private class NotModifiedFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                chain.doFilter(exchange);
+                return;
+            }
+            ResponseFormat format = ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+            String etag = "W/\"" + database.getDataVersionTag() + "-" + format.name().toLowerCase(Locale.ROOT) + "\"";
+            if (matchesETag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            exchange.setAttribute(ETAG_ATTRIBUTE, etag);
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Conditional GET";
+        }
+    }
+
+    /**
+     * Answers 401 unless the request carries the admin key in the
+     * admin.apiKeyHeader header.
+     */
+    private class AdminKeyFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!adminCredential.matches(exchange.getRequestHeaders().getFirst(config.getAdminApiKeyHeader()))) {
+                log.warn("Rejected {} from {}: missing or wrong admin key", exchange.getRequestURI().getPath(),
+                    exchange.getRemoteAddress().getAddress().getHostAddress());
+                sendError(exchange, 401, "Yetkisiz istek",
+                    ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept")));
+                return;
+            }
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Admin key";
+        }
+    }
+
+    /**
+     * Weak comparison of an If-None-Match header against an entity tag; '*' matches anything.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        String opaque = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || stripWeak(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * GET /Status
+     * Plain-text key=value snapshot of the execution layer and admission control
+     */
+    private class StatusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            StringBuilder status = new StringBuilder();
+            status.append("http.executor.mode=").append(execution.getMode()).append('\n');
+            status.append("http.executor.poolSize=").append(execution.getPoolSize()).append('\n');
+            status.append("http.executor.activeWorkers=").append(execution.getActiveWorkers()).append('\n');
+            status.append("http.executor.queueDepth=").append(execution.getQueueDepth()).append('\n');
+            status.append("http.executor.completed=").append(execution.getCompletedCount()).append('\n');
+            execution.getEndpointLimits().forEach((endpoint, limit) -> {
+                status.append("http.endpoint[").append(endpoint).append("].inFlight=").append(limit.getInFlight()).append('\n');
+                status.append("http.endpoint[").append(endpoint).append("].limit=").append(limit.maxConcurrent).append('\n');
+                status.append("http.endpoint[").append(endpoint).append("].rejected=").append(limit.getRejectedCount()).append('\n');
+            });
+            status.append("http.asyncUpload.queueDepth=").append(asyncUploads.getQueueDepth()).append('\n');
+            status.append("http.asyncUpload.tickets=").append(uploadTickets.size()).append('\n');
+            rateLimiters.forEach((endpoint, limiter) -> {
+                status.append("http.rateLimit[").append(endpoint).append("].clients=").append(limiter.getClientCount()).append('\n');
+                status.append("http.rateLimit[").append(endpoint).append("].rejected=").append(limiter.getRejectedCount()).append('\n');
+            });
+            status.append("queryCache.size=").append(queryCache.size()).append('\n');
+            status.append("queryCache.hits=").append(queryCache.getHitCount()).append('\n');
+            status.append("queryCache.misses=").append(queryCache.getMissCount()).append('\n');
+            status.append("queryCache.hitRate=").append(String.format(Locale.ROOT, "%.3f", queryCache.getHitRate())).append('\n');
+            status.append("queryCache.evictions=").append(queryCache.getEvictionCount()).append('\n');
+            status.append("queryCache.invalidations=").append(queryCache.getInvalidationCount()).append('\n');
+            status.append("admission.rejected=").append(admission.getRejectedCount()).append('\n');
+            sendResponse(exchange, 200, status.toString());
+        }
+    }
+
+    /**
+     * POST /UploadInvoice
+     * Accepts either a raw document selected by Content-Type (application/json
+     * or application/xml) or the form-encoded parameters 'tür' ('xml' or
+     * 'json') and 'fatura' (payload). A byte-identical resend of a recent
+     * upload gets the original answer from the ingest dedupe cache.
+     * With 'Prefer: respond-async' or '?async=true' the document is parsed
+     * straight from the request stream, validated, queued and answered with
+     * 202 and an upload ticket; its outcome is polled at /UploadStatus?id=...
+     */
+    private class UploadInvoiceHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            if (!isSupportedContentEncoding(exchange)) {
+                sendResponse(exchange, 415, "Desteklenmeyen Content-Encoding");
+                return;
+            }
+
+            try {
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                String mediaType = mediaType(contentType);
+                boolean async = isAsyncRequest(exchange);
+                
+                InvoiceIngestService.Format format;
+                InvoiceUploadData.UploadSystem uploadData;
+                byte[] payload;
+                Charset charset;
+                if (isJsonMediaType(mediaType) || isXmlMediaType(mediaType)) {
+                    format = isXmlMediaType(mediaType) ? InvoiceIngestService.Format.XML : InvoiceIngestService.Format.JSON;
+                    // Read whole so the dedupe cache can hash the payload and the archive can keep it
+                    try (InputStream body = openRequestBody(exchange)) {
+                        payload = body.readAllBytes();
+                    }
+                    // XML encoding is detected from the declaration / BOM, the charset is for JSON
+                    charset = charset(contentType);
+                    if (!async) {
+                        sendUploadOutcome(exchange, ingestService.ingest("HTTP", format, payload, 0, payload.length, charset));
+                        return;
+                    }
+                    try {
+                        uploadData = ingestService.decode("HTTP", format, new ByteArrayInputStream(payload), charset);
+                    } catch (Exception e) {
+                        log.warn("Error parsing raw invoice body ({}): {}", mediaType, e.getMessage());
+                        sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                        return;
+                    }
+                } else {
+                    // Parse form data
+                    String requestBody = readRequestBody(exchange);
+                    if (log.isPayloadDumpEnabled()) {
+                        log.debug("Received upload request body: {}", requestBody);
+                    }
+                    
+                    Map<String, String> params = parseFormData(requestBody);
+                    
+                    String tur = params.get("tür");
+                    String fatura = params.get("fatura");
+                    
+                    if (tur == null || fatura == null) {
+                        log.warn("Missing parameters - tür: {}, fatura: {}", tur, fatura != null ? "present" : "null");
+                        sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                        return;
+                    }
+                    
+                    if ("xml".equals(tur)) {
+                        format = InvoiceIngestService.Format.XML;
+                    } else if ("json".equals(tur)) {
+                        format = InvoiceIngestService.Format.JSON;
+                    } else {
+                        log.warn("Invalid format type: {}", tur);
+                        sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                        return;
+                    }
+                    if (!async) {
+                        sendUploadOutcome(exchange, ingestService.ingest("HTTP", format, fatura));
+                        return;
+                    }
+                    payload = fatura.getBytes(StandardCharsets.UTF_8);
+                    charset = StandardCharsets.UTF_8;
+                    try {
+                        uploadData = ingestService.decode("HTTP", format, fatura);
+                    } catch (Exception e) {
+                        log.warn("Error parsing invoice data ({}): {}", tur, e.getMessage());
+                        sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                        return;
+                    }
+                }
+                
+                // Async: validate now, persist in the background
+                String problem = ingestService.validate("HTTP", uploadData);
+                if (problem != null) {
+                    log.warn("Invalid upload data: {}", problem);
+                    sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                    return;
+                }
+                
+                UploadTicketStore.Ticket ticket = asyncUploads.submit(uploadData, format, charset, payload);
+                if (ticket == null) {
+                    sendBusy(exchange);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Location", config.getUploadStatusEndpoint() + "?id=" + ticket.id);
+                exchange.getResponseHeaders().set("Preference-Applied", "respond-async");
+                writeTicket(exchange, 202, ticket, ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept")));
+                
+            } catch (BoundedInputStream.LimitExceededException e) {
+                sendBodyTooLarge(exchange);
+            } catch (Exception e) {
+                log.error("Error in UploadInvoice", e);
+                sendResponse(exchange, 500, "Fatura Kaydedilemedi");
+            }
+        }
+        
+        private void sendUploadOutcome(HttpExchange exchange, InvoiceIngestService.Outcome outcome) throws IOException {
+            switch (outcome) {
+                case SAVED:
+                    log.debug("HTTP Upload - Successfully saved to database");
+                    sendResponse(exchange, 200, "Fatura Kaydedildi");
+                    break;
+                case INVALID:
+                    sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                    break;
+                default:
+                    log.warn("HTTP Upload - Failed to save to database");
+                    sendResponse(exchange, 500, "Fatura Kaydedilemedi - Database Error");
+            }
+        }
+    }
+
+    /**
+     * GET /UploadStatus?id=...
+     * State of an async upload ticket: queued, persisted or failed. Plain text
+     * is the state name (with the reason after a colon for failures); JSON and
+     * XML carry id, status and message. Unknown or expired tickets give 404.
+     */
+    private class UploadStatusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            ResponseFormat format = ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+            String id = parseQueryString(exchange.getRequestURI().getQuery()).get("id");
+            if (id == null || id.isBlank()) {
+                sendError(exchange, 400, "Bilet numarası gerekli", format);
+                return;
+            }
+            UploadTicketStore.Ticket ticket = uploadTickets.get(id);
+            if (ticket == null) {
+                sendError(exchange, 404, "Bilet bulunamadı", format);
+                return;
+            }
+            writeTicket(exchange, 200, ticket, format);
+        }
+    }
+
+    /**
+     * Ticket reply shared by the 202 upload answer and /UploadStatus.
+     */
+    private void writeTicket(HttpExchange exchange, int statusCode, UploadTicketStore.Ticket ticket, ResponseFormat format) throws IOException {
+        UploadTicketStore.State state = ticket.getState();
+        String status = state.name().toLowerCase(Locale.ROOT);
+        String message = ticket.getMessage();
+        if (format == ResponseFormat.TEXT) {
+            String body = statusCode == 202 ? ticket.id
+                : state == UploadTicketStore.State.FAILED && message != null ? status + ": " + message : status;
+            sendResponse(exchange, statusCode, body);
+            return;
+        }
+        try (OutputStream os = beginStreamingResponse(exchange, statusCode, format.contentType);
+             JsonGenerator generator = createGenerator(format, os, "uploadTicket")) {
+            generator.writeStartObject();
+            generator.writeStringField("id", ticket.id);
+            generator.writeStringField("status", status);
+            if (message != null) {
+                generator.writeStringField("message", message);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * True if the client asked for an async upload with 'Prefer: respond-async'
+     * or the 'async=true' query parameter.
+     */
+    private boolean isAsyncRequest(HttpExchange exchange) {
+        for (String prefer : exchange.getRequestHeaders().getOrDefault("Prefer", List.of())) {
+            for (String preference : prefer.split(",")) {
+                if (preference.trim().toLowerCase(Locale.ROOT).startsWith("respond-async")) {
+                    return true;
+                }
+            }
+        }
+        return "true".equalsIgnoreCase(parseQueryString(exchange.getRequestURI().getQuery()).get("async"));
+    }
+
+    /**
+     * POST /BatchUploadInvoice
+     * Body is NDJSON: one uploadSystem JSON document per line (gzip allowed).
+     * Lines are parsed as they arrive and saved in commit batches of
+     * http.batchCommitSize. After each commit one result line per invoice is
+     * streamed back, in request order:
+     * {"line": n, "series": "...", "number": "...", "status": "saved" | "rejected" | "invalid", "error": "..."}
+     * followed by a final {"summary": {...}} line. Clients should read the
+     * response while they are still sending. A database slot is held only
+     * while a commit batch is saved; a slow sender keeps just its exchange slot.
+     */
+    private class BatchUploadInvoiceHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            if (!isSupportedContentEncoding(exchange)) {
+                sendResponse(exchange, 415, "Desteklenmeyen Content-Encoding");
+                return;
+            }
+
+            int commitSize = config.getHttpBatchCommitSize();
+            InvoiceIngestService.Session session = ingestService.openSession("HTTP");
+            List<InvoiceUploadData.UploadSystem> documents = new ArrayList<>(commitSize);
+            List<Integer> lineNumbers = new ArrayList<>(commitSize);
+            List<String> errors = new ArrayList<>(commitSize);
+            List<String> rawLines = new ArrayList<>(commitSize);
+            int[] totals = new int[3]; // saved, rejected, invalid
+
+            try (LineReader lines = new LineReader(
+                     new InputStreamReader(openUnboundedRequestBody(exchange), StandardCharsets.UTF_8), config.getHttpMaxBatchLineLength());
+                 OutputStream os = beginStreamingResponse(exchange, 200, "application/x-ndjson; charset=UTF-8");
+                 JsonGenerator results = InvoiceCodecs.jsonFactory().createGenerator(os, JsonEncoding.UTF8)) {
+                results.setRootValueSeparator(new SerializedString("\n"));
+
+                String line;
+                while ((line = lines.next()) != null) {
+                    if (lines.lastLineTooLong()) {
+                        addEntry(documents, lineNumbers, errors, rawLines, lines.lineNumber(), null, null, "Satır çok uzun");
+                    } else if (line.isBlank()) {
+                        continue;
+                    } else {
+                        try {
+                            InvoiceUploadData.UploadSystem document =
+                                ingestService.decode("HTTP", InvoiceIngestService.Format.JSON, line);
+                            addEntry(documents, lineNumbers, errors, rawLines, lines.lineNumber(), line, document,
+                                ingestService.validate("HTTP", document));
+                        } catch (Exception e) {
+                            addEntry(documents, lineNumbers, errors, rawLines, lines.lineNumber(), null, null, e.getMessage());
+                        }
+                    }
+                    if (documents.size() >= commitSize) {
+                        commitBatch(session, documents, lineNumbers, errors, rawLines, results, totals);
+                    }
+                }
+                commitBatch(session, documents, lineNumbers, errors, rawLines, results, totals);
+
+                results.writeStartObject();
+                results.writeObjectFieldStart("summary");
+                results.writeNumberField("total", totals[0] + totals[1] + totals[2]);
+                results.writeNumberField("saved", totals[0]);
+                results.writeNumberField("rejected", totals[1]);
+                results.writeNumberField("invalid", totals[2]);
+                results.writeEndObject();
+                results.writeEndObject();
+                results.writeRaw('\n');
+                
+                if (log.isDebugEnabled()) {
+                    log.debug("HTTP batch upload: {} saved, {} rejected, {} invalid", totals[0], totals[1], totals[2]);
+                }
+            } catch (Exception e) {
+                log.error("Error in BatchUploadInvoice", e);
+                if (exchange.getResponseCode() == -1) {
+                    sendResponse(exchange, 500, "Fatura Kaydedilemedi");
+                } else {
+                    exchange.close();
+                }
+            }
+        }
+
+        private void addEntry(List<InvoiceUploadData.UploadSystem> documents, List<Integer> lineNumbers, List<String> errors,
+                              List<String> rawLines, int lineNumber, String line, InvoiceUploadData.UploadSystem document,
+                              String error) {
+            // Kept even when invalid so the result line can name its series/number; the session rejects it
+            documents.add(document);
+            lineNumbers.add(lineNumber);
+            errors.add(error);
+            // The line itself is only needed for the archive once the document is saved
+            rawLines.add(error == null ? line : null);
+        }
+
+        /**
+         * Saves the pending documents in one transaction and streams their results.
+         */
+        private void commitBatch(InvoiceIngestService.Session session, List<InvoiceUploadData.UploadSystem> documents,
+                                 List<Integer> lineNumbers, List<String> errors, List<String> rawLines,
+                                 JsonGenerator results, int[] totals) throws IOException {
+            if (documents.isEmpty()) return;
+            boolean[] saved;
+            try {
+                admission.acquireDbOperation();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a database slot");
+            }
+            try {
+                saved = session.save(documents);
+            } finally {
+                admission.releaseDbOperation();
+            }
+            for (int i = 0; i < documents.size(); i++) {
+                InvoiceUploadData.UploadSystem document = documents.get(i);
+                if (saved[i] && errors.get(i) == null) {
+                    byte[] line = rawLines.get(i).getBytes(StandardCharsets.UTF_8);
+                    ingestService.archivePayload(document, InvoiceIngestService.Format.JSON, StandardCharsets.UTF_8,
+                        line, 0, line.length);
+                }
+                String status = errors.get(i) != null ? "invalid" : saved[i] ? "saved" : "rejected";
+                totals[errors.get(i) != null ? 2 : saved[i] ? 0 : 1]++;
+
+                results.writeStartObject();
+                results.writeNumberField("line", lineNumbers.get(i));
+                if (document != null && document.invoiceData != null) {
+                    results.writeStringField("series", document.invoiceData.seri);
+                    results.writeStringField("number", document.invoiceData.number);
+                }
+                results.writeStringField("status", status);
+                if (errors.get(i) != null) {
+                    results.writeStringField("error", errors.get(i));
+                }
+                results.writeEndObject();
+            }
+            results.flush();
+            documents.clear();
+            lineNumbers.clear();
+            errors.clear();
+            rawLines.clear();
+        }
+    }
+
+    /**
+     * Reads lines of bounded length from a character stream. Longer lines are
+     * consumed up to their end and flagged instead of being buffered.
+     */
+    private static class LineReader implements Closeable {
+        private final Reader reader;
+        private final int maxChars;
+        private final StringBuilder buffer = new StringBuilder();
+        private int lineNumber;
+        private boolean tooLong;
+
+        LineReader(Reader reader, int maxChars) {
+            this.reader = new BufferedReader(reader, 16 * 1024);
+            this.maxChars = maxChars;
+        }
+
+        /**
+         * @return the next line without its terminator, or null at end of stream
+         */
+        String next() throws IOException {
+            buffer.setLength(0);
+            tooLong = false;
+            int c;
+            boolean any = false;
+            while ((c = reader.read()) != -1) {
+                any = true;
+                if (c == '\n') break;
+                if (tooLong) continue;
+                if (buffer.length() >= maxChars) {
+                    tooLong = true;
+                    buffer.setLength(0);
+                    continue;
+                }
+                buffer.append((char) c);
+            }
+            if (!any) return null;
+            lineNumber++;
+            int length = buffer.length();
+            if (length > 0 && buffer.charAt(length - 1) == '\r') {
+                buffer.setLength(length - 1);
+            }
+            return buffer.toString();
+        }
+
+        boolean lastLineTooLong() {
+            return tooLong;
+        }
+
+        int lineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * GET /QueryInvoice  
+     * Supports 'seri', 'name' and 'liste' query types.
+     * The response format follows the Accept header: application/json or
+     * application/xml get structured documents, anything else the plain-text
+     * format. Structured 'name' and 'liste' results are paginated: 'limit'
+     * sets the page size and 'cursor' continues after the 'nextCursor' of the
+     * previous page. Lists are written from the database cursor straight to the
+     * response stream with chunked transfer encoding.
+     */
+    private class QueryInvoiceHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            try {
+                // Parse query parameters
+                String queryString = exchange.getRequestURI().getQuery();
+                log.debug("Received query string: {}", queryString);
+                
+                Map<String, String> params = parseQueryString(queryString);
+                String tur = params.get("tur");
+                ResponseFormat format = ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+                
+                if ("seri".equals(tur)) {
+                    handleSeriesQuery(exchange, params, format);
+                } else if ("name".equals(tur)) {
+                    handleNameQuery(exchange, params, format);
+                } else if ("liste".equals(tur)) {
+                    handleListQuery(exchange, params, format);
+                } else {
+                    log.debug("Invalid query type received: '{}' (expected 'seri', 'name' or 'liste')", tur);
+                    sendError(exchange, 400, "Geçersiz sorgu türü: " + tur, format);
+                }
+                
+            } catch (Exception e) {
+                log.error("Error in QueryInvoice", e);
+                if (exchange.getResponseCode() == -1) {
+                    sendResponse(exchange, 500, "Sorgu hatası");
+                } else {
+                    // Headers of a streamed response are already out; all we can do is cut it short
+                    exchange.close();
+                }
+            }
+        }
+        
+        private void handleSeriesQuery(HttpExchange exchange, Map<String, String> params, ResponseFormat format) throws IOException {
+            String seri = params.get("seri");
+            String no = params.get("no");
+            
+            if (seri == null || no == null) {
+                sendError(exchange, 400, "Seri ve numara gerekli", format);
+                return;
+            }
+            
+            Database.Invoice invoice = queryCache.getInvoiceBySeriesAndNumber(seri, no);
+            if (invoice == null) {
+                log.debug("Invoice not found: {}-{}", seri, no);
+                sendError(exchange, 404, "Kayıt bulunamadı", format);
+                return;
+            }
+            
+            if (format == ResponseFormat.TEXT) {
+                // Return only total amount as specified in documentation
+                String response = String.format("%.2f", invoice.totalAfter);
+                sendResponse(exchange, 200, response);
+                return;
+            }
+            
+            try (OutputStream os = beginStreamingResponse(exchange, 200, format.contentType);
+                 JsonGenerator generator = createGenerator(format, os, "invoice")) {
+                writeInvoice(generator, invoice);
+            }
+        }
+        
+        private void handleNameQuery(HttpExchange exchange, Map<String, String> params, ResponseFormat format) throws IOException {
+            String name = params.get("name");
+            
+            if (name == null || name.trim().isEmpty()) {
+                sendError(exchange, 400, "Müşteri adı gerekli", format);
+                return;
+            }
+            
+            if (format != ResponseFormat.TEXT) {
+                writeInvoicePage(exchange, params, format, name);
+                return;
+            }
+            
+            Database.Invoice[] invoices = queryCache.getInvoicesByCustomerName(name);
+            if (invoices.length == 0) {
+                log.debug("No invoices found for customer: {}", name);
+                sendResponse(exchange, 404, "Kayıt bulunamadı");
+                return;
+            }
+            
+            // Return total amounts of all invoices for this customer
+            StringBuilder response = new StringBuilder();
+            double totalSum = 0;
+            for (Database.Invoice invoice : invoices) {
+                if (response.length() > 0) {
+                    response.append("\n");
+                }
+                response.append(String.format("Fatura %s-%s: %.2f TL", 
+                    invoice.series, invoice.number, invoice.totalAfter));
+                totalSum += invoice.totalAfter;
+            }
+            response.append(String.format("\nToplam: %.2f TL", totalSum));
+            
+            sendResponse(exchange, 200, response.toString());
+        }
+        
+        private void handleListQuery(HttpExchange exchange, Map<String, String> params, ResponseFormat format) throws IOException {
+            if (format != ResponseFormat.TEXT) {
+                writeInvoicePage(exchange, params, format, null);
+                return;
+            }
+            
+            // Plain-text list keeps its format but is streamed instead of built in memory
+            try (OutputStream os = beginStreamingResponse(exchange, 200, format.contentType);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+                writer.write("Fatura Listesi:\n");
+                database.streamInvoiceList(entry -> {
+                    writer.write(entry);
+                    writer.write('\n');
+                });
+            }
+        }
+        
+        /**
+         * Writes one page of invoices (optionally filtered by customer name) as
+         * {"invoices": [...], "count": n, "nextCursor": "id" | null} or the XML
+         * equivalent. One extra row is read to know whether another page exists.
+         */
+        private void writeInvoicePage(HttpExchange exchange, Map<String, String> params, ResponseFormat format,
+                                      String customerName) throws IOException {
+            int afterId;
+            int limit;
+            try {
+                afterId = params.containsKey("cursor") ? Integer.parseInt(params.get("cursor")) : 0;
+                limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : config.getHttpPageSize();
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Geçersiz sayfalama parametresi", format);
+                return;
+            }
+            if (afterId < 0 || limit <= 0) {
+                sendError(exchange, 400, "Geçersiz sayfalama parametresi", format);
+                return;
+            }
+            int pageSize = Math.min(limit, config.getHttpMaxPageSize());
+            
+            try (OutputStream os = beginStreamingResponse(exchange, 200, format.contentType);
+                 JsonGenerator generator = createGenerator(format, os, "invoices")) {
+                generator.writeStartObject();
+                if (format == ResponseFormat.JSON) {
+                    generator.writeArrayFieldStart("invoices");
+                }
+                int[] delivered = {0};
+                int[] lastId = {afterId};
+                boolean[] hasMore = {false};
+                database.streamInvoicePage(customerName, afterId, pageSize + 1, invoice -> {
+                    if (delivered[0] == pageSize) {
+                        hasMore[0] = true;
+                        return;
+                    }
+                    if (format == ResponseFormat.XML) {
+                        generator.writeFieldName("invoice");
+                    }
+                    writeInvoice(generator, invoice);
+                    delivered[0]++;
+                    lastId[0] = invoice.id;
+                });
+                if (format == ResponseFormat.JSON) {
+                    generator.writeEndArray();
+                }
+                generator.writeNumberField("count", delivered[0]);
+                if (hasMore[0]) {
+                    generator.writeStringField("nextCursor", String.valueOf(lastId[0]));
+                } else if (format == ResponseFormat.JSON) {
+                    generator.writeNullField("nextCursor");
+                }
+                generator.writeEndObject();
+            }
+        }
+    }
+
+    /**
+     * POST /MultiQueryInvoice
+     * Looks up many invoices at once. The body is one "series number" pair
+     * per line (at most http.maxMultiGetKeys), resolved with batched indexed
+     * queries. Results keep the request order: plain text is one line per
+     * pair with the total or "-", JSON is
+     * {"results": [{"series", "number", "found", "totalAfter"}...], "count", "found"}
+     * and XML the same under &lt;results&gt; with one &lt;result&gt; per pair.
+     */
+    private class MultiQueryInvoiceHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            if (!isSupportedContentEncoding(exchange)) {
+                sendResponse(exchange, 415, "Desteklenmeyen Content-Encoding");
+                return;
+            }
+
+            ResponseFormat format = ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+            try {
+                List<Database.InvoiceKey> keys;
+                try {
+                    keys = MultiGetFormat.parse(readRequestBody(exchange), config.getHttpMaxMultiGetKeys());
+                } catch (IllegalArgumentException e) {
+                    sendError(exchange, 400, e.getMessage(), format);
+                    return;
+                }
+
+                Database.Invoice[] invoices = queryCache.getInvoicesBySeriesAndNumbers(keys);
+                if (format == ResponseFormat.TEXT) {
+                    sendResponse(exchange, 200, MultiGetFormat.formatTotals(invoices));
+                    return;
+                }
+
+                int found = 0;
+                try (OutputStream os = beginStreamingResponse(exchange, 200, format.contentType);
+                     JsonGenerator generator = createGenerator(format, os, "results")) {
+                    generator.writeStartObject();
+                    if (format == ResponseFormat.JSON) {
+                        generator.writeArrayFieldStart("results");
+                    }
+                    for (int i = 0; i < invoices.length; i++) {
+                        if (format == ResponseFormat.XML) {
+                            generator.writeFieldName("result");
+                        }
+                        generator.writeStartObject();
+                        generator.writeStringField("series", keys.get(i).series);
+                        generator.writeStringField("number", keys.get(i).number);
+                        generator.writeBooleanField("found", invoices[i] != null);
+                        if (invoices[i] != null) {
+                            generator.writeNumberField("totalAfter", invoices[i].totalAfter);
+                            found++;
+                        }
+                        generator.writeEndObject();
+                    }
+                    if (format == ResponseFormat.JSON) {
+                        generator.writeEndArray();
+                    }
+                    generator.writeNumberField("count", invoices.length);
+                    generator.writeNumberField("found", found);
+                    generator.writeEndObject();
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Multi-get: {}/{} invoices found", found, invoices.length);
+                }
+            } catch (BoundedInputStream.LimitExceededException e) {
+                sendBodyTooLarge(exchange);
+            } catch (Exception e) {
+                log.error("Error in MultiQueryInvoice", e);
+                if (exchange.getResponseCode() == -1) {
+                    sendResponse(exchange, 500, "Sorgu hatası");
+                } else {
+                    exchange.close();
+                }
+            }
+        }
     }
 
-    public void start() throws IOException {
-        server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(config.getHttpPort()), 0);
-        
-        // Register endpoints
-        server.createContext(config.getUploadInvoiceEndpoint(), new UploadInvoiceHandler());
-        server.createContext(config.getQueryInvoiceEndpoint(), new QueryInvoiceHandler());
-        
-        server.setExecutor(null); // Use default executor
-        server.start();
-        
-        System.out.println("HTTP Server started on port " + config.getHttpPort());
-        System.out.println("Endpoints:");
-        System.out.println("  POST " + config.getUploadInvoiceEndpoint());
-        System.out.println("  GET  " + config.getQueryInvoiceEndpoint());
-    }
+    /**
+     * GET /InvoiceEvents
+     * Server-Sent Events stream with one "invoice" event per committed invoice:
+     * the event id is the invoice id and the data
+     * {"id", "series", "number", "total", "source"}.
+     * The stream starts after the invoice id given by the 'after' parameter or
+     * the Last-Event-ID header (sent by a reconnecting EventSource), read back
+     * from the database; without either it starts with the next new invoice.
+     * A subscriber that falls http.eventFeed.bufferSize events behind is
+     * disconnected and resumes from its last id.
+     */
+    private class InvoiceEventsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
 
-    public void stop() {
-        if (server != null) {
-            server.stop(0);
-            System.out.println("HTTP Server stopped");
+            String after = parseQueryString(exchange.getRequestURI().getQuery()).get("after");
+            if (after == null) {
+                after = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            }
+            long afterId;
+            try {
+                afterId = after != null ? Long.parseLong(after.trim()) : eventFeed.getLastInvoiceId();
+            } catch (NumberFormatException e) {
+                afterId = -1;
+            }
+            if (afterId < 0) {
+                sendResponse(exchange, 400, "Geçersiz 'after' parametresi: " + after);
+                return;
+            }
+
+            // Interrupting a thread blocked in a channel write closes the socket, so a
+            // dropped subscriber ends even if its client stopped reading.
+            // exchange.close() would wait behind that write instead.
+            AtomicReference<Thread> streamThread = new AtomicReference<>();
+            InvoiceEventFeed.Subscriber subscriber = eventFeed.subscribe(() -> {
+                Thread thread = streamThread.get();
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            });
+            if (subscriber == null) {
+                sendBusy(exchange);
+                return;
+            }
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*"); // Allow CORS
+                exchange.sendResponseHeaders(200, 0);
+                // The stream gets its own thread so it does not hold an HTTP worker
+                long startId = afterId;
+                streamThread.set(Thread.ofVirtual().name("invoice-events")
+                    .start(() -> streamInvoiceEvents(exchange, subscriber, startId)));
+                if (subscriber.isDropped()) {
+                    streamThread.get().interrupt(); // dropped before the hook could see the thread
+                }
+            } catch (IOException | RuntimeException e) {
+                eventFeed.unsubscribe(subscriber);
+                exchange.close();
+                throw e;
+            }
         }
     }
 
     /**
-     * POST /UploadInvoice
-     * Accepts parameters 'tür' ('xml' or 'json') and 'fatura' (payload)
-     * Uses proper libraries to parse the data
+     * GET /InvoiceChanges?since=&lt;seq&gt;&amp;limit=&lt;n&gt;
+     * Page of the invoice outbox: committed inserts and deletes after the
+     * given sequence number, oldest first. Consumers keep the returned
+     * 'next' value and pass it as 'since' on the following call; 'hasMore'
+     * says whether another page is already waiting. Plain text is one
+     * tab-separated line per change, JSON
+     * {"changes": [{"seq", "operation", "invoiceId", "series", "number", "total", "source", "changedAt"}...],
+     *  "count", "next", "hasMore"} and XML the same under &lt;changes&gt;.
      */
-    private class UploadInvoiceHandler implements HttpHandler {
+    private class InvoiceChangesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
                 sendResponse(exchange, 405, "Method Not Allowed");
                 return;
             }
 
+            ResponseFormat format = ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+            Map<String, String> params = parseQueryString(exchange.getRequestURI().getQuery());
+            long since;
+            int limit;
             try {
-                // Parse form data
-                String requestBody = readRequestBody(exchange);
-                System.out.println("Received upload request body: " + requestBody); // Debug logging
-                
-                Map<String, String> params = parseFormData(requestBody);
-                System.out.println("Parsed parameters: " + params); // Debug logging
-                
-                String tur = params.get("tür");
-                String fatura = params.get("fatura");
-                
-                if (tur == null || fatura == null) {
-                    System.err.println("Missing parameters - tür: " + tur + ", fatura: " + (fatura != null ? "present" : "null"));
-                    sendResponse(exchange, 400, "Fatura Kaydedilemedi");
-                    return;
+                since = params.containsKey("since") ? Long.parseLong(params.get("since")) : 0;
+                limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : config.getHttpPageSize();
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Geçersiz sayfalama parametresi", format);
+                return;
+            }
+            if (since < 0 || limit <= 0) {
+                sendError(exchange, 400, "Geçersiz sayfalama parametresi", format);
+                return;
+            }
+            int pageSize = Math.min(limit, config.getHttpMaxPageSize());
+
+            try {
+                List<ServerDatabase.ChangeRecord> changes = ((ServerDatabase) database).changesSince(since, pageSize + 1);
+                boolean hasMore = changes.size() > pageSize;
+                if (hasMore) {
+                    changes = changes.subList(0, pageSize);
                 }
-                
-                // Parse invoice data using proper libraries
-                InvoiceUploadData.UploadSystem uploadData;
-                try {
-                    if ("xml".equals(tur)) {
-                        uploadData = xmlMapper.readValue(fatura, InvoiceUploadData.UploadSystem.class);
-                    } else if ("json".equals(tur)) {
-                        uploadData = gson.fromJson(fatura, InvoiceUploadData.UploadSystem.class);
-                    } else {
-                        System.err.println("Invalid format type: " + tur);
-                        sendResponse(exchange, 400, "Fatura Kaydedilemedi");
-                        return;
+                long next = changes.isEmpty() ? since : changes.get(changes.size() - 1).seq;
+
+                if (format == ResponseFormat.TEXT) {
+                    StringBuilder response = new StringBuilder(changes.size() * 64);
+                    for (ServerDatabase.ChangeRecord change : changes) {
+                        ChangeFeedFormat.appendLine(response, change);
                     }
-                } catch (Exception e) {
-                    System.err.println("Error parsing invoice data (" + tur + "): " + e.getMessage());
-                    e.printStackTrace();
-                    sendResponse(exchange, 400, "Fatura Kaydedilemedi");
+                    sendResponse(exchange, 200, response.toString());
                     return;
                 }
-                
-                if (uploadData == null || uploadData.customer == null || uploadData.invoiceData == null) {
-                    System.err.println("Invalid upload data structure");
-                    sendResponse(exchange, 400, "Fatura Kaydedilemedi");
-                    return;
+
+                try (OutputStream os = beginStreamingResponse(exchange, 200, format.contentType);
+                     JsonGenerator generator = createGenerator(format, os, "changes")) {
+                    generator.writeStartObject();
+                    if (format == ResponseFormat.JSON) {
+                        generator.writeArrayFieldStart("changes");
+                    }
+                    for (ServerDatabase.ChangeRecord change : changes) {
+                        if (format == ResponseFormat.XML) {
+                            generator.writeFieldName("change");
+                        }
+                        generator.writeStartObject();
+                        generator.writeNumberField("seq", change.seq);
+                        generator.writeStringField("operation", change.operation);
+                        generator.writeNumberField("invoiceId", change.invoiceId);
+                        generator.writeStringField("series", change.series);
+                        generator.writeStringField("number", change.number);
+                        generator.writeNumberField("total", change.totalAfter);
+                        generator.writeStringField("source", change.source);
+                        generator.writeStringField("changedAt", change.changedAt);
+                        generator.writeEndObject();
+                    }
+                    if (format == ResponseFormat.JSON) {
+                        generator.writeEndArray();
+                    }
+                    generator.writeNumberField("count", changes.size());
+                    generator.writeStringField("next", String.valueOf(next));
+                    generator.writeBooleanField("hasMore", hasMore);
+                    generator.writeEndObject();
                 }
-                
-                // Save to database
-                System.out.println("HTTP Upload - Attempting to save to database");
-                if (saveInvoiceToDatabase(uploadData)) {
-                    System.out.println("HTTP Upload - Successfully saved to database");
-                    sendResponse(exchange, 200, "Fatura Kaydedildi");
+            } catch (Exception e) {
+                log.error("Error in InvoiceChanges", e);
+                if (exchange.getResponseCode() == -1) {
+                    sendResponse(exchange, 500, "Sorgu hatası");
                 } else {
-                    System.err.println("HTTP Upload - Failed to save to database");
-                    sendResponse(exchange, 500, "Fatura Kaydedilemedi - Database Error");
+                    exchange.close();
                 }
-                
-            } catch (Exception e) {
-                System.err.println("Error in UploadInvoice: " + e.getMessage());
-                e.printStackTrace();
-                sendResponse(exchange, 500, "Fatura Kaydedilemedi");
             }
         }
     }
 
     /**
-     * GET /QueryInvoice  
-     * Supports 'seri' and 'liste' query types
-     * Returns data in proper XML/JSON format
+     * POST /DeleteInvoices
+     * Bulk delete by invoice id. Only registered when admin.apiKey is set,
+     * and the request must carry that key in the admin.apiKeyHeader header
+     * (401 otherwise). The body lists ids and inclusive id ranges
+     * ("100-200"), at most admin.maxDeleteRanges entries covering at most
+     * admin.maxDeleteIds ids, separated by whitespace, commas or line breaks. Invoices are only marked as deleted,
+     * a few hundred per transaction, and disappear from every query at once;
+     * the rows are purged later in the background. The response is the
+     * number of invoices deleted: plain text, {"deleted": n} or
+     * &lt;result&gt;&lt;deleted&gt;n&lt;/deleted&gt;&lt;/result&gt;.
      */
-    private class QueryInvoiceHandler implements HttpHandler {
+    private class DeleteInvoicesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!"GET".equals(exchange.getRequestMethod())) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
                 sendResponse(exchange, 405, "Method Not Allowed");
                 return;
             }
+            if (!isSupportedContentEncoding(exchange)) {
+                sendResponse(exchange, 415, "Desteklenmeyen Content-Encoding");
+                return;
+            }
 
+            ResponseFormat format = ResponseFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
             try {
-                // Parse query parameters
-                String queryString = exchange.getRequestURI().getQuery();
-                System.out.println("Received query string: " + queryString); // Debug logging
-                
-                Map<String, String> params = parseQueryString(queryString);
-                System.out.println("Parsed query parameters: " + params); // Debug logging
-                
-                String tur = params.get("tur");
-                System.out.println("Query type (tur): '" + tur + "'"); // Debug logging
-                
-                if ("seri".equals(tur)) {
-                    handleSeriesQuery(exchange, params);
-                } else if ("name".equals(tur)) {
-                    handleNameQuery(exchange, params);
-                } else if ("liste".equals(tur)) {
-                    handleListQuery(exchange, params);
-                } else {
-                    System.err.println("Invalid query type received: '" + tur + "'");
-                    System.err.println("Available types: 'seri', 'name', 'liste'");
-                    sendResponse(exchange, 400, "Geçersiz sorgu türü: " + tur);
+                List<ServerDatabase.IdRange> ranges;
+                try {
+                    ranges = IdRangeFormat.parse(readRequestBody(exchange), config.getMaxDeleteRanges(), config.getMaxDeleteIds());
+                } catch (IllegalArgumentException e) {
+                    sendError(exchange, 400, e.getMessage(), format);
+                    return;
                 }
-                
+
+                int deleted = ((ServerDatabase) database).deleteInvoices(ranges);
+                log.info("Bulk delete: {} invoices deleted ({} ids/ranges requested)", deleted, ranges.size());
+                if (format == ResponseFormat.TEXT) {
+                    sendResponse(exchange, 200, String.valueOf(deleted));
+                    return;
+                }
+                try (OutputStream os = beginStreamingResponse(exchange, 200, format.contentType);
+                     JsonGenerator generator = createGenerator(format, os, "result")) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("deleted", deleted);
+                    generator.writeEndObject();
+                }
+            } catch (BoundedInputStream.LimitExceededException e) {
+                sendBodyTooLarge(exchange);
             } catch (Exception e) {
-                System.err.println("Error in QueryInvoice: " + e.getMessage());
-                e.printStackTrace();
-                sendResponse(exchange, 500, "Sorgu hatası");
+                log.error("Error in DeleteInvoices", e);
+                if (exchange.getResponseCode() == -1) {
+                    sendResponse(exchange, 500, "Silme hatası");
+                } else {
+                    exchange.close();
+                }
             }
         }
-        
-        private void handleSeriesQuery(HttpExchange exchange, Map<String, String> params) throws IOException {
+    }
+
+    /**
+     * GET /InvoicePayload?seri=...&amp;no=...
+     * The document of an invoice exactly as it was uploaded, read back from
+     * the payload archive, with the content type of its format. 404 if the
+     * invoice does not exist or its payload was not archived (uploaded
+     * before archiving was enabled, from the desktop client or while the
+     * archive queue was full). Invoices of a TCP batch are archived as
+     * their own element, object or binary document, or as the whole batch
+     * when the databind parsers are configured or the XML is not UTF-8.
+     */
+    private class InvoicePayloadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            Map<String, String> params = parseQueryString(exchange.getRequestURI().getQuery());
             String seri = params.get("seri");
             String no = params.get("no");
-            
-            System.out.println("Series query - seri: " + seri + ", no: " + no);
-            
             if (seri == null || no == null) {
                 sendResponse(exchange, 400, "Seri ve numara gerekli");
                 return;
             }
-            
-            Database.Invoice invoice = database.getInvoiceBySeriesAndNumber(seri, no);
-            if (invoice == null) {
-                System.out.println("Invoice not found: " + seri + "-" + no);
-                sendResponse(exchange, 404, "Kayıt bulunamadı");
-                return;
+
+            try {
+                long ref = ((ServerDatabase) database).getPayloadRef(seri, no);
+                if (ref == 0) {
+                    sendResponse(exchange, 404, "Arşivlenmiş fatura bulunamadı");
+                    return;
+                }
+                PayloadArchive.Payload payload = payloadArchive.read(ref);
+                String contentType;
+                switch (payload.format) {
+                    case XML:
+                        contentType = "application/xml";
+                        break;
+                    case JSON:
+                        contentType = "application/json; charset=" + payload.charset.name();
+                        break;
+                    default:
+                        contentType = "application/octet-stream";
+                }
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                try (OutputStream os = openResponseBody(exchange, 200)) {
+                    os.write(payload.data);
+                }
+            } catch (Exception e) {
+                log.error("Error reading archived payload of {}-{}: {}", seri, no, e.getMessage());
+                if (exchange.getResponseCode() == -1) {
+                    sendResponse(exchange, 500, "Arşiv okunamadı");
+                } else {
+                    exchange.close();
+                }
             }
-            
-            // Return only total amount as specified in documentation
-            String response = String.format("%.2f", invoice.totalAfter);
-            sendResponse(exchange, 200, response);
         }
-        
-        private void handleNameQuery(HttpExchange exchange, Map<String, String> params) throws IOException {
-            String name = params.get("name");
-            
-            System.out.println("Name query - name: " + name);
-            
-            if (name == null || name.trim().isEmpty()) {
-                sendResponse(exchange, 400, "Müşteri adı gerekli");
-                return;
+    }
+
+    private static final byte[] EVENT_STREAM_KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Writes the backlog after afterId, then live events until the client goes
+     * away or the feed drops the subscriber.
+     */
+    private void streamInvoiceEvents(HttpExchange exchange, InvoiceEventFeed.Subscriber subscriber, long afterId) {
+        long heartbeatMs = TimeUnit.SECONDS.toMillis(config.getEventFeedHeartbeatSeconds());
+        long lastId = afterId;
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(EVENT_STREAM_KEEP_ALIVE);
+            os.flush();
+
+            // Backlog from the database; live events are buffered meanwhile
+            List<ServerDatabase.InvoiceSummary> page;
+            do {
+                page = eventFeed.readAfter(lastId);
+                for (ServerDatabase.InvoiceSummary invoice : page) {
+                    writeInvoiceEvent(os, invoice);
+                    lastId = invoice.id;
+                }
+                os.flush();
+            } while (page.size() == eventFeed.getPageSize() && !subscriber.isDropped());
+
+            while (!subscriber.isDropped()) {
+                ServerDatabase.InvoiceSummary invoice = subscriber.poll(heartbeatMs, TimeUnit.MILLISECONDS);
+                if (invoice == null) {
+                    os.write(EVENT_STREAM_KEEP_ALIVE);
+                    os.flush();
+                } else if (invoice.id > lastId) { // lower ids were part of the backlog
+                    writeInvoiceEvent(os, invoice);
+                    lastId = invoice.id;
+                    if (!subscriber.hasBuffered()) {
+                        os.flush();
+                    }
+                }
             }
-            
-            Database.Invoice[] invoices = database.getInvoicesByCustomerName(name);
-            if (invoices.length == 0) {
-                System.out.println("No invoices found for customer: " + name);
-                sendResponse(exchange, 404, "Kayıt bulunamadı");
-                return;
+            if (log.isDebugEnabled()) {
+                log.debug("Invoice event stream closed by the server after id {}", lastId);
             }
-            
-            // Return total amounts of all invoices for this customer
-            StringBuilder response = new StringBuilder();
-            double totalSum = 0;
-            for (Database.Invoice invoice : invoices) {
-                if (response.length() > 0) {
-                    response.append("\n");
-                }
-                response.append(String.format("Fatura %s-%s: %.2f TL", 
-                    invoice.series, invoice.number, invoice.totalAfter));
-                totalSum += invoice.totalAfter;
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Invoice event stream {} after id {}: {}",
+                    subscriber.isDropped() ? "dropped" : "closed by the client", lastId, e.getMessage());
             }
-            response.append(String.format("\nToplam: %.2f TL", totalSum));
-            
-            sendResponse(exchange, 200, response.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            eventFeed.unsubscribe(subscriber);
+            exchange.close();
         }
-        
-        private void handleListQuery(HttpExchange exchange, Map<String, String> params) throws IOException {
-            String[] invoiceList = database.getInvoiceList();
-            StringBuilder response = new StringBuilder();
-            response.append("Fatura Listesi:\n");
-            for (String invoice : invoiceList) {
-                response.append(invoice).append("\n");
+    }
+
+    private static void writeInvoiceEvent(OutputStream os, ServerDatabase.InvoiceSummary invoice) throws IOException {
+        StringWriter data = new StringWriter(128);
+        try (JsonGenerator generator = InvoiceCodecs.jsonFactory().createGenerator(data)) {
+            generator.writeStartObject();
+            generator.writeNumberField("id", invoice.id);
+            generator.writeStringField("series", invoice.series);
+            generator.writeStringField("number", invoice.number);
+            generator.writeNumberField("total", invoice.totalAfter);
+            generator.writeStringField("source", invoice.source);
+            generator.writeEndObject();
+        }
+        String event = "id: " + invoice.id + "\nevent: invoice\ndata: " + data + "\n\n";
+        os.write(event.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Response formats for QueryInvoice, chosen from the Accept header.
+     */
+    private enum ResponseFormat {
+        TEXT("text/plain; charset=UTF-8"),
+        JSON("application/json; charset=UTF-8"),
+        XML("application/xml; charset=UTF-8");
+
+        final String contentType;
+
+        ResponseFormat(String contentType) {
+            this.contentType = contentType;
+        }
+
+        /**
+         * Picks the supported type with the highest q-value; earlier entries win ties.
+         * A missing header, wildcards and unsupported types mean plain text.
+         */
+        static ResponseFormat negotiate(String accept) {
+            if (accept == null || accept.isBlank()) return TEXT;
+            ResponseFormat best = TEXT;
+            double bestQuality = 0;
+            for (String range : accept.split(",")) {
+                ResponseFormat candidate = fromMediaType(mediaType(range));
+                if (candidate == null) continue;
+                double quality = 1.0;
+                for (String parameter : range.split(";")) {
+                    String[] pair = parameter.trim().split("=", 2);
+                    if (pair.length == 2 && pair[0].trim().equals("q")) {
+                        try {
+                            quality = Double.parseDouble(pair[1].trim());
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (quality > bestQuality) {
+                    best = candidate;
+                    bestQuality = quality;
+                }
             }
-            sendResponse(exchange, 200, response.toString());
+            return best;
+        }
+
+        private static ResponseFormat fromMediaType(String mediaType) {
+            if (isJsonMediaType(mediaType)) return JSON;
+            if (isXmlMediaType(mediaType)) return XML;
+            if (mediaType.equals("text/plain") || mediaType.equals("*/*") || mediaType.equals("text/*")) return TEXT;
+            return null;
+        }
+    }
+
+    /**
+     * Streaming generator for a structured response. XML documents get the
+     * given root element name.
+     */
+    private JsonGenerator createGenerator(ResponseFormat format, OutputStream os, String rootName) throws IOException {
+        if (format == ResponseFormat.XML) {
+            ToXmlGenerator generator = InvoiceCodecs.xmlFactory().createGenerator(os);
+            generator.setNextName(new QName(rootName));
+            return generator;
+        }
+        return InvoiceCodecs.jsonFactory().createGenerator(os, JsonEncoding.UTF8);
+    }
+
+    private static void writeInvoice(JsonGenerator generator, Database.Invoice invoice) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("id", invoice.id);
+        generator.writeStringField("series", invoice.series);
+        generator.writeStringField("number", invoice.number);
+        generator.writeStringField("customerName", invoice.customerName);
+        generator.writeBooleanField("isCompany", invoice.isCompany);
+        generator.writeNumberField("totalBefore", invoice.totalBefore);
+        generator.writeNumberField("discount", invoice.discount);
+        generator.writeNumberField("totalAfter", invoice.totalAfter);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Error reply in the negotiated format: plain text, {"error": "..."} or &lt;error&gt;...&lt;/error&gt;.
+     */
+    private void sendError(HttpExchange exchange, int statusCode, String message, ResponseFormat format) throws IOException {
+        if (format == ResponseFormat.TEXT) {
+            sendResponse(exchange, statusCode, message);
+            return;
+        }
+        try (OutputStream os = beginStreamingResponse(exchange, statusCode, format.contentType);
+             JsonGenerator generator = createGenerator(format, os, "error")) {
+            generator.writeStartObject();
+            generator.writeStringField("message", message);
+            generator.writeEndObject();
         }
     }
 
+    /**
+     * Body stream for a response whose length is not known up front; see
+     * {@link #openResponseBody(HttpExchange, int)}.
+     */
+    private OutputStream beginStreamingResponse(HttpExchange exchange, int statusCode, String contentType) {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*"); // Allow CORS
+        return openResponseBody(exchange, statusCode);
+    }
+
     // Helper methods
     private String readRequestBody(HttpExchange exchange) throws IOException {
-        try (InputStream is = exchange.getRequestBody();
+        try (InputStream is = openRequestBody(exchange);
              ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
             byte[] buffer = new byte[1024];
             int bytesRead;
@@ -264,6 +1594,43 @@ public class HttpServer {
         }
     }
 
+    /**
+     * Media type of a Content-Type header without parameters, lower case; empty if absent.
+     */
+    private static String mediaType(String contentType) {
+        if (contentType == null) return "";
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon >= 0 ? contentType.substring(0, semicolon) : contentType;
+        return type.trim().toLowerCase(Locale.ROOT);
+    }
+    
+    private static boolean isJsonMediaType(String mediaType) {
+        return mediaType.equals("application/json") || mediaType.endsWith("+json");
+    }
+    
+    private static boolean isXmlMediaType(String mediaType) {
+        return mediaType.equals("application/xml") || mediaType.equals("text/xml") || mediaType.endsWith("+xml");
+    }
+    
+    /**
+     * Charset parameter of a Content-Type header, UTF-8 if absent or unknown.
+     */
+    private static Charset charset(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                String[] pair = parameter.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Unknown charset {}, using UTF-8", pair[1]);
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
     private Map<String, String> parseFormData(String data) {
         Map<String, String> params = new HashMap<>();
         if (data == null || data.isEmpty()) return params;
@@ -277,7 +1644,7 @@ public class HttpServer {
                     String value = URLDecoder.decode(keyValue[1], "UTF-8");
                     params.put(key, value);
                 } catch (UnsupportedEncodingException e) {
-                    System.err.println("Error decoding form data pair: " + pair);
+                    log.warn("Error decoding form data pair: {}", pair);
                 }
             }
         }
@@ -297,13 +1664,19 @@ public class HttpServer {
                     String value = URLDecoder.decode(keyValue[1], "UTF-8");
                     params.put(key, value);
                 } catch (UnsupportedEncodingException e) {
-                    System.err.println("Error decoding query parameter: " + pair);
+                    log.warn("Error decoding query parameter: {}", pair);
                 }
             }
         }
         return params;
     }
 
+    private void sendBusy(HttpExchange exchange) throws IOException {
+        log.warn("HTTP server busy, rejecting {} {}", exchange.getRequestMethod(), exchange.getRequestURI());
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(admission.getRetryAfterSeconds()));
+        sendResponse(exchange, 503, "Sunucu meşgul, lütfen tekrar deneyin");
+    }
+
     private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
         sendResponse(exchange, statusCode, response, "text/plain; charset=UTF-8");
     }
@@ -312,86 +1685,92 @@ public class HttpServer {
         exchange.getResponseHeaders().set("Content-Type", contentType);
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*"); // Allow CORS
         byte[] responseBytes = response.getBytes("UTF-8");
-        exchange.sendResponseHeaders(statusCode, responseBytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
+        try (OutputStream os = openResponseBody(exchange, statusCode)) {
             os.write(responseBytes);
         }
     }
-
-    private boolean saveInvoiceToDatabase(InvoiceUploadData.UploadSystem uploadData) {
-        try {
-            // Get customer and invoice data
-            InvoiceUploadData.Customer customer = uploadData.customer;
-            InvoiceUploadData.InvoiceData invoiceData = uploadData.invoiceData;
-            
-            // Find or create customer
-            int customerId = findOrCreateCustomer(customer.name, String.valueOf(customer.ssn), customer.isCompany());
-            
-            // Ensure items exist and convert to map
-            Map<String, Double> itemQuantities = new HashMap<>();
-            for (InvoiceUploadData.Item item : invoiceData.items) {
-                if (!itemExists(item.name)) {
-                    database.addItem(item.name, item.unitPrice);
-                }
-                itemQuantities.put(item.name, item.quantity);
-            }
-            
-            // Save invoice with HTTP source tracking if using ServerDatabase
-            if (database instanceof ServerDatabase) {
-                return ((ServerDatabase) database).saveInvoiceWithSource(invoiceData.seri, invoiceData.number, customerId, 
-                                                                        invoiceData.discount, itemQuantities, "HTTP");
-            } else {
-                return database.saveInvoice(invoiceData.seri, invoiceData.number, customerId, 
-                                           invoiceData.discount, itemQuantities);
-            }
-        } catch (Exception e) {
-            System.err.println("Error saving invoice to database: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    
+    /**
+     * Body stream for a response whose headers are already set. Small bodies
+     * go out uncompressed with a fixed length; bodies reaching the threshold
+     * are streamed, gzip-compressed when the client accepts it.
+     */
+    private OutputStream openResponseBody(HttpExchange exchange, int statusCode) {
+        Object etag = exchange.getAttribute(ETAG_ATTRIBUTE);
+        if (etag != null && statusCode == 200) {
+            exchange.getResponseHeaders().set("ETag", (String) etag);
+            exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+        } else {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
         }
+        boolean gzip = acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        return new ResponseBodyStream(exchange, statusCode, gzip, config.getHttpCompressionThreshold());
     }
     
-    private int findOrCreateCustomer(String name, String ssn, boolean isCompany) {
-        // Try to find existing customer by SSN
-        String[] customers = database.getCustomers();
-        for (String customerStr : customers) {
-            if (customerStr.equals("Yeni Müşteri")) continue;
-            
-            // Parse customer ID
-            String idStr = customerStr.substring(1, customerStr.indexOf(")"));
-            int customerId = Integer.parseInt(idStr);
-            Database.Customer customer = database.getCustomer(customerId);
-            
-            if (customer != null && customer.ssn.equals(ssn)) {
-                return customer.id;
+    /**
+     * True if an Accept-Encoding header allows gzip (explicitly or via '*') with a non-zero q-value.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) continue;
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String[] pair = parts[i].trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equals("q")) {
+                    try {
+                        quality = Double.parseDouble(pair[1].trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
             }
+            if (quality > 0) return true;
         }
-        
-        // Customer doesn't exist, create new one
-        database.addCustomer(name, ssn, isCompany);
-        
-        // Find the newly created customer
-        customers = database.getCustomers();
-        for (String customerStr : customers) {
-            if (customerStr.equals("Yeni Müşteri")) continue;
-            
-            String idStr = customerStr.substring(1, customerStr.indexOf(")"));
-            int customerId = Integer.parseInt(idStr);
-            Database.Customer customer = database.getCustomer(customerId);
-            
-            if (customer != null && customer.ssn.equals(ssn)) {
-                return customer.id;
-            }
+        return false;
+    }
+    
+    /**
+     * Request body, decompressed when the client sent Content-Encoding: gzip,
+     * limited to http.maxRequestBodyBytes after decoding. Reading past the
+     * limit throws {@link BoundedInputStream.LimitExceededException}, which
+     * handlers answer with 413. Callers check
+     * {@link #isSupportedContentEncoding(HttpExchange)} first.
+     */
+    private InputStream openRequestBody(HttpExchange exchange) throws IOException {
+        return new BoundedInputStream(openUnboundedRequestBody(exchange), config.getHttpMaxRequestBodyBytes());
+    }
+
+    /**
+     * Decoded request body without a size limit, for handlers that never hold
+     * the whole body (the streamed batch caps each line instead).
+     */
+    private InputStream openUnboundedRequestBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (encoding != null && isGzipCoding(encoding)) {
+            return new GZIPInputStream(body, 8192);
         }
-        
-        return -1; // Error case
+        return body;
+    }
+
+    private void sendBodyTooLarge(HttpExchange exchange) throws IOException {
+        log.warn("Request body over {} bytes rejected: {}", config.getHttpMaxRequestBodyBytes(), exchange.getRequestURI().getPath());
+        sendResponse(exchange, 413, "İstek gövdesi çok büyük");
     }
     
-    private boolean itemExists(String itemName) {
-        Map<String, Double> items = database.getItems();
-        return items.containsKey(itemName);
+    private static boolean isSupportedContentEncoding(HttpExchange exchange) {
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        return encoding == null || encoding.isBlank() || encoding.trim().equalsIgnoreCase("identity") || isGzipCoding(encoding);
     }
     
+    private static boolean isGzipCoding(String encoding) {
+        String coding = encoding.trim().toLowerCase(Locale.ROOT);
+        return coding.equals("gzip") || coding.equals("x-gzip");
+    }
+
     private InvoiceUploadData.UploadSystem createUploadSystemFromInvoice(Database.Invoice invoice, List<Database.InvoiceItem> items) {
         // Create customer
         String customerType = invoice.isCompany ? "SIRKET" : "SAHIS";
@@ -0,0 +1,55 @@
+package com.ancienty.server;
+
+import com.ancienty.database.ServerDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text format of bulk delete requests, the same on HTTP and TCP.
+ *
+ * Request: invoice ids and inclusive id ranges ("100-200"), separated by
+ * whitespace, commas or line breaks. Response: the number of invoices
+ * deleted; ids that do not exist or were already deleted are not counted.
+ * Limits: admin.maxDeleteRanges entries and admin.maxDeleteIds ids, so one
+ * range cannot wipe the table.
+ */
+final class IdRangeFormat {
+
+    private IdRangeFormat() {}
+
+    /**
+     * @throws IllegalArgumentException with a message for the client if an
+     *         entry is not an id or range, there are more than maxEntries or
+     *         the entries cover more than maxIds ids
+     */
+    static List<ServerDatabase.IdRange> parse(String text, int maxEntries, long maxIds) {
+        List<ServerDatabase.IdRange> ranges = new ArrayList<>();
+        long ids = 0;
+        for (String entry : text.split("[\\s,]+")) {
+            if (entry.isEmpty()) continue;
+            if (ranges.size() == maxEntries) {
+                throw new IllegalArgumentException("Tek istekte en fazla " + maxEntries + " numara veya aralık silinebilir");
+            }
+            int dash = entry.indexOf('-', 1);
+            long from;
+            long to;
+            try {
+                from = Long.parseLong(dash < 0 ? entry : entry.substring(0, dash));
+                to = dash < 0 ? from : Long.parseLong(entry.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Geçersiz fatura numarası veya aralığı: " + entry);
+            }
+            if (from <= 0 || to < from) {
+                throw new IllegalArgumentException("Geçersiz fatura numarası veya aralığı: " + entry);
+            }
+            // to - from + 1 cannot overflow with from > 0; compare before adding so the sum cannot either
+            if (to - from + 1 > maxIds - ids) {
+                throw new IllegalArgumentException("Tek istekte en fazla " + maxIds + " fatura silinebilir");
+            }
+            ids += to - from + 1;
+            ranges.add(new ServerDatabase.IdRange(from, to));
+        }
+        return ranges;
+    }
+}
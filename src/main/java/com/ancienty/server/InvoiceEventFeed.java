@@ -0,0 +1,222 @@
+package com.ancienty.server;
+
+import com.ancienty.database.InvoiceChangeListener;
+import com.ancienty.database.ServerDatabase;
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Metrics;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fan-out of newly committed invoices to live subscribers (the HTTP event
+ * stream).
+ *
+ * Commits only wake the publisher thread, which reads the new invoices from
+ * the database once, in id order, and offers them to every subscriber's
+ * bounded buffer. A subscriber whose buffer is full is dropped instead of
+ * holding anything up: its close hook disconnects it, and it can reconnect
+ * and resume from the last id it saw. A dropped subscriber still counts
+ * against the limit until its stream has ended. With no subscribers nothing
+ * is read at all.
+ *
+ * Resuming is done by the subscriber: it subscribes first, then reads the
+ * backlog after its last id with {@link #readAfter(long)} until it is caught
+ * up, and skips buffered events it has already read, so no invoice committed
+ * in between is missed.
+ */
+class InvoiceEventFeed implements InvoiceChangeListener {
+
+    private static final Logger log = LogManager.getLogger(InvoiceEventFeed.class);
+
+    /**
+     * One connected consumer; its events wait in a bounded buffer.
+     */
+    static class Subscriber {
+        private final BlockingQueue<ServerDatabase.InvoiceSummary> buffer;
+        private final Runnable closeHook;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean dropped;
+
+        Subscriber(int capacity, Runnable closeHook) {
+            this.buffer = new ArrayBlockingQueue<>(capacity);
+            this.closeHook = closeHook;
+        }
+
+        /**
+         * Next buffered event, or null if none arrived within the timeout.
+         */
+        ServerDatabase.InvoiceSummary poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return buffer.poll(timeout, unit);
+        }
+
+        boolean hasBuffered() {
+            return !buffer.isEmpty();
+        }
+
+        /**
+         * True once the feed gave up on this subscriber (buffer overflow or shutdown).
+         */
+        boolean isDropped() {
+            return dropped;
+        }
+    }
+
+    private final ServerDatabase database;
+    private final int maxSubscribers;
+    private final int bufferSize;
+    private final int pageSize;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ExecutorService publisher;
+    private final AtomicBoolean publishPending = new AtomicBoolean();
+    private volatile long publishedId;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder droppedSubscribers = new LongAdder();
+
+    InvoiceEventFeed(ServerDatabase database, int maxSubscribers, int bufferSize, int pageSize) {
+        this.database = database;
+        this.maxSubscribers = maxSubscribers;
+        this.bufferSize = bufferSize;
+        this.pageSize = pageSize;
+        this.publisher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "invoice-event-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.publishedId = database.getLastCommittedInvoiceId();
+        database.addInvoiceChangeListener(this);
+
+        Metrics.gauge("hugin_event_feed_subscribers", "Connected invoice event subscribers", subscriberCount::get);
+        Metrics.counter("hugin_event_feed_events_total", "Invoice events offered to subscribers", published::sum);
+        Metrics.counter("hugin_event_feed_dropped_subscribers_total",
+            "Invoice event subscribers disconnected for falling behind", droppedSubscribers::sum);
+    }
+
+    /**
+     * @param closeHook run when the feed drops the subscriber; must make its
+     *                  stream end even if it is blocked writing to the client
+     * @return the new subscriber, or null if the subscriber limit is reached
+     */
+    Subscriber subscribe(Runnable closeHook) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(bufferSize, closeHook);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Called once the subscriber's stream has ended; frees its place.
+     */
+    void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        if (subscriber.released.compareAndSet(false, true)) {
+            subscriberCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Up to one page of committed invoices after the given id, for resuming.
+     * A page shorter than {@link #getPageSize()} means the reader is caught up.
+     */
+    List<ServerDatabase.InvoiceSummary> readAfter(long afterId) {
+        return database.getInvoicesAfter(afterId, pageSize);
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Id of the last committed invoice; a subscriber starting here only sees new invoices.
+     */
+    long getLastInvoiceId() {
+        return database.getLastCommittedInvoiceId();
+    }
+
+    @Override
+    public void invoicesChanged(List<InvoiceChange> changes) {
+        // Runs on the committing thread: just make sure a publish pass follows
+        if (publishPending.compareAndSet(false, true)) {
+            try {
+                publisher.execute(this::publish);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    void stop() {
+        publisher.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            drop(subscriber);
+        }
+    }
+
+    private void publish() {
+        publishPending.set(false);
+        try {
+            long committed = database.getLastCommittedInvoiceId();
+            if (subscribers.isEmpty()) {
+                // New subscribers read their backlog themselves
+                publishedId = committed;
+                return;
+            }
+            while (publishedId < committed) {
+                List<ServerDatabase.InvoiceSummary> page = database.getInvoicesAfter(publishedId, pageSize);
+                if (page.isEmpty()) {
+                    // Remaining ids were deleted again
+                    publishedId = committed;
+                    break;
+                }
+                for (Subscriber subscriber : subscribers) {
+                    offer(subscriber, page);
+                }
+                published.add(page.size());
+                publishedId = page.get(page.size() - 1).id;
+            }
+        } catch (RuntimeException e) {
+            log.error("Error publishing invoice events", e);
+        }
+    }
+
+    private void offer(Subscriber subscriber, List<ServerDatabase.InvoiceSummary> events) {
+        for (ServerDatabase.InvoiceSummary event : events) {
+            if (!subscriber.buffer.offer(event)) {
+                drop(subscriber);
+                droppedSubscribers.increment();
+                log.warn("Invoice event subscriber dropped: {} events buffered", bufferSize);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops offering events to the subscriber and disconnects it. It stays
+     * counted until its stream calls {@link #unsubscribe(Subscriber)}.
+     */
+    private void drop(Subscriber subscriber) {
+        subscriber.dropped = true;
+        subscribers.remove(subscriber);
+        try {
+            subscriber.closeHook.run();
+        } catch (RuntimeException e) {
+            log.warn("Error disconnecting invoice event subscriber: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.ancienty.server;
+
+import com.ancienty.database.Database;
+import com.ancienty.database.ServerDatabase;
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Histogram;
+import com.ancienty.metrics.Metrics;
+import com.ancienty.server.model.InvoiceCodecs;
+import com.ancienty.server.model.InvoiceUploadData;
+import com.ancienty.server.protocol.BinaryInvoiceCodec;
+import com.ancienty.server.protocol.JsonInvoiceParser;
+import com.ancienty.server.protocol.XmlInvoiceParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one ingest pipeline behind every upload path, HTTP and TCP alike.
+ *
+ * An upload goes through four stages:
+ * <ol>
+ *   <li>decode: payload bytes to {@link InvoiceUploadData.UploadSystem}</li>
+ *   <li>validate: structural checks, no database access</li>
+ *   <li>resolve: customer id and item catalog entries</li>
+ *   <li>persist: the invoice rows, one transaction per batch</li>
+ * </ol>
+ * Resolve and persist run inside a {@link Session}, which caches customers
+ * and items for its lifetime. Every stage reports its duration to the
+ * registered {@link StageListener}s; the service itself records them as the
+ * hugin_ingest_stage_duration_seconds histogram.
+ *
+ * XML and JSON are decoded by the streaming {@link XmlInvoiceParser} and
+ * {@link JsonInvoiceParser}; ingest.parser "databind" switches back to
+ * Jackson databind (XML) and reflective Gson (JSON).
+ *
+ * Single-document uploads go through {@link #ingest}, which first looks the
+ * raw payload up in a {@link PayloadDedupeCache}: a byte-identical resend of
+ * a recent upload gets the original outcome back without any stage running.
+ * The payload of every saved document is handed to the {@link PayloadArchive},
+ * if one is configured.
+ */
+public class InvoiceIngestService {
+
+    private static final Logger log = LogManager.getLogger(InvoiceIngestService.class);
+
+    public enum Format { XML, JSON, BINARY }
+
+    public enum Stage { DECODE, VALIDATE, RESOLVE, PERSIST }
+
+    /**
+     * Result of {@link #ingest}: saved, rejected as undecodable or invalid,
+     * or not saved by the database (duplicate, unresolvable customer, error).
+     */
+    public enum Outcome { SAVED, INVALID, FAILED }
+
+    /**
+     * Timing hook, called on the ingesting thread after each stage.
+     */
+    @FunctionalInterface
+    public interface StageListener {
+        /**
+         * @param count documents the stage handled in this call
+         */
+        void stageCompleted(Stage stage, String source, int count, long nanos);
+    }
+
+    private static final String PARSER_DATABIND = "databind";
+
+    private final Database database;
+    private final boolean streamingParsers;
+    private final List<StageListener> stageListeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Histogram[]> stageTimes = new ConcurrentHashMap<>();
+    private final PayloadDedupeCache dedupeCache;
+    private final PayloadArchive archive; // null when archiving is disabled
+
+    public InvoiceIngestService(Database database, ServerConfig config) {
+        this(database, config, null);
+    }
+
+    InvoiceIngestService(Database database, ServerConfig config, PayloadArchive archive) {
+        this.database = database;
+        this.archive = archive;
+        this.streamingParsers = !PARSER_DATABIND.equalsIgnoreCase(config.getIngestParser());
+        this.dedupeCache = new PayloadDedupeCache(config.getIngestDedupeMaxEntries(),
+            TimeUnit.SECONDS.toNanos(config.getIngestDedupeTtlSeconds()));
+        database.addInvoiceChangeListener(dedupeCache);
+        addStageListener((stage, source, count, nanos) -> stageHistograms(source)[stage.ordinal()].record(nanos));
+    }
+
+    public void addStageListener(StageListener listener) {
+        stageListeners.add(listener);
+    }
+
+    // ──────────────────────────────── SINGLE UPLOAD ────────────────────────────────
+
+    /**
+     * Decodes, validates and saves one document, unless the same payload was
+     * uploaded recently, in which case its earlier outcome is returned as is.
+     * The charset applies to JSON only, as in {@link #decode(String, Format, InputStream, Charset)}.
+     */
+    public Outcome ingest(String source, Format format, byte[] data, int offset, int length, Charset charset) {
+        String key = PayloadDedupeCache.key(format, charset, data, offset, length);
+        Outcome cached = dedupeCache.get(key);
+        if (cached != null) {
+            log.debug("{} upload answered from the dedupe cache: {}", source, cached);
+            return cached;
+        }
+
+        InvoiceUploadData.UploadSystem document;
+        try {
+            document = decode(source, format, new ByteArrayInputStream(data, offset, length), charset);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Error parsing invoice data: {}", e.getMessage());
+            dedupeCache.putInvalid(key);
+            return Outcome.INVALID;
+        }
+        if (log.isDebugEnabled() && document != null) {
+            logInvoiceDetails(document);
+        }
+        String problem = validate(source, document);
+        if (problem != null) {
+            log.warn("Invalid upload data: {}", problem);
+            dedupeCache.putInvalid(key);
+            return Outcome.INVALID;
+        }
+
+        if (!openSession(source).save(List.of(document))[0]) {
+            // Possibly transient, so a resend is tried again
+            return Outcome.FAILED;
+        }
+        dedupeCache.putSaved(key, document.invoiceData.seri, document.invoiceData.number);
+        archivePayload(document, format, charset, data, offset, length);
+        return Outcome.SAVED;
+    }
+
+    public Outcome ingest(String source, Format format, String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        return ingest(source, format, data, 0, data.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Queues the original payload of a saved document for the archive; does
+     * nothing when archiving is disabled.
+     */
+    void archivePayload(InvoiceUploadData.UploadSystem document, Format format, Charset charset,
+                        byte[] data, int offset, int length) {
+        if (archive != null) {
+            archive.submit(document.invoiceData.seri, document.invoiceData.number, format, charset, data, offset, length);
+        }
+    }
+
+    /**
+     * Queues the original payloads of the saved documents of a batch: each
+     * document's own bytes at its range from {@link #decodeBatch}, or the
+     * whole batch when its range is unknown. Batches are UTF-8.
+     */
+    void archiveBatch(List<InvoiceUploadData.UploadSystem> documents, boolean[] saved, List<int[]> ranges,
+                      Format format, byte[] data, int offset, int length) {
+        if (archive == null) return;
+        for (int i = 0; i < documents.size(); i++) {
+            if (!saved[i]) continue;
+            int[] range = i < ranges.size() ? ranges.get(i) : null;
+            if (range == null) {
+                archivePayload(documents.get(i), format, StandardCharsets.UTF_8, data, offset, length);
+            } else if (format == Format.BINARY) {
+                // Batch entries have no version byte of their own
+                byte[] document = BinaryInvoiceCodec.batchDocument(data, range[0], range[1]);
+                archivePayload(documents.get(i), format, StandardCharsets.UTF_8, document, 0, document.length);
+            } else {
+                archivePayload(documents.get(i), format, StandardCharsets.UTF_8, data, range[0], range[1]);
+            }
+        }
+    }
+
+    /**
+     * @return the payload archive, or null when archiving is disabled
+     */
+    PayloadArchive getPayloadArchive() {
+        return archive;
+    }
+
+    private static void logInvoiceDetails(InvoiceUploadData.UploadSystem uploadData) {
+        InvoiceUploadData.Customer customer = uploadData.customer;
+        InvoiceUploadData.InvoiceData invoiceData = uploadData.invoiceData;
+        if (customer != null) {
+            log.debug("Customer: name={}, ssn={}, type={}", customer.name, customer.ssn, customer.type);
+        }
+        if (invoiceData != null) {
+            log.debug("Invoice: series={}, number={}, total={}, discount={}, amountToPay={}",
+                invoiceData.seri, invoiceData.number, invoiceData.totalAmount, invoiceData.discount, invoiceData.amountToPay);
+            if (invoiceData.items != null) {
+                for (int i = 0; i < invoiceData.items.size(); i++) {
+                    InvoiceUploadData.Item item = invoiceData.items.get(i);
+                    log.debug("  {}. {} - Qty: {}, Unit Price: {}, Line Total: {}",
+                        i + 1, item.name, item.quantity, item.unitPrice, item.lineTotal);
+                }
+            }
+        }
+    }
+
+    // ──────────────────────────────── DECODE ────────────────────────────────
+
+    public InvoiceUploadData.UploadSystem decode(String source, Format format, byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        InvoiceUploadData.UploadSystem document;
+        switch (format) {
+            case XML:
+                document = streamingParsers
+                    ? XmlInvoiceParser.parse(data, offset, length)
+                    : InvoiceCodecs.xmlDocumentReader().readValue(data, offset, length);
+                break;
+            case JSON:
+                document = streamingParsers
+                    ? JsonInvoiceParser.parse(data, offset, length)
+                    : InvoiceCodecs.gson().fromJson(new String(data, offset, length, StandardCharsets.UTF_8), InvoiceUploadData.UploadSystem.class);
+                break;
+            default:
+                document = BinaryInvoiceCodec.decode(data, offset, length);
+        }
+        completed(Stage.DECODE, source, 1, start);
+        return document;
+    }
+
+    /**
+     * Decodes a document as it is read from the stream. The charset applies
+     * to JSON only; XML is detected from its declaration.
+     */
+    public InvoiceUploadData.UploadSystem decode(String source, Format format, InputStream in, Charset charset) throws IOException {
+        long start = System.nanoTime();
+        InvoiceUploadData.UploadSystem document;
+        switch (format) {
+            case XML:
+                document = streamingParsers
+                    ? XmlInvoiceParser.parse(in)
+                    : InvoiceCodecs.xmlDocumentReader().readValue(in);
+                break;
+            case JSON:
+                document = streamingParsers
+                    ? JsonInvoiceParser.parse(in, charset)
+                    : InvoiceCodecs.gson().fromJson(new InputStreamReader(in, charset), InvoiceUploadData.UploadSystem.class);
+                break;
+            default: {
+                byte[] data = in.readAllBytes();
+                document = BinaryInvoiceCodec.decode(data, 0, data.length);
+            }
+        }
+        completed(Stage.DECODE, source, 1, start);
+        return document;
+    }
+
+    public InvoiceUploadData.UploadSystem decode(String source, Format format, String text) throws IOException {
+        if (format == Format.BINARY) {
+            throw new IOException("Binary documents cannot be decoded from text");
+        }
+        long start = System.nanoTime();
+        InvoiceUploadData.UploadSystem document;
+        if (format == Format.XML) {
+            document = streamingParsers
+                ? XmlInvoiceParser.parse(text)
+                : InvoiceCodecs.xmlDocumentReader().readValue(text);
+        } else {
+            document = streamingParsers
+                ? JsonInvoiceParser.parse(text)
+                : InvoiceCodecs.gson().fromJson(text, InvoiceUploadData.UploadSystem.class);
+        }
+        completed(Stage.DECODE, source, 1, start);
+        return document;
+    }
+
+    /**
+     * Decodes a batch: an &lt;uploadBatch&gt; document, a JSON array or a binary batch.
+     */
+    public List<InvoiceUploadData.UploadSystem> decodeBatch(String source, Format format, byte[] data, int offset, int length) throws IOException {
+        return decodeBatch(source, format, data, offset, length, null);
+    }
+
+    /**
+     * Decodes a batch and, if ranges is not null, adds where each document
+     * sits in data for {@link #archiveBatch}. The databind parsers cannot
+     * tell, so with them ranges stays empty.
+     */
+    public List<InvoiceUploadData.UploadSystem> decodeBatch(String source, Format format, byte[] data, int offset, int length,
+                                                            List<int[]> ranges) throws IOException {
+        long start = System.nanoTime();
+        List<InvoiceUploadData.UploadSystem> documents;
+        switch (format) {
+            case XML: {
+                if (streamingParsers) {
+                    documents = XmlInvoiceParser.parseBatch(data, offset, length, ranges);
+                    break;
+                }
+                InvoiceUploadData.UploadBatch batch = InvoiceCodecs.xmlBatchReader().readValue(data, offset, length);
+                documents = batch != null && batch.invoices != null ? batch.invoices : List.of();
+                break;
+            }
+            case JSON: {
+                if (streamingParsers) {
+                    documents = JsonInvoiceParser.parseBatch(data, offset, length, ranges);
+                    break;
+                }
+                InvoiceUploadData.UploadSystem[] array = InvoiceCodecs.gson().fromJson(
+                    new String(data, offset, length, StandardCharsets.UTF_8), InvoiceUploadData.UploadSystem[].class);
+                documents = array != null ? Arrays.asList(array) : List.of();
+                break;
+            }
+            default:
+                documents = BinaryInvoiceCodec.decodeBatch(data, offset, length, ranges);
+        }
+        completed(Stage.DECODE, source, documents.size(), start);
+        return documents;
+    }
+
+    // ──────────────────────────────── VALIDATE ────────────────────────────────
+
+    /**
+     * Structural checks that need no database access.
+     *
+     * @return null if the document can be resolved and persisted, otherwise the reason it cannot
+     */
+    public String validate(String source, InvoiceUploadData.UploadSystem document) {
+        long start = System.nanoTime();
+        String problem = problemOf(document);
+        completed(Stage.VALIDATE, source, 1, start);
+        return problem;
+    }
+
+    private static String problemOf(InvoiceUploadData.UploadSystem document) {
+        if (document == null) return "Boş belge";
+        if (document.customer == null) return "Müşteri bilgisi eksik";
+        if (document.invoiceData == null) return "Fatura bilgisi eksik";
+        if (document.invoiceData.items == null) return "Fatura kalemleri eksik";
+        if (document.invoiceData.seri == null || document.invoiceData.number == null) return "Seri veya numara eksik";
+        return null;
+    }
+
+    // ──────────────────────────────── RESOLVE + PERSIST ────────────────────────────────
+
+    /**
+     * Resolve/persist context for one upload session (a request, a TCP
+     * batch frame, a streamed HTTP batch or a background writer batch).
+     */
+    public Session openSession(String source) {
+        return new Session(source);
+    }
+
+    /**
+     * Caches customers and the item catalog for its lifetime, so a session
+     * spanning many persist batches does not repeat lookups. Not thread-safe.
+     */
+    public class Session {
+        private final String source;
+        private final Map<String, Integer> customerIds = new HashMap<>();
+        private Map<String, Double> knownItems;
+
+        private Session(String source) {
+            this.source = source;
+        }
+
+        /**
+         * Resolves every document, then persists all of them in one
+         * transaction. Documents that fail validation or resolution are
+         * reported as failed without touching the invoice tables.
+         *
+         * @return per-document result in the same order as the input
+         */
+        public boolean[] save(List<InvoiceUploadData.UploadSystem> documents) {
+            long start = System.nanoTime();
+            List<ServerDatabase.PendingInvoice> pending = new ArrayList<>(documents.size());
+            for (InvoiceUploadData.UploadSystem document : documents) {
+                pending.add(problemOf(document) == null ? resolve(document) : null);
+            }
+            completed(Stage.RESOLVE, source, documents.size(), start);
+
+            start = System.nanoTime();
+            boolean[] results = persist(pending);
+            completed(Stage.PERSIST, source, documents.size(), start);
+            return results;
+        }
+
+        private ServerDatabase.PendingInvoice resolve(InvoiceUploadData.UploadSystem document) {
+            InvoiceUploadData.Customer customer = document.customer;
+            InvoiceUploadData.InvoiceData invoiceData = document.invoiceData;
+
+            String customerKey = customer.name + "\u0000" + customer.ssn;
+            Integer customerId = customerIds.get(customerKey);
+            if (customerId == null) {
+                customerId = findOrCreateCustomer(database, customer.name, customer.ssn, customer.isCompany());
+                customerIds.put(customerKey, customerId);
+            }
+            if (customerId == -1) {
+                return null;
+            }
+
+            if (knownItems == null) {
+                knownItems = database.getItems();
+            }
+            Map<String, Double> itemQuantities = new HashMap<>();
+            for (InvoiceUploadData.Item item : invoiceData.items) {
+                if (!knownItems.containsKey(item.name)) {
+                    database.addItem(item.name, item.unitPrice);
+                    knownItems.put(item.name, item.unitPrice);
+                }
+                itemQuantities.put(item.name, item.quantity);
+            }
+            return new ServerDatabase.PendingInvoice(
+                invoiceData.seri, invoiceData.number, customerId, invoiceData.discount, itemQuantities);
+        }
+
+        private boolean[] persist(List<ServerDatabase.PendingInvoice> pending) {
+            if (database instanceof ServerDatabase) {
+                ServerDatabase serverDatabase = (ServerDatabase) database;
+                if (pending.size() == 1) {
+                    // A single invoice needs no savepoint
+                    ServerDatabase.PendingInvoice invoice = pending.get(0);
+                    return new boolean[]{invoice != null && serverDatabase.saveInvoiceWithSource(
+                        invoice.series, invoice.number, invoice.customerId, invoice.discount, invoice.items, source)};
+                }
+                return serverDatabase.saveInvoicesWithSource(pending, source);
+            }
+
+            // Plain database: no batch support, save one by one
+            boolean[] results = new boolean[pending.size()];
+            for (int i = 0; i < pending.size(); i++) {
+                ServerDatabase.PendingInvoice invoice = pending.get(i);
+                if (invoice != null) {
+                    results[i] = database.saveInvoice(
+                        invoice.series, invoice.number, invoice.customerId, invoice.discount, invoice.items);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Looks up a customer by name and numeric SSN, creating it if missing.
+     *
+     * @return customer id, or -1 if the input is invalid or the insert failed
+     */
+    static int findOrCreateCustomer(Database database, String name, String ssn, boolean isCompany) {
+        try {
+            // Validate inputs
+            if (name == null || name.trim().isEmpty()) {
+                log.warn("Customer name is null or empty");
+                return -1;
+            }
+            if (ssn == null || ssn.trim().isEmpty()) {
+                log.warn("Customer SSN is null or empty");
+                return -1;
+            }
+
+            String cleanName = name.trim();
+            String cleanSsn = ssn.trim();
+
+            // Try to parse SSN as long for validation
+            long ssnNumber;
+            try {
+                ssnNumber = Long.parseLong(cleanSsn);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid SSN format: {}", cleanSsn);
+                return -1;
+            }
+
+            // Try to find existing customer
+            int existingCustomerId = database.findCustomer(cleanName, ssnNumber);
+            if (existingCustomerId != -1) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Found existing customer with ID: {}", existingCustomerId);
+                }
+                return existingCustomerId;
+            }
+
+            // Create new customer
+            boolean success = database.addCustomer(cleanName, cleanSsn, isCompany);
+            if (success) {
+                int newCustomerId = database.findCustomer(cleanName, ssnNumber);
+                if (log.isDebugEnabled()) {
+                    log.debug("Created new customer '{}' with ID: {}", cleanName, newCustomerId);
+                }
+                return newCustomerId;
+            } else {
+                log.warn("Failed to add customer to database");
+                return -1;
+            }
+        } catch (Exception e) {
+            log.error("Error inserting customer", e);
+            return -1;
+        }
+    }
+
+    // ──────────────────────────────── TIMING ────────────────────────────────
+
+    private void completed(Stage stage, String source, int count, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        for (StageListener listener : stageListeners) {
+            listener.stageCompleted(stage, source, count, nanos);
+        }
+    }
+
+    private Histogram[] stageHistograms(String source) {
+        return stageTimes.computeIfAbsent(source, s -> {
+            Histogram[] histograms = new Histogram[Stage.values().length];
+            for (Stage stage : Stage.values()) {
+                histograms[stage.ordinal()] = Metrics.histogram("hugin_ingest_stage_duration_seconds",
+                    "Time spent in each ingest stage per call (one document, or a whole batch)",
+                    "source", s, "stage", stage.name().toLowerCase(Locale.ROOT));
+            }
+            return histograms;
+        });
+    }
+}
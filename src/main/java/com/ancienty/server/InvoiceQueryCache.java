@@ -0,0 +1,227 @@
+package com.ancienty.server;
+
+import com.ancienty.database.Database;
+import com.ancienty.database.InvoiceChangeListener;
+import com.ancienty.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Result cache for series/number and customer name lookups, shared by the
+ * HTTP and TCP servers.
+ *
+ * Entries expire after the TTL and the cache holds at most maxEntries; the
+ * oldest entries are evicted first. Committed inserts and deletes invalidate
+ * exactly the entries they can affect: the series/number entry of the
+ * invoice and every name entry whose search string occurs in the customer's
+ * name (the lookup is a case-insensitive substring match). Not-found results
+ * are cached too, so a receipt checked before its upload is invalidated the
+ * same way.
+ *
+ * A load that overlaps an invalidation is not kept, so a result read just
+ * before a commit cannot outlive it.
+ */
+public class InvoiceQueryCache implements InvoiceChangeListener {
+
+    private static class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Database database;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Entry> seriesEntries = new ConcurrentHashMap<>();
+    private final Map<String, Entry> nameEntries = new ConcurrentHashMap<>();
+    // Insertion order for size eviction; keys are prefixed with the map they belong to.
+    // Invalidated keys stay queued until polled, so the queue length is bounded separately.
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public InvoiceQueryCache(Database database, int maxEntries, long ttlNanos) {
+        this.database = database;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        database.addInvoiceChangeListener(this);
+
+        Metrics.counter("hugin_query_cache_hits_total", "Query cache hits", hits::sum);
+        Metrics.counter("hugin_query_cache_misses_total", "Query cache misses", misses::sum);
+        Metrics.counter("hugin_query_cache_evictions_total", "Query cache entries evicted for size", evictions::sum);
+        Metrics.counter("hugin_query_cache_invalidations_total", "Query cache entries invalidated by commits", invalidations::sum);
+        Metrics.gauge("hugin_query_cache_entries", "Query cache entries", this::size);
+        Metrics.gauge("hugin_query_cache_hit_ratio", "Query cache hits / lookups since start", this::getHitRate);
+    }
+
+    /**
+     * Cached {@link Database#getInvoiceBySeriesAndNumber(String, String)}.
+     */
+    public Database.Invoice getInvoiceBySeriesAndNumber(String series, String number) {
+        String key = series + '\u0000' + number;
+        return (Database.Invoice) lookup(seriesEntries, 'S', key,
+                () -> database.getInvoiceBySeriesAndNumber(series, number));
+    }
+
+    /**
+     * {@link Database#getInvoicesBySeriesAndNumbers(List)} that answers from
+     * cached entries where it can. The misses are loaded together and not
+     * cached, so a reconciliation sweep over thousands of receipts does not
+     * push the hot entries out.
+     */
+    public Database.Invoice[] getInvoicesBySeriesAndNumbers(List<Database.InvoiceKey> keys) {
+        Database.Invoice[] invoices = new Database.Invoice[keys.size()];
+        List<Database.InvoiceKey> missing = new ArrayList<>();
+        List<Integer> missingAt = new ArrayList<>();
+        long now = System.nanoTime();
+        for (int i = 0; i < invoices.length; i++) {
+            Database.InvoiceKey key = keys.get(i);
+            Entry entry = seriesEntries.get(key.series + '\u0000' + key.number);
+            if (entry != null && entry.expiresAt - now > 0) {
+                invoices[i] = (Database.Invoice) entry.value;
+            } else {
+                missing.add(key);
+                missingAt.add(i);
+            }
+        }
+        hits.add(invoices.length - missing.size());
+        misses.add(missing.size());
+
+        if (!missing.isEmpty()) {
+            Database.Invoice[] loaded = database.getInvoicesBySeriesAndNumbers(missing);
+            for (int i = 0; i < loaded.length; i++) {
+                invoices[missingAt.get(i)] = loaded[i];
+            }
+        }
+        return invoices;
+    }
+
+    /**
+     * Cached {@link Database#getInvoicesByCustomerName(String)}. The returned
+     * array is shared; callers must not modify it.
+     */
+    public Database.Invoice[] getInvoicesByCustomerName(String customerName) {
+        return (Database.Invoice[]) lookup(nameEntries, 'N', customerName,
+                () -> database.getInvoicesByCustomerName(customerName));
+    }
+
+    @Override
+    public void invoicesChanged(List<InvoiceChange> changes) {
+        // Loads that started before this point must not be stored
+        generation.incrementAndGet();
+
+        Set<String> customerNames = new HashSet<>();
+        for (InvoiceChange change : changes) {
+            remove(seriesEntries, change.series + '\u0000' + change.number);
+            customerNames.add(change.customerName != null ? change.customerName.toLowerCase(Locale.ROOT) : null);
+        }
+        for (String searched : nameEntries.keySet()) {
+            if (affectsNameQuery(searched, customerNames)) {
+                remove(nameEntries, searched);
+            }
+        }
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        seriesEntries.clear();
+        nameEntries.clear();
+        insertionOrder.clear();
+        queued.set(0);
+    }
+
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+    public long getInvalidationCount() { return invalidations.sum(); }
+    public int size() { return seriesEntries.size() + nameEntries.size(); }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private Object lookup(Map<String, Entry> entries, char kind, String key, Supplier<Object> loader) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - now > 0) {
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+
+        long loadGeneration = generation.get();
+        Object value = loader.get();
+        Entry loaded = new Entry(value, System.nanoTime() + ttlNanos);
+        Entry previous = entries.put(key, loaded);
+        if (generation.get() != loadGeneration) {
+            // A commit landed while loading; the value may predate it
+            entries.remove(key, loaded);
+            return value;
+        }
+        if (previous == null) {
+            insertionOrder.add(kind + key);
+            queued.incrementAndGet();
+            evictOverflow();
+        }
+        return value;
+    }
+
+    private void evictOverflow() {
+        while (size() > maxEntries || queued.get() > 2 * maxEntries) {
+            String oldest = insertionOrder.poll();
+            if (oldest == null) return;
+            queued.decrementAndGet();
+            Map<String, Entry> entries = oldest.charAt(0) == 'S' ? seriesEntries : nameEntries;
+            if (entries.remove(oldest.substring(1)) != null) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Map<String, Entry> entries, String key) {
+        if (entries.remove(key) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * True if a name lookup for 'searched' may include an invoice of one of
+     * the changed customers. Errs towards invalidating: LIKE wildcards in the
+     * search string and unknown customer names always match.
+     */
+    private static boolean affectsNameQuery(String searched, Set<String> customerNames) {
+        if (customerNames.contains(null) || searched.indexOf('%') >= 0 || searched.indexOf('_') >= 0) {
+            return true;
+        }
+        String needle = searched.toLowerCase(Locale.ROOT);
+        for (String name : customerNames) {
+            if (name.contains(needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ancienty.server;
+
+import com.ancienty.database.Database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text format of multi-get queries, the same on HTTP and TCP.
+ *
+ * Request: one "series number" pair per line, separated by whitespace as in
+ * the single series query; blank lines are ignored.
+ * Response: one line per pair in request order, the invoice total with two
+ * decimals or {@link #NOT_FOUND}.
+ */
+final class MultiGetFormat {
+
+    static final String NOT_FOUND = "-";
+
+    private MultiGetFormat() {}
+
+    /**
+     * @throws IllegalArgumentException with a message for the client if a line
+     *         is not a pair or there are more than maxKeys pairs
+     */
+    static List<Database.InvoiceKey> parse(String text, int maxKeys) {
+        List<Database.InvoiceKey> keys = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : text.split("\n")) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("Geçersiz sorgu satırı " + lineNumber + ": 'seri numara' bekleniyor");
+            }
+            if (keys.size() == maxKeys) {
+                throw new IllegalArgumentException("Tek sorguda en fazla " + maxKeys + " seri/numara çifti sorgulanabilir");
+            }
+            keys.add(new Database.InvoiceKey(parts[0], parts[1]));
+        }
+        return keys;
+    }
+
+    static String formatTotals(Database.Invoice[] invoices) {
+        StringBuilder response = new StringBuilder(invoices.length * 10);
+        for (Database.Invoice invoice : invoices) {
+            response.append(invoice != null ? String.format("%.2f", invoice.totalAfter) : NOT_FOUND).append('\n');
+        }
+        return response.toString();
+    }
+}
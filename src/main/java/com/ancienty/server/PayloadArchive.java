@@ -0,0 +1,367 @@
+package com.ancienty.server;
+
+import com.ancienty.database.Database;
+import com.ancienty.database.ServerDatabase;
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Metrics;
+import com.ancienty.server.protocol.FrameCompression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only archive of the original payloads of saved invoices, for audit.
+ *
+ * Payloads are compressed and appended to segment files
+ * (segment-000001.dat, ...) in the archive directory; a new segment is
+ * started once the current one reaches the segment size. The position of a
+ * payload is stored in invoice.payloadRef as segment &lt;&lt; 40 | offset, so
+ * the hot tables only grow by one integer per invoice.
+ *
+ * Ingest only hands the payload over: a background writer compresses and
+ * appends queued payloads, syncs the segment and then records their
+ * references in one transaction. When the queue is full the payload is not
+ * archived, ingest is never held up. Reads open the segment on first use and
+ * read the one record, independent of the writer.
+ *
+ * Record layout: int stored length, byte format, byte codec, byte charset
+ * name length, charset name (US-ASCII), the compressed payload as written by
+ * {@link FrameCompression#compress}, int CRC32 of the compressed payload.
+ */
+class PayloadArchive {
+
+    private static final Logger log = LogManager.getLogger(PayloadArchive.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int HEADER_SIZE = 7;
+    private static final int BATCH_SIZE = 500;
+    private static final long POLL_MS = 200;
+
+    /**
+     * An original payload as it was uploaded.
+     */
+    static class Payload {
+        final InvoiceIngestService.Format format;
+        final Charset charset; // null unless the payload is JSON
+        final byte[] data;
+
+        Payload(InvoiceIngestService.Format format, Charset charset, byte[] data) {
+            this.format = format;
+            this.charset = charset;
+            this.data = data;
+        }
+    }
+
+    private static class PendingPayload {
+        final Database.InvoiceKey key;
+        final InvoiceIngestService.Format format;
+        final Charset charset;
+        final byte[] data;
+
+        PendingPayload(Database.InvoiceKey key, InvoiceIngestService.Format format, Charset charset, byte[] data) {
+            this.key = key;
+            this.format = format;
+            this.charset = charset;
+            this.data = data;
+        }
+    }
+
+    private final ServerDatabase database;
+    private final AdmissionController admission;
+    private final Path directory;
+    private final long segmentSize;
+    private final int codec;
+    private final BlockingQueue<PendingPayload> queue;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    // Writer state, touched by the writer thread only
+    private int segmentId;
+    private FileChannel segment;
+    private long segmentEnd;
+
+    // Read channels by segment id, opened on first read
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+
+    private final LongAdder archived = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    PayloadArchive(ServerDatabase database, AdmissionController admission, Path directory, long segmentSize,
+                   String codec, int queueCapacity) throws IOException {
+        this.database = database;
+        this.admission = admission;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.codec = "lzf".equalsIgnoreCase(codec) ? FrameCompression.CODEC_LZF : FrameCompression.CODEC_DEFLATE;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        Files.createDirectories(directory);
+        openSegment(Math.max(1, lastSegmentId()));
+        this.writerThread = new Thread(this::writeLoop, "payload-archive-writer");
+        this.writerThread.setDaemon(true);
+
+        Metrics.counter("hugin_archive_payloads_total", "Payloads written to the archive", archived::sum);
+        Metrics.counter("hugin_archive_skipped_total", "Saved payloads not archived because the queue was full or the write failed",
+            skipped::sum);
+        Metrics.counter("hugin_archive_raw_bytes_total", "Uncompressed size of archived payloads", rawBytes::get);
+        Metrics.counter("hugin_archive_stored_bytes_total", "Bytes appended to archive segments", storedBytes::get);
+        Metrics.gauge("hugin_archive_queue_depth", "Payloads waiting for the archive writer", queue::size);
+    }
+
+    /**
+     * Archive configured by server.archive, or null if it is disabled or the
+     * database has no payload column.
+     */
+    static PayloadArchive fromConfig(ServerConfig config, Database database, AdmissionController admission) throws IOException {
+        String directory = config.getArchiveDirectory();
+        if (directory == null || directory.isBlank() || !(database instanceof ServerDatabase)) {
+            return null;
+        }
+        return new PayloadArchive((ServerDatabase) database, admission, Path.of(directory),
+            config.getArchiveSegmentSizeMb() * 1024L * 1024L, config.getArchiveCodec(), config.getArchiveQueueCapacity());
+    }
+
+    void start() {
+        writerThread.start();
+        log.info("Payload archive in {} (segment {}, {})", directory, segmentId,
+            codec == FrameCompression.CODEC_LZF ? "lzf" : "deflate");
+    }
+
+    /**
+     * Stops accepting payloads and lets the writer archive what is already queued.
+     */
+    void stop() {
+        running = false;
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeQuietly(segment);
+        for (FileChannel reader : readers.values()) {
+            closeQuietly(reader);
+        }
+        readers.clear();
+    }
+
+    /**
+     * Queues the payload of a saved invoice. The bytes are copied; the
+     * charset is only kept for JSON.
+     */
+    void submit(String series, String number, InvoiceIngestService.Format format, Charset charset,
+                byte[] data, int offset, int length) {
+        if (!running) return;
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        PendingPayload payload = new PendingPayload(new Database.InvoiceKey(series, number), format,
+            format == InvoiceIngestService.Format.JSON ? charset : null, copy);
+        if (!queue.offer(payload)) {
+            skipped.increment();
+            log.warn("Payload archive queue full, {}-{} not archived", series, number);
+        }
+    }
+
+    /**
+     * Reads the payload at the given reference.
+     *
+     * @throws IOException if the reference does not point at an intact record
+     */
+    Payload read(long ref) throws IOException {
+        int id = (int) (ref >>> OFFSET_BITS);
+        long position = ref & OFFSET_MASK;
+        FileChannel channel = reader(id);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, position);
+        header.flip();
+        int storedLength = header.getInt();
+        int formatOrdinal = header.get();
+        int recordCodec = header.get();
+        int charsetLength = header.get() & 0xFF;
+        InvoiceIngestService.Format[] formats = InvoiceIngestService.Format.values();
+        if (storedLength < 4 || storedLength > FrameCompression.MAX_UNCOMPRESSED_SIZE + 1024
+                || formatOrdinal < 0 || formatOrdinal >= formats.length) {
+            throw new IOException("No archive record at " + Long.toHexString(ref));
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(charsetLength + storedLength + 4);
+        readFully(channel, body, position + HEADER_SIZE);
+        byte[] record = body.array();
+        CRC32 crc = new CRC32();
+        crc.update(record, charsetLength, storedLength);
+        if ((int) crc.getValue() != body.getInt(charsetLength + storedLength)) {
+            throw new IOException("Archive record at " + Long.toHexString(ref) + " is corrupt");
+        }
+
+        Charset charset = charsetLength > 0
+            ? Charset.forName(new String(record, 0, charsetLength, StandardCharsets.US_ASCII)) : null;
+        byte[] data = new byte[FrameCompression.uncompressedLength(record, charsetLength, storedLength)];
+        FrameCompression.decompress(recordCodec, record, charsetLength, storedLength, data);
+        return new Payload(formats[formatOrdinal], charset, data);
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<PendingPayload> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingPayload first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                persist(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Error archiving {} payloads: {}", batch.size(), e.getMessage());
+                skipped.add(batch.size());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void persist(List<PendingPayload> batch) throws IOException, InterruptedException {
+        List<Database.InvoiceKey> keys = new ArrayList<>(batch.size());
+        long[] refs = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            PendingPayload payload = batch.get(i);
+            keys.add(payload.key);
+            refs[i] = append(payload);
+        }
+        // References must never point at data that is not on disk yet
+        segment.force(false);
+
+        admission.acquireDbOperation();
+        try {
+            database.setPayloadRefs(keys, refs);
+        } finally {
+            admission.releaseDbOperation();
+        }
+        archived.add(batch.size());
+        if (log.isDebugEnabled()) {
+            log.debug("Archived {} payloads, segment {} at {} bytes", batch.size(), segmentId, segmentEnd);
+        }
+    }
+
+    private long append(PendingPayload payload) throws IOException {
+        byte[] stored = FrameCompression.compress(codec, payload.data, 0, payload.data.length);
+        byte[] charsetName = payload.charset != null ? payload.charset.name().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + charsetName.length + stored.length + 4);
+        record.putInt(stored.length);
+        record.put((byte) payload.format.ordinal());
+        record.put((byte) codec);
+        record.put((byte) charsetName.length);
+        record.put(charsetName);
+        record.put(stored);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        if (segmentEnd > 0 && segmentEnd + record.remaining() > segmentSize) {
+            segment.force(false);
+            segment.close();
+            openSegment(segmentId + 1);
+        }
+        long ref = (long) segmentId << OFFSET_BITS | segmentEnd;
+        while (record.hasRemaining()) {
+            segmentEnd += segment.write(record, segmentEnd);
+        }
+        rawBytes.addAndGet(payload.data.length);
+        storedBytes.addAndGet(record.limit());
+        return ref;
+    }
+
+    /**
+     * Opens a segment for appending at its current end; a record torn by a
+     * crash stays unreferenced behind the new ones.
+     */
+    private void openSegment(int id) throws IOException {
+        segmentId = id;
+        segment = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentEnd = segment.size();
+    }
+
+    private int lastSegmentId() throws IOException {
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    last = Math.max(last, Integer.parseInt(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file in payload archive: {}", name);
+                }
+            }
+        }
+        return last;
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private FileChannel reader(int id) throws IOException {
+        FileChannel channel = readers.get(id);
+        if (channel != null) return channel;
+        Path path = segmentPath(id);
+        if (id <= 0 || !Files.exists(path)) {
+            throw new IOException("Archive segment " + id + " not found");
+        }
+        FileChannel opened = FileChannel.open(path, StandardOpenOption.READ);
+        channel = readers.putIfAbsent(id, opened);
+        if (channel != null) {
+            opened.close();
+            return channel;
+        }
+        return opened;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Archive record truncated at " + position);
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing archive segment: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.ancienty.server;
+
+import com.ancienty.database.InvoiceChangeListener;
+import com.ancienty.metrics.Metrics;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcomes of recent single-document uploads, keyed by a SHA-256 hash of the
+ * raw payload, so that a byte-identical resend is answered without parsing
+ * or database access.
+ *
+ * Only outcomes that a resend would reproduce are kept: a saved invoice and
+ * a payload that cannot be decoded or fails validation. Database failures
+ * are not cached, so a resend after a transient error is tried again. A
+ * committed delete of a saved invoice removes its entry; the next resend
+ * saves it again.
+ *
+ * Entries expire after the TTL and at most maxEntries are held; the oldest
+ * are evicted first.
+ */
+class PayloadDedupeCache implements InvoiceChangeListener {
+
+    private static class Entry {
+        final InvoiceIngestService.Outcome outcome;
+        final String invoiceKey; // series/number of a saved invoice, null otherwise
+        final long expiresAt;
+
+        Entry(InvoiceIngestService.Outcome outcome, String invoiceKey, long expiresAt) {
+            this.outcome = outcome;
+            this.invoiceKey = invoiceKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Payload hash of each saved invoice, for invalidation by series/number
+    private final Map<String, String> savedPayloads = new ConcurrentHashMap<>();
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    PayloadDedupeCache(int maxEntries, long ttlNanos) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+
+        Metrics.counter("hugin_ingest_dedupe_hits_total", "Uploads answered from the payload dedupe cache", hits::sum);
+        Metrics.counter("hugin_ingest_dedupe_misses_total", "Uploads not found in the payload dedupe cache", misses::sum);
+        Metrics.counter("hugin_ingest_dedupe_invalidations_total",
+            "Payload dedupe entries removed because their invoice was deleted", invalidations::sum);
+        Metrics.gauge("hugin_ingest_dedupe_entries", "Payload dedupe cache entries", entries::size);
+    }
+
+    /**
+     * Hash of a payload as decoded with the given format and charset; the
+     * same bytes under another format or charset are a different document.
+     */
+    static String key(InvoiceIngestService.Format format, Charset charset, byte[] data, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update((byte) format.ordinal());
+        digest.update(charset.name().getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) 0);
+        digest.update(data, offset, length);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * @return the cached outcome, or null if the payload was not seen recently
+     */
+    InvoiceIngestService.Outcome get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.increment();
+            return entry.outcome;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void putSaved(String key, String series, String number) {
+        String invoiceKey = series + '\u0000' + number;
+        put(key, new Entry(InvoiceIngestService.Outcome.SAVED, invoiceKey, System.nanoTime() + ttlNanos));
+        savedPayloads.put(invoiceKey, key);
+    }
+
+    void putInvalid(String key) {
+        put(key, new Entry(InvoiceIngestService.Outcome.INVALID, null, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Inserts and deletes both drop the entry of that series/number. An
+     * upload's own insert is reported before its outcome is stored, so only
+     * a later delete (or a re-insert after one) removes it.
+     */
+    @Override
+    public void invoicesChanged(List<InvoiceChange> changes) {
+        for (InvoiceChange change : changes) {
+            String key = savedPayloads.remove(change.series + '\u0000' + change.number);
+            if (key != null && entries.remove(key) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void put(String key, Entry entry) {
+        if (entries.put(key, entry) == null) {
+            insertionOrder.add(key);
+            queued.incrementAndGet();
+            evictOverflow();
+        }
+    }
+
+    private void evictOverflow() {
+        while (entries.size() > maxEntries || queued.get() > 2 * maxEntries) {
+            String oldest = insertionOrder.poll();
+            if (oldest == null) return;
+            queued.decrementAndGet();
+            Entry removed = entries.remove(oldest);
+            if (removed != null && removed.invoiceKey != null) {
+                savedPayloads.remove(removed.invoiceKey, oldest);
+            }
+        }
+    }
+}
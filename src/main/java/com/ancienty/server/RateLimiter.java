@@ -0,0 +1,118 @@
+package com.ancienty.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client token buckets for one endpoint or TCP command.
+ *
+ * Each bucket is a single AtomicLong holding its theoretical arrival time
+ * (the generic cell rate form of a token bucket): taking a token advances it
+ * by one refill interval, and a request is refused when that would push it
+ * more than a full burst ahead of now. Acquiring is one CAS with no locks
+ * and no refill thread.
+ *
+ * The table holds at most maxClients buckets. A bucket that has refilled
+ * completely is indistinguishable from a new one, so such buckets are swept
+ * when the table fills; clients that still do not fit share one overflow
+ * bucket.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxClients;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong overflow = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param ratePerSecond sustained requests per second per client
+     * @param burst         requests a client may make at once after being idle
+     * @param maxClients    buckets kept before idle ones are swept
+     */
+    public RateLimiter(double ratePerSecond, int burst, int maxClients) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * One limiter per configured endpoint/command; rules without a positive rate are skipped.
+     */
+    static Map<String, RateLimiter> fromRules(Map<String, ServerConfig.RateLimitRule> rules, int maxClients) {
+        Map<String, RateLimiter> limiters = new HashMap<>();
+        rules.forEach((name, rule) -> {
+            if (rule != null && rule.rate > 0) {
+                int burst = rule.burst > 0 ? rule.burst : (int) Math.ceil(rule.rate);
+                limiters.put(name, new RateLimiter(rule.rate, burst, maxClients));
+            }
+        });
+        return limiters;
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     *
+     * @return 0 if the request may proceed, otherwise the nanoseconds until a token is available
+     */
+    public long tryAcquire(String clientKey) {
+        long now = System.nanoTime();
+        AtomicLong bucket = bucket(clientKey, now);
+        while (true) {
+            long arrival = bucket.get();
+            long next = Math.max(arrival, now) + intervalNanos;
+            long ahead = next - now;
+            if (ahead > burstNanos) {
+                rejected.incrementAndGet();
+                return ahead - burstNanos;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getClientCount() {
+        return buckets.size();
+    }
+
+    private AtomicLong bucket(String clientKey, long now) {
+        AtomicLong bucket = buckets.get(clientKey);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxClients) {
+            sweepIdle(now);
+            if (buckets.size() >= maxClients) {
+                return overflow;
+            }
+        }
+        return buckets.computeIfAbsent(clientKey, key -> new AtomicLong(Long.MIN_VALUE));
+    }
+
+    /**
+     * Drops buckets that have refilled completely; they would behave exactly like new ones.
+     */
+    private void sweepIdle(long now) {
+        for (Iterator<AtomicLong> it = buckets.values().iterator(); it.hasNext(); ) {
+            long arrival = it.next().get();
+            if (arrival == Long.MIN_VALUE || arrival - now <= 0) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f/s burst %d", (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos, burstNanos / intervalNanos);
+    }
+}
@@ -0,0 +1,100 @@
+package com.ancienty.server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response body that defers sending the headers until it knows how large the
+ * body is going to be.
+ *
+ * Output is buffered up to the compression threshold. A body that ends below
+ * it is sent as-is with a fixed Content-Length. Once the threshold is crossed
+ * the headers go out with chunked transfer encoding and, if the client accepts
+ * gzip, Content-Encoding: gzip, and the rest of the body is streamed through
+ * the compressor.
+ */
+class ResponseBodyStream extends OutputStream {
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private final HttpExchange exchange;
+    private final int statusCode;
+    private final boolean gzip;
+    private final int threshold;
+    private ByteArrayOutputStream pending;
+    private OutputStream target;
+    private boolean closed;
+
+    ResponseBodyStream(HttpExchange exchange, int statusCode, boolean gzip, int threshold) {
+        this.exchange = exchange;
+        this.statusCode = statusCode;
+        this.gzip = gzip;
+        this.threshold = threshold;
+        this.pending = new ByteArrayOutputStream(Math.min(threshold, GZIP_BUFFER_SIZE));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Response body already closed");
+        }
+        if (target == null) {
+            if (pending.size() + length < threshold) {
+                pending.write(data, offset, length);
+                return;
+            }
+            startStreaming();
+        }
+        target.write(data, offset, length);
+    }
+
+    /**
+     * Flushes only once streaming has started; a deferred body stays buffered
+     * so it can still be sent with a fixed length.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (target != null) {
+            target.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (target == null) {
+            byte[] body = pending.toByteArray();
+            pending = null;
+            exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            return;
+        }
+        target.close();
+    }
+
+    private void startStreaming() throws IOException {
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(statusCode, 0);
+        OutputStream body = exchange.getResponseBody();
+        // Sync flush so an explicit flush() pushes compressed progress to the client
+        target = gzip ? new GZIPOutputStream(body, GZIP_BUFFER_SIZE, true) : body;
+        if (pending.size() > 0) {
+            pending.writeTo(target);
+        }
+        pending = null;
+    }
+}
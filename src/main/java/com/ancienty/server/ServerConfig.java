@@ -1,9 +1,13 @@
 package com.ancienty.server;
 
+import com.ancienty.logging.LogSettings;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
@@ -21,27 +25,128 @@ public class ServerConfig {
         public HttpSettings http;
         public TcpSettings tcp;
         public DatabaseSettings database;
+        public AdmissionSettings admission;
+        public RateLimitSettings rateLimit;
+        public QueryCacheSettings queryCache;
+        public IngestSettings ingest;
+        public ArchiveSettings archive;
+        public TombstonePurgeSettings tombstonePurge;
+        public AdminSettings admin;
+        public LogSettings logging;
     }
     
     public static class HttpSettings {
         public int port;
         public EndpointSettings endpoints;
+        public HttpExecutorSettings executor;
+        public int pageSize;    // default page size of structured list/name queries
+        public int maxPageSize; // upper bound for the 'limit' query parameter
+        public int compressionThreshold; // responses at least this large are gzip-compressed when the client accepts it
+        public int batchCommitSize;      // invoices per transaction on the streamed batch endpoint
+        public int maxBatchLineLength;   // longest accepted NDJSON line, in characters
+        public int maxRequestBodyBytes;  // largest request body after gzip decoding; the streamed batch is limited per line instead
+        public int maxMultiGetKeys;      // series/number pairs accepted by one multi-get query
+        public AsyncUploadSettings asyncUpload;
+        public EventFeedSettings eventFeed;
+    }
+    
+    public static class AsyncUploadSettings {
+        public int queueCapacity;     // accepted uploads waiting for the background writer
+        public int maxTickets;        // upload tickets kept in memory, queued and finished
+        public int ticketTtlSeconds;  // how long a finished ticket can still be polled
+    }
+    
+    public static class EventFeedSettings {
+        public int maxSubscribers;   // concurrent Server-Sent Events connections
+        public int bufferSize;       // events queued per subscriber before it is disconnected as too slow
+        public int pageSize;         // invoices read from the database per query when publishing or resuming
+        public int heartbeatSeconds; // idle time after which a keep-alive comment is sent
     }
     
     public static class EndpointSettings {
         public String uploadInvoice;
+        public String batchUploadInvoice;
         public String queryInvoice;
+        public String multiQueryInvoice;
+        public String invoiceEvents;
+        public String invoiceChanges;
+        public String invoicePayload;
+        public String deleteInvoices;
+        public String status;
+        public String uploadStatus;
+        public String metrics;
+    }
+    
+    public static class HttpExecutorSettings {
+        public String mode;                         // "bounded" (worker pool) or "virtual" (virtual thread per exchange)
+        public Map<String, Integer> endpointLimits; // max concurrent exchanges per endpoint path; missing = unlimited
     }
     
     public static class TcpSettings {
         public String host;
         public int port;
+        public int compressionThreshold; // responses at least this large are compressed when the client allows it
+        public int streamChunkSize; // target content size of each chunk frame in a streamed list
+        public int maxMultiGetKeys; // series/number pairs accepted by one MultiQueryInvoice frame (at most 4000)
     }
     
     public static class DatabaseSettings {
         public String path;
     }
     
+    public static class AdmissionSettings {
+        public int maxConnections;          // concurrent TCP connections / HTTP exchanges, each
+        public int workerThreads;           // worker pool size per server
+        public int workQueueCapacity;       // accepted work waiting for a worker
+        public int maxInFlightDbOperations; // requests allowed to use the database at once
+        public int dbAcquireTimeoutMs;      // how long a request may wait for a database slot
+        public int retryAfterSeconds;       // hint sent with "busy" replies
+    }
+    
+    public static class QueryCacheSettings {
+        public int maxEntries; // cached series and name lookups, together
+        public int ttlSeconds; // upper bound on how long a result is reused; commits invalidate earlier
+    }
+    
+    public static class IngestSettings {
+        public String parser; // "streaming" (hand-written XML/JSON readers) or "databind" (Jackson XmlMapper / Gson)
+        public int dedupeMaxEntries; // recent single-upload payload hashes remembered with their outcome
+        public int dedupeTtlSeconds; // how long a resend of the same payload is answered from memory
+    }
+    
+    public static class ArchiveSettings {
+        public String directory;  // where payload segments are written; no directory = archive disabled
+        public int segmentSizeMb; // a new segment file is started once the current one reaches this size
+        public int queueCapacity; // saved payloads waiting for the archive writer; more are not archived
+        public String codec;      // "deflate" (smaller) or "lzf" (faster)
+    }
+    
+    public static class TombstonePurgeSettings {
+        public int batchSize;       // deleted invoices removed per transaction
+        public int quietSeconds;    // time without commits before the purger starts
+        public int intervalSeconds; // how often the purger checks for a quiet period
+    }
+    
+    public static class AdminSettings {
+        public String apiKey;        // key required by bulk delete (HTTP and TCP); no key = bulk delete disabled
+        public String apiKeyHeader;  // HTTP header carrying the admin key
+        public int maxDeleteRanges;  // ids and id ranges accepted by one bulk delete
+        public int maxDeleteIds;     // invoice ids one bulk delete may cover, all ranges together
+    }
+    
+    public static class RateLimitSettings {
+        public String apiKeyHeader;               // HTTP header identifying a client; remote address when absent
+        public List<String> apiKeys;              // keys that get their own bucket; any other key is limited by remote address
+        public int maxClients;                    // buckets tracked per endpoint/command before idle ones are swept
+        public Map<String, RateLimitRule> http;   // endpoint path -> limit; missing = unlimited
+        public Map<String, RateLimitRule> tcp;    // command name (UploadInvoice, QueryInvoice, ...) -> limit
+    }
+    
+    public static class RateLimitRule {
+        public double rate; // sustained requests per second per client
+        public int burst;   // requests allowed at once after an idle period
+    }
+    
     private Config config;
     
     public ServerConfig() {
@@ -71,12 +176,75 @@ public class ServerConfig {
         config.server.http.port = 8080;
         config.server.http.endpoints = new EndpointSettings();
         config.server.http.endpoints.uploadInvoice = "/UploadInvoice";
+        config.server.http.endpoints.batchUploadInvoice = "/BatchUploadInvoice";
         config.server.http.endpoints.queryInvoice = "/QueryInvoice";
+        config.server.http.endpoints.multiQueryInvoice = "/MultiQueryInvoice";
+        config.server.http.endpoints.invoiceEvents = "/InvoiceEvents";
+        config.server.http.endpoints.invoiceChanges = "/InvoiceChanges";
+        config.server.http.endpoints.invoicePayload = "/InvoicePayload";
+        config.server.http.endpoints.deleteInvoices = "/DeleteInvoices";
+        config.server.http.endpoints.status = "/Status";
+        config.server.http.endpoints.uploadStatus = "/UploadStatus";
+        config.server.http.endpoints.metrics = "/metrics";
+        config.server.http.pageSize = 100;
+        config.server.http.maxPageSize = 1000;
+        config.server.http.compressionThreshold = 1024;
+        config.server.http.batchCommitSize = 500;
+        config.server.http.maxBatchLineLength = 1024 * 1024;
+        config.server.http.maxRequestBodyBytes = 16 * 1024 * 1024;
+        config.server.http.maxMultiGetKeys = 10000;
+        config.server.http.asyncUpload = defaultAsyncUploadSettings();
+        config.server.http.eventFeed = defaultEventFeedSettings();
+        config.server.http.executor = new HttpExecutorSettings();
+        config.server.http.executor.mode = "bounded";
+        config.server.http.executor.endpointLimits = Map.of();
         config.server.tcp = new TcpSettings();
         config.server.tcp.host = "localhost";
         config.server.tcp.port = 8888;
+        config.server.tcp.compressionThreshold = 1024;
+        config.server.tcp.streamChunkSize = 16384;
+        config.server.tcp.maxMultiGetKeys = 4000;
         config.server.database = new DatabaseSettings();
         config.server.database.path = "server_database.db"; // Fixed: Use server database, not client database
+        config.server.admission = defaultAdmissionSettings();
+        config.server.admin = defaultAdminSettings();
+        config.server.logging = LogSettings.defaults();
+    }
+    
+    private static AdmissionSettings defaultAdmissionSettings() {
+        AdmissionSettings admission = new AdmissionSettings();
+        admission.maxConnections = 256;
+        admission.workerThreads = 16;
+        admission.workQueueCapacity = 64;
+        admission.maxInFlightDbOperations = 8;
+        admission.dbAcquireTimeoutMs = 200;
+        admission.retryAfterSeconds = 1;
+        return admission;
+    }
+    
+    private static AdminSettings defaultAdminSettings() {
+        AdminSettings admin = new AdminSettings();
+        admin.apiKeyHeader = "X-Admin-Key";
+        admin.maxDeleteRanges = 10000;
+        admin.maxDeleteIds = 100000;
+        return admin;
+    }
+    
+    private static AsyncUploadSettings defaultAsyncUploadSettings() {
+        AsyncUploadSettings asyncUpload = new AsyncUploadSettings();
+        asyncUpload.queueCapacity = 10000;
+        asyncUpload.maxTickets = 100000;
+        asyncUpload.ticketTtlSeconds = 600;
+        return asyncUpload;
+    }
+    
+    private static EventFeedSettings defaultEventFeedSettings() {
+        EventFeedSettings eventFeed = new EventFeedSettings();
+        eventFeed.maxSubscribers = 32;
+        eventFeed.bufferSize = 1024;
+        eventFeed.pageSize = 500;
+        eventFeed.heartbeatSeconds = 15;
+        return eventFeed;
     }
     
     // Configuration parsing now handled by Gson - no manual parsing needed
@@ -84,8 +252,178 @@ public class ServerConfig {
     // Getters
     public int getHttpPort() { return config.server.http.port; }
     public String getUploadInvoiceEndpoint() { return config.server.http.endpoints.uploadInvoice; }
+    public String getBatchUploadInvoiceEndpoint() {
+        return config.server.http.endpoints.batchUploadInvoice != null ? config.server.http.endpoints.batchUploadInvoice : "/BatchUploadInvoice";
+    }
     public String getQueryInvoiceEndpoint() { return config.server.http.endpoints.queryInvoice; }
+    public String getMultiQueryInvoiceEndpoint() {
+        return config.server.http.endpoints.multiQueryInvoice != null ? config.server.http.endpoints.multiQueryInvoice : "/MultiQueryInvoice";
+    }
+    public String getInvoiceEventsEndpoint() {
+        return config.server.http.endpoints.invoiceEvents != null ? config.server.http.endpoints.invoiceEvents : "/InvoiceEvents";
+    }
+    public String getInvoiceChangesEndpoint() {
+        return config.server.http.endpoints.invoiceChanges != null ? config.server.http.endpoints.invoiceChanges : "/InvoiceChanges";
+    }
+    public String getInvoicePayloadEndpoint() {
+        return config.server.http.endpoints.invoicePayload != null ? config.server.http.endpoints.invoicePayload : "/InvoicePayload";
+    }
+    public String getDeleteInvoicesEndpoint() {
+        return config.server.http.endpoints.deleteInvoices != null ? config.server.http.endpoints.deleteInvoices : "/DeleteInvoices";
+    }
+    public String getStatusEndpoint() {
+        return config.server.http.endpoints.status != null ? config.server.http.endpoints.status : "/Status";
+    }
+    public String getUploadStatusEndpoint() {
+        return config.server.http.endpoints.uploadStatus != null ? config.server.http.endpoints.uploadStatus : "/UploadStatus";
+    }
+    public String getMetricsEndpoint() {
+        return config.server.http.endpoints.metrics != null ? config.server.http.endpoints.metrics : "/metrics";
+    }
+    public int getHttpPageSize() { return positiveOr(config.server.http.pageSize, 100); }
+    public int getHttpMaxPageSize() { return positiveOr(config.server.http.maxPageSize, 1000); }
+    public int getHttpCompressionThreshold() { return positiveOr(config.server.http.compressionThreshold, 1024); }
+    public int getHttpBatchCommitSize() { return positiveOr(config.server.http.batchCommitSize, 500); }
+    public int getHttpMaxBatchLineLength() { return positiveOr(config.server.http.maxBatchLineLength, 1024 * 1024); }
+    public int getHttpMaxRequestBodyBytes() { return positiveOr(config.server.http.maxRequestBodyBytes, 16 * 1024 * 1024); }
+    public int getHttpMaxMultiGetKeys() { return positiveOr(config.server.http.maxMultiGetKeys, 10000); }
+    public int getAsyncUploadQueueCapacity() { return positiveOr(asyncUpload().queueCapacity, 10000); }
+    public int getAsyncUploadMaxTickets() { return positiveOr(asyncUpload().maxTickets, 100000); }
+    public int getAsyncUploadTicketTtlSeconds() { return positiveOr(asyncUpload().ticketTtlSeconds, 600); }
+    public int getEventFeedMaxSubscribers() { return positiveOr(eventFeed().maxSubscribers, 32); }
+    public int getEventFeedBufferSize() { return positiveOr(eventFeed().bufferSize, 1024); }
+    public int getEventFeedPageSize() { return positiveOr(eventFeed().pageSize, 500); }
+    public int getEventFeedHeartbeatSeconds() { return positiveOr(eventFeed().heartbeatSeconds, 15); }
+    public String getHttpExecutorMode() {
+        HttpExecutorSettings executor = config.server.http.executor;
+        return executor != null && executor.mode != null ? executor.mode : "bounded";
+    }
+    public Map<String, Integer> getHttpEndpointLimits() {
+        HttpExecutorSettings executor = config.server.http.executor;
+        return executor != null && executor.endpointLimits != null ? executor.endpointLimits : Map.of();
+    }
     public String getTcpHost() { return config.server.tcp.host; }
     public int getTcpPort() { return config.server.tcp.port; }
+    public int getTcpCompressionThreshold() {
+        return config.server.tcp.compressionThreshold > 0 ? config.server.tcp.compressionThreshold : 1024;
+    }
+    public int getTcpStreamChunkSize() {
+        return config.server.tcp.streamChunkSize > 0 ? config.server.tcp.streamChunkSize : 16384;
+    }
+    public int getTcpMaxMultiGetKeys() { return positiveOr(config.server.tcp.maxMultiGetKeys, 4000); }
     public String getDatabasePath() { return config.server.database.path; }
+    
+    // Admission control; missing or non-positive values fall back to defaults
+    private AdmissionSettings admission() {
+        if (config.server.admission == null) {
+            config.server.admission = defaultAdmissionSettings();
+        }
+        return config.server.admission;
+    }
+    private AdminSettings admin() {
+        if (config.server.admin == null) {
+            config.server.admin = defaultAdminSettings();
+        }
+        return config.server.admin;
+    }
+    private AsyncUploadSettings asyncUpload() {
+        if (config.server.http.asyncUpload == null) {
+            config.server.http.asyncUpload = defaultAsyncUploadSettings();
+        }
+        return config.server.http.asyncUpload;
+    }
+    private EventFeedSettings eventFeed() {
+        if (config.server.http.eventFeed == null) {
+            config.server.http.eventFeed = defaultEventFeedSettings();
+        }
+        return config.server.http.eventFeed;
+    }
+    private static int positiveOr(int value, int fallback) { return value > 0 ? value : fallback; }
+    public int getMaxConnections() { return positiveOr(admission().maxConnections, 256); }
+    public int getWorkerThreads() { return positiveOr(admission().workerThreads, 16); }
+    public int getWorkQueueCapacity() { return positiveOr(admission().workQueueCapacity, 64); }
+    public int getMaxInFlightDbOperations() { return positiveOr(admission().maxInFlightDbOperations, 8); }
+    public int getDbAcquireTimeoutMs() { return positiveOr(admission().dbAcquireTimeoutMs, 200); }
+    public int getRetryAfterSeconds() { return positiveOr(admission().retryAfterSeconds, 1); }
+    
+    // Admin commands; a blank key counts as none
+    public String getAdminApiKey() {
+        String apiKey = admin().apiKey;
+        return apiKey != null && !apiKey.isBlank() ? apiKey : null;
+    }
+    public String getAdminApiKeyHeader() {
+        String header = admin().apiKeyHeader;
+        return header != null && !header.isBlank() ? header : "X-Admin-Key";
+    }
+    public int getMaxDeleteRanges() { return positiveOr(admin().maxDeleteRanges, 10000); }
+    public int getMaxDeleteIds() { return positiveOr(admin().maxDeleteIds, 100000); }
+    
+    public int getQueryCacheMaxEntries() {
+        return config.server.queryCache != null ? positiveOr(config.server.queryCache.maxEntries, 10000) : 10000;
+    }
+    public int getQueryCacheTtlSeconds() {
+        return config.server.queryCache != null ? positiveOr(config.server.queryCache.ttlSeconds, 60) : 60;
+    }
+    
+    public String getIngestParser() {
+        IngestSettings ingest = config.server.ingest;
+        return ingest != null && ingest.parser != null ? ingest.parser : "streaming";
+    }
+    public int getIngestDedupeMaxEntries() {
+        return config.server.ingest != null ? positiveOr(config.server.ingest.dedupeMaxEntries, 10000) : 10000;
+    }
+    public int getIngestDedupeTtlSeconds() {
+        return config.server.ingest != null ? positiveOr(config.server.ingest.dedupeTtlSeconds, 600) : 600;
+    }
+    
+    // Payload archive; disabled unless a directory is configured
+    public String getArchiveDirectory() {
+        return config.server.archive != null ? config.server.archive.directory : null;
+    }
+    public int getArchiveSegmentSizeMb() {
+        return config.server.archive != null ? positiveOr(config.server.archive.segmentSizeMb, 64) : 64;
+    }
+    public int getArchiveQueueCapacity() {
+        return config.server.archive != null ? positiveOr(config.server.archive.queueCapacity, 10000) : 10000;
+    }
+    public String getArchiveCodec() {
+        ArchiveSettings archive = config.server.archive;
+        return archive != null && archive.codec != null ? archive.codec : "deflate";
+    }
+    
+    // Background removal of deleted invoices
+    public int getTombstonePurgeBatchSize() {
+        return config.server.tombstonePurge != null ? positiveOr(config.server.tombstonePurge.batchSize, 200) : 200;
+    }
+    public int getTombstonePurgeQuietSeconds() {
+        return config.server.tombstonePurge != null ? positiveOr(config.server.tombstonePurge.quietSeconds, 10) : 10;
+    }
+    public int getTombstonePurgeIntervalSeconds() {
+        return config.server.tombstonePurge != null ? positiveOr(config.server.tombstonePurge.intervalSeconds, 5) : 5;
+    }
+    
+    // Rate limiting; no rules means no limits
+    public String getRateLimitApiKeyHeader() {
+        RateLimitSettings rateLimit = config.server.rateLimit;
+        return rateLimit != null && rateLimit.apiKeyHeader != null ? rateLimit.apiKeyHeader : "X-API-Key";
+    }
+    public Set<String> getRateLimitApiKeys() {
+        RateLimitSettings rateLimit = config.server.rateLimit;
+        return rateLimit != null && rateLimit.apiKeys != null ? Set.copyOf(rateLimit.apiKeys) : Set.of();
+    }
+    public int getRateLimitMaxClients() {
+        return config.server.rateLimit != null ? positiveOr(config.server.rateLimit.maxClients, 10000) : 10000;
+    }
+    public Map<String, RateLimitRule> getHttpRateLimits() {
+        RateLimitSettings rateLimit = config.server.rateLimit;
+        return rateLimit != null && rateLimit.http != null ? rateLimit.http : Map.of();
+    }
+    public Map<String, RateLimitRule> getTcpRateLimits() {
+        RateLimitSettings rateLimit = config.server.rateLimit;
+        return rateLimit != null && rateLimit.tcp != null ? rateLimit.tcp : Map.of();
+    }
+    
+    public LogSettings getLogSettings() {
+        return config.server.logging != null ? config.server.logging : LogSettings.defaults();
+    }
 } 
\ No newline at end of file
@@ -2,6 +2,11 @@ package com.ancienty.server;
 
 import com.ancienty.database.Database;
 import com.ancienty.database.ServerDatabase;
+import com.ancienty.database.TombstonePurger;
+import com.ancienty.logging.LogManager;
+import com.ancienty.server.model.InvoiceCodecs;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * Phase 2 Server Main - Headless server application
@@ -12,6 +17,8 @@ public class ServerMain {
     private static HttpServer httpServer;
     private static TcpServer tcpServer;
     private static Database database;
+    private static PayloadArchive payloadArchive;
+    private static TombstonePurger tombstonePurger;
 
     public static void main(String[] args) {
         System.out.println("=== Hugin Invoice System - Phase 2 Server ===");
@@ -21,23 +28,59 @@ public class ServerMain {
         try {
             // Load configuration
             ServerConfig config = new ServerConfig();
+            LogManager.configure(config.getLogSettings());
             System.out.println("Configuration loaded:");
             System.out.println("  HTTP Port: " + config.getHttpPort());
             System.out.println("  TCP Host: " + config.getTcpHost());
             System.out.println("  TCP Port: " + config.getTcpPort());
             System.out.println("  Database: " + config.getDatabasePath());
+            System.out.println("  Max Connections: " + config.getMaxConnections());
+            System.out.println("  Worker Threads: " + config.getWorkerThreads() + " (queue " + config.getWorkQueueCapacity() + ")");
+            System.out.println("  Max In-Flight DB Operations: " + config.getMaxInFlightDbOperations());
+            System.out.println("  HTTP Executor: " + config.getHttpExecutorMode() + " " + config.getHttpEndpointLimits());
+            System.out.println("  Ingest Parser: " + config.getIngestParser());
+            System.out.println("  Payload Archive: " + (config.getArchiveDirectory() != null
+                    ? config.getArchiveDirectory() + " (" + config.getArchiveCodec() + ")" : "disabled"));
+            System.out.println("  Bulk Delete: " + (config.getAdminApiKey() != null
+                    ? "enabled (" + config.getAdminApiKeyHeader() + ")" : "disabled (no admin.apiKey)"));
+            System.out.println("  Log Level: " + config.getLogSettings().level
+                    + (config.getLogSettings().file != null ? " (" + config.getLogSettings().file + ")" : ""));
             System.out.println();
 
             // Initialize server database (separate from client database with enhanced schema)
             database = new ServerDatabase(config.getDatabasePath());
-            System.out.println("Server database initialized: " + config.getDatabasePath());
+
+            // Admission control shared by both servers (they share the database)
+            AdmissionController admission = new AdmissionController(config);
+
+            // Query result cache shared by both servers, invalidated by database commits
+            InvoiceQueryCache queryCache = new InvoiceQueryCache(database, config.getQueryCacheMaxEntries(),
+                TimeUnit.SECONDS.toNanos(config.getQueryCacheTtlSeconds()));
+
+            // Deletes only mark invoices; rows are removed in small batches while the database is quiet
+            tombstonePurger = new TombstonePurger(database, config.getTombstonePurgeBatchSize(),
+                TimeUnit.SECONDS.toMillis(config.getTombstonePurgeQuietSeconds()),
+                TimeUnit.SECONDS.toMillis(config.getTombstonePurgeIntervalSeconds()), admission::isDatabaseIdle);
+            tombstonePurger.start();
+
+            // Resolve JSON/XML (de)serializers now rather than on the first request
+            InvoiceCodecs.warmUp();
+
+            // Original payloads of saved uploads, compressed into segment files by a background writer
+            payloadArchive = PayloadArchive.fromConfig(config, database, admission);
+            if (payloadArchive != null) {
+                payloadArchive.start();
+            }
+
+            // One decode/validate/resolve/persist pipeline for every upload path
+            InvoiceIngestService ingestService = new InvoiceIngestService(database, config, payloadArchive);
 
             // Start HTTP server
-            httpServer = new HttpServer(database, config);
+            httpServer = new HttpServer(database, config, admission, queryCache, ingestService);
             httpServer.start();
 
             // Start TCP server
-            tcpServer = new TcpServer(database, config);
+            tcpServer = new TcpServer(database, config, admission, queryCache, ingestService);
             tcpServer.start();
 
             System.out.println();
@@ -76,7 +119,14 @@ public class ServerMain {
                 if (tcpServer != null) {
                     tcpServer.stop();
                 }
+                if (payloadArchive != null) {
+                    payloadArchive.stop();
+                }
+                if (tombstonePurger != null) {
+                    tombstonePurger.stop();
+                }
                 System.out.println("Server shutdown complete");
+                LogManager.shutdown();
             }));
 
             // Keep the main thread alive
@@ -2,30 +2,76 @@ package com.ancienty.server;
 
 import com.ancienty.database.Database;
 import com.ancienty.database.ServerDatabase;
+import com.ancienty.logging.LogManager;
+import com.ancienty.logging.Logger;
+import com.ancienty.metrics.Counter;
+import com.ancienty.metrics.Histogram;
+import com.ancienty.metrics.Metrics;
 import com.ancienty.server.model.InvoiceUploadData;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.ancienty.server.protocol.BinaryInvoiceCodec;
+import com.ancienty.server.protocol.BufferPool;
+import com.ancienty.server.protocol.FrameCompression;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Phase 2 TCP Server implementation with CORRECT BINARY PROTOCOL
  * 
  * Protocol Format (as specified in requirements):
  * - 2 bytes: Message Length (total message size including command and type)
- * - 1 byte: Command (1=UploadInvoice, 2=QueryInvoice)
- * - 1 byte: Type (1=XML/series, 2=JSON/name)
+ * - 1 byte: Command (1=UploadInvoice, 2=QueryInvoice, 3=BatchUploadInvoice, 4=MultiQueryInvoice,
+ *   5=InvoiceChanges, 6=DeleteInvoices)
+ * - 1 byte: Type (1=XML/series, 2=JSON/name, 3=binary upload / streamed list query)
  * - (Message Length - 1) bytes: Message Content
+ *
+ * The upper bits of the command byte carry optional per-frame compression
+ * (deflate or LZF), see {@link FrameCompression}. Responses are compressed with
+ * the codec the client advertised once they reach the configured threshold.
+ *
+ * Upload type 3 is the compact binary encoding from {@link BinaryInvoiceCodec}.
+ *
+ * QueryInvoice type 3 streams the full invoice list: the server answers with
+ * any number of chunk frames (type 3, newline-separated rows) read from a
+ * database cursor, followed by an end-of-stream frame (type 0) whose content
+ * is the total row count.
+ *
+ * When the server is overloaded (connection limit, full work queue or no free
+ * database slot) it answers with a single frame whose command is
+ * STATUS_BUSY (31) and closes the connection; clients should retry later.
+ *
+ * BatchUploadInvoice content is an &lt;uploadBatch&gt; document (XML), a JSON array
+ * of uploadSystem documents or a binary batch. The response is one character per invoice, in
+ * request order: '1' = saved, '0' = rejected.
+ *
+ * MultiQueryInvoice type 1 looks up many invoices in one round trip: the
+ * content is one "series number" pair per line (at most 4000) and the
+ * response one line per pair in request order, the total or "-" when there
+ * is no such invoice. An answer that would not fit in one frame (only with
+ * very large totals) is replaced by an error message.
+ *
+ * InvoiceChanges type 1 reads the invoice outbox: the content is
+ * "since [limit]" and the response the committed inserts and deletes after
+ * sequence number 'since', one tab-separated line per change (see
+ * {@link ChangeFeedFormat}), as many as fit in one frame. The first field of
+ * the last line is the 'since' of the next request; an empty response means
+ * the client is up to date.
+ *
+ * DeleteInvoices type 1 deletes invoices by id. It is disabled unless
+ * admin.apiKey is set; the first line of the content is that key, the rest
+ * lists ids and inclusive id ranges ("100-200") as in {@link IdRangeFormat},
+ * and the response is the number of invoices deleted.
  * 
  * Response Format:
  * - Same 2 bytes: Message Length
@@ -35,45 +81,109 @@ import java.util.concurrent.Executors;
  */
 public class TcpServer {
     
+    private static final Logger log = LogManager.getLogger(TcpServer.class);
+    
     // Protocol constants
     private static final int COMMAND_UPLOAD_INVOICE = 1;
     private static final int COMMAND_QUERY_INVOICE = 2;
+    private static final int COMMAND_BATCH_UPLOAD_INVOICE = 3;
+    private static final int COMMAND_MULTI_QUERY_INVOICE = 4;
+    private static final int COMMAND_INVOICE_CHANGES = 5;
+    private static final int COMMAND_DELETE_INVOICES = 6;
+    
+    // Reply-only status code, uses the highest command value the frame allows
+    private static final int STATUS_BUSY = FrameCompression.COMMAND_MASK;
+    private static final String BUSY_MESSAGE = "Sunucu meşgul, lütfen tekrar deneyin";
+    // Over-limit frames are answered with STATUS_BUSY too, so existing clients back off the same way
+    private static final String RATE_LIMIT_MESSAGE = "İstek sınırı aşıldı, lütfen daha sonra tekrar deneyin";
+    // Rejected sockets stay half-open briefly so the client can still send its request and read the reply
+    private static final long REJECT_LINGER_MS = 500;
     
     private static final int TYPE_XML_OR_SERIES = 1;
     private static final int TYPE_JSON_OR_NAME = 2;
+    private static final int TYPE_BINARY = 3;
+    private static final int TYPE_LIST_STREAM = 3;
+    private static final int TYPE_STREAM_END = 0;
+
+    // Largest content that fits in a frame (2-byte length includes the command byte)
+    private static final int MAX_FRAME_CONTENT = 0xFFFF - 1;
+    // Pairs per MultiQueryInvoice frame; typical totals fit in one frame, larger answers are refused with an error
+    private static final int MAX_MULTI_QUERY_KEYS = 4000;
+    // Changes read per InvoiceChanges frame; the answer stops earlier if the frame fills up
+    private static final int MAX_CHANGES_PER_FRAME = 500;
+
+    // Frame buffers: 256 KB covers a full 64 KB frame decompressed at typical XML ratios
+    private static final int POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
     
     private final Database database;
     private final ServerConfig config;
+    private final AdmissionController admission;
+    private final InvoiceQueryCache queryCache;
+    private final AdminCredential adminCredential;
     private ServerSocket serverSocket;
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
+    private final ScheduledExecutorService rejectCloser = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tcp-reject-closer");
+        thread.setDaemon(true);
+        return thread;
+    });
     private volatile boolean running = false;
     
-    // Proper library instances
-    private final Gson gson;
-    private final XmlMapper xmlMapper;
+    private final InvoiceIngestService ingestService;
+    private final BufferPool bufferPool = new BufferPool(POOLED_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    // Indexed by command; null = unlimited
+    private final RateLimiter[] commandLimits = new RateLimiter[FrameCompression.COMMAND_MASK + 1];
+    // Indexed by command; unknown commands share one series
+    private final Counter[] commandRequests = new Counter[FrameCompression.COMMAND_MASK + 1];
+    private final Histogram[] commandLatency = new Histogram[FrameCompression.COMMAND_MASK + 1];
+    private final Counter busyReplies = Metrics.counter("hugin_tcp_busy_replies_total",
+        "TCP requests answered busy for lack of a database slot");
 
-    public TcpServer(Database database, ServerConfig config) {
+    public TcpServer(Database database, ServerConfig config, AdmissionController admission, InvoiceQueryCache queryCache,
+                     InvoiceIngestService ingestService) {
         this.database = database;
         this.config = config;
-        this.executor = Executors.newCachedThreadPool();
-        this.gson = new GsonBuilder().setPrettyPrinting().create();
-        this.xmlMapper = new XmlMapper();
-        
-        // Configure to ignore unknown properties
-        this.xmlMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.admission = admission;
+        this.queryCache = queryCache;
+        this.ingestService = ingestService;
+        this.adminCredential = new AdminCredential(config.getAdminApiKey());
+        // Full queue throws RejectedExecutionException, handled in acceptConnections
+        this.executor = admission.newWorkerPool("tcp-worker", new ThreadPoolExecutor.AbortPolicy());
+
+        Map<String, RateLimiter> limiters = RateLimiter.fromRules(config.getTcpRateLimits(), config.getRateLimitMaxClients());
+        for (int command : new int[]{COMMAND_UPLOAD_INVOICE, COMMAND_QUERY_INVOICE, COMMAND_BATCH_UPLOAD_INVOICE,
+                COMMAND_MULTI_QUERY_INVOICE, COMMAND_INVOICE_CHANGES, COMMAND_DELETE_INVOICES}) {
+            RateLimiter limiter = limiters.get(getCommandName(command));
+            commandLimits[command] = limiter;
+            if (limiter != null) {
+                Metrics.counter("hugin_rate_limited_total", "Requests rejected by the per-client rate limit",
+                    limiter::getRejectedCount, "transport", "tcp", "command", getCommandName(command));
+            }
+        }
+        for (int command = 0; command < commandRequests.length; command++) {
+            String name = getCommandName(command);
+            commandRequests[command] = Metrics.counter("hugin_tcp_requests_total", "TCP requests by command", "command", name);
+            commandLatency[command] = Metrics.histogram("hugin_tcp_request_duration_seconds",
+                "TCP request latency from the end of the frame to the flushed response", "command", name);
+        }
+        Metrics.gauge("hugin_tcp_executor_queue_depth", "TCP connections waiting for a worker", () -> executor.getQueue().size());
+        Metrics.gauge("hugin_tcp_executor_active_workers", "TCP workers serving a connection", executor::getActiveCount);
     }
 
     public void start() throws IOException {
         serverSocket = new ServerSocket(config.getTcpPort());
         running = true;
         
-        System.out.println("TCP Server started on " + config.getTcpHost() + ":" + config.getTcpPort());
-        System.out.println("Using BINARY protocol as specified in Phase 2 requirements");
-        System.out.println("Commands: 1=UploadInvoice, 2=QueryInvoice");
-        System.out.println("Types: 1=XML/Series, 2=JSON/Name");
+        log.info("TCP Server started on {}:{}", config.getTcpHost(), config.getTcpPort());
+        log.info("Commands: 1=UploadInvoice, 2=QueryInvoice, 3=BatchUploadInvoice, 4=MultiQueryInvoice, 5=InvoiceChanges, 6=DeleteInvoices{}",
+            adminCredential.isConfigured() ? "" : " (disabled, no admin.apiKey)");
+        log.info("Types: 1=XML/Series, 2=JSON/Name, 3=Binary (upload)");
         
         // Accept connections in background
-        executor.submit(this::acceptConnections);
+        Thread acceptThread = new Thread(this::acceptConnections, "tcp-acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
     }
 
     public void stop() {
@@ -85,9 +195,10 @@ public class TcpServer {
             if (executor != null) {
                 executor.shutdown();
             }
-            System.out.println("TCP Server stopped");
+            rejectCloser.shutdown();
+            log.info("TCP Server stopped");
         } catch (IOException e) {
-            System.err.println("Error stopping TCP server: " + e.getMessage());
+            log.error("Error stopping TCP server", e);
         }
     }
 
@@ -95,42 +206,95 @@ public class TcpServer {
         while (running) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                executor.submit(() -> handleClient(clientSocket));
+                if (!admission.tryAcquireTcpConnection()) {
+                    rejectBusy(clientSocket);
+                    continue;
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            handleClient(clientSocket);
+                        } finally {
+                            admission.releaseTcpConnection();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    admission.releaseTcpConnection();
+                    admission.recordRejection();
+                    rejectBusy(clientSocket);
+                }
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("Error accepting TCP connection: " + e.getMessage());
+                    log.error("Error accepting TCP connection: {}", e.getMessage());
                 }
             }
         }
     }
 
+    /**
+     * Answers with a STATUS_BUSY frame without reading the request, half-closes
+     * the socket and closes it shortly after. Runs on the accept thread, so it must stay cheap.
+     */
+    private void rejectBusy(Socket clientSocket) {
+        log.warn("TCP server busy, rejecting {}", clientSocket.getRemoteSocketAddress());
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            writeFrame(output, STATUS_BUSY, 0, FrameCompression.CODEC_NONE, BUSY_MESSAGE.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            // Client already gone
+        }
+        try {
+            rejectCloser.schedule(() -> closeQuietly(clientSocket), REJECT_LINGER_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(clientSocket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+
     private void handleClient(Socket clientSocket) {
         try (DataInputStream input = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream output = new DataOutputStream(clientSocket.getOutputStream())) {
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))) {
             
-            System.out.println("TCP Client connected: " + clientSocket.getRemoteSocketAddress());
+            log.debug("TCP Client connected: {}", clientSocket.getRemoteSocketAddress());
             
             // Read binary message according to protocol
-            BinaryMessage request = readBinaryMessage(input);
+            BinaryMessage request = readBinaryMessage(input, "ip:" + clientSocket.getInetAddress().getHostAddress());
             if (request == null) {
-                System.err.println("Failed to read binary message from client");
+                log.warn("Failed to read binary message from {}", clientSocket.getRemoteSocketAddress());
+                return;
+            }
+            if (request == RATE_LIMITED) {
+                log.debug("Rate limit exceeded by {}", clientSocket.getRemoteSocketAddress());
+                writeFrame(output, STATUS_BUSY, 0, FrameCompression.CODEC_NONE, RATE_LIMIT_MESSAGE.getBytes(StandardCharsets.UTF_8));
+                output.flush();
                 return;
             }
             
-            System.out.println("Received binary message:");
-            System.out.println("  Message Length: " + request.messageLength);
-            System.out.println("  Command: " + request.command + " (" + getCommandName(request.command) + ")");
-            System.out.println("  Type: " + request.type + " (" + getTypeName(request.command, request.type) + ")");
-            System.out.println("  Content Length: " + request.content.length());
-            
-            // Process the message
-            String responseContent = processMessage(request);
+            if (log.isDebugEnabled()) {
+                log.debug("Received {} ({}), codec {}, {} content bytes",
+                    getCommandName(request.command), getTypeName(request.command, request.type),
+                    request.codec, request.length);
+            }
             
-            // Send binary response with same command and type
-            sendBinaryResponse(output, request.command, request.type, responseContent);
+            long start = System.nanoTime();
+            try {
+                serveRequest(request, output);
+            } finally {
+                commandRequests[request.command].increment();
+                commandLatency[request.command].recordSince(start);
+            }
             
         } catch (IOException e) {
-            System.err.println("Error handling TCP client: " + e.getMessage());
+            log.warn("Error handling TCP client: {}", e.getMessage());
         } finally {
             try {
                 clientSocket.close();
@@ -140,13 +304,52 @@ public class TcpServer {
         }
     }
 
-    private BinaryMessage readBinaryMessage(DataInputStream input) throws IOException {
+    private void serveRequest(BinaryMessage request, DataOutputStream output) throws IOException {
+        if (!admission.tryAcquireDbOperation()) {
+            bufferPool.release(request.data);
+            busyReplies.increment();
+            log.warn("No database slot available, replying busy");
+            writeFrame(output, STATUS_BUSY, request.type, FrameCompression.CODEC_NONE, BUSY_MESSAGE.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            return;
+        }
+        
+        String responseContent;
+        try {
+            if (request.command == COMMAND_QUERY_INVOICE && request.type == TYPE_LIST_STREAM) {
+                bufferPool.release(request.data);
+                streamInvoiceList(output, request.codec);
+                return;
+            }
+            
+            // Process the message; the frame buffer goes back to the pool once it has been decoded
+            try {
+                responseContent = processMessage(request);
+            } finally {
+                bufferPool.release(request.data);
+            }
+        } finally {
+            admission.releaseDbOperation();
+        }
+        
+        // Send binary response with same command and type, compressed if the client allows it
+        sendBinaryResponse(output, request.command, request.type, request.codec, responseContent);
+    }
+
+    /**
+     * Reads one frame. The client's rate limit for the command is checked as
+     * soon as the header is in; an over-limit frame's content is skipped
+     * without being buffered or decoded and {@link #RATE_LIMITED} is returned.
+     */
+    private BinaryMessage readBinaryMessage(DataInputStream input, String clientKey) throws IOException {
         try {
             // Read 2 bytes for message length
             int messageLength = input.readUnsignedShort();
             
-            // Read 1 byte for command
-            int command = input.readUnsignedByte();
+            // Read 1 byte for command (low bits) and compression flags (high bits)
+            int commandByte = input.readUnsignedByte();
+            int command = FrameCompression.command(commandByte);
+            int codec = FrameCompression.codec(commandByte);
             
             // Read 1 byte for type
             int type = input.readUnsignedByte();
@@ -154,45 +357,113 @@ public class TcpServer {
             // Read message content (messageLength - 1 bytes, since command and type are included in length)
             int contentLength = messageLength - 1; // Subtract 1 byte for command + type
             if (contentLength < 0) {
-                System.err.println("Invalid message length: " + messageLength);
+                log.warn("Invalid message length: {}", messageLength);
                 return null;
             }
             
-            byte[] contentBytes = new byte[contentLength];
-            input.readFully(contentBytes);
+            RateLimiter limiter = commandLimits[command];
+            if (limiter != null && limiter.tryAcquire(clientKey) != 0) {
+                input.skipNBytes(contentLength);
+                return RATE_LIMITED;
+            }
+            
+            if (FrameCompression.isCompressed(commandByte)) {
+                byte[] payload = new byte[contentLength];
+                input.readFully(payload);
+                return decompressMessage(messageLength, command, type, codec, payload);
+            }
             
-            String content = new String(contentBytes, StandardCharsets.UTF_8);
+            byte[] contentBytes = bufferPool.acquire(contentLength);
+            input.readFully(contentBytes, 0, contentLength);
             
-            return new BinaryMessage(messageLength, command, type, content);
+            return new BinaryMessage(messageLength, command, type, codec, contentBytes, contentLength);
         } catch (IOException e) {
-            System.err.println("Error reading binary message: " + e.getMessage());
+            log.warn("Error reading binary message: {}", e.getMessage());
             return null;
         }
     }
 
-    private void sendBinaryResponse(DataOutputStream output, int command, int type, String responseContent) throws IOException {
-        byte[] contentBytes = responseContent.getBytes(StandardCharsets.UTF_8);
-        int messageLength = 1 + contentBytes.length; // 1 byte for command+type, plus content
+    private BinaryMessage decompressMessage(int messageLength, int command, int type, int codec, byte[] payload) throws IOException {
+        if (!FrameCompression.isSupported(codec)) {
+            throw new IOException("Unsupported compression codec: " + codec);
+        }
+        int size = FrameCompression.uncompressedLength(payload, 0, payload.length);
+        byte[] buffer = bufferPool.acquire(size);
+        try {
+            int length = FrameCompression.decompress(codec, payload, 0, payload.length, buffer);
+            return new BinaryMessage(messageLength, command, type, codec, buffer, length);
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    private void sendBinaryResponse(DataOutputStream output, int command, int type, int codec, String responseContent) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Sending response for command {} type {}: {}", command, type, responseContent);
+        }
+        
+        writeFrame(output, command, type, codec, responseContent.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Streams the invoice list as chunk frames straight from a database cursor,
+     * then writes the end-of-stream frame. Memory use is bounded by the chunk size.
+     */
+    private void streamInvoiceList(DataOutputStream output, int codec) throws IOException {
+        int chunkSize = Math.min(config.getTcpStreamChunkSize(), MAX_FRAME_CONTENT);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(chunkSize);
         
-        System.out.println("Sending binary response:");
-        System.out.println("  Message Length: " + messageLength);
-        System.out.println("  Command: " + command);
-        System.out.println("  Type: " + type);
-        System.out.println("  Response: " + responseContent);
+        int rows = database.streamInvoiceList(entry -> {
+            byte[] row = (entry + "\n").getBytes(StandardCharsets.UTF_8);
+            if (chunk.size() > 0 && chunk.size() + row.length > chunkSize) {
+                writeFrame(output, COMMAND_QUERY_INVOICE, TYPE_LIST_STREAM, codec, chunk.toByteArray());
+                output.flush();
+                chunk.reset();
+            }
+            chunk.write(row);
+        });
+        
+        if (chunk.size() > 0) {
+            writeFrame(output, COMMAND_QUERY_INVOICE, TYPE_LIST_STREAM, codec, chunk.toByteArray());
+        }
+        writeFrame(output, COMMAND_QUERY_INVOICE, TYPE_STREAM_END, codec, String.valueOf(rows).getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Streamed invoice list with {} invoices", rows);
+        }
+    }
+
+    private void writeFrame(DataOutputStream output, int command, int type, int codec, byte[] contentBytes) throws IOException {
+        if (!FrameCompression.isSupported(codec)) {
+            codec = FrameCompression.CODEC_NONE;
+        }
+        boolean compressed = false;
+        if (codec != FrameCompression.CODEC_NONE && contentBytes.length >= config.getTcpCompressionThreshold()) {
+            byte[] compressedBytes = FrameCompression.compress(codec, contentBytes, 0, contentBytes.length);
+            if (compressedBytes.length < contentBytes.length) {
+                contentBytes = compressedBytes;
+                compressed = true;
+            }
+        }
+        if (contentBytes.length > MAX_FRAME_CONTENT) {
+            throw new IOException("Response of " + contentBytes.length + " bytes does not fit in a frame; use the streamed list query");
+        }
+        int messageLength = 1 + contentBytes.length; // 1 byte for command+type, plus content
         
         // Write 2 bytes for message length
         output.writeShort(messageLength);
         
-        // Write 1 byte for command (same as request)
-        output.writeByte(command);
+        // Write 1 byte for command (same as request) with the client's codec echoed back
+        output.writeByte(FrameCompression.commandByte(command, codec, compressed));
         
         // Write 1 byte for type (same as request)
         output.writeByte(type);
         
         // Write response content
         output.write(contentBytes);
-        
-        output.flush();
     }
 
     private String processMessage(BinaryMessage message) {
@@ -201,139 +472,217 @@ public class TcpServer {
                 return handleUploadInvoice(message);
             } else if (message.command == COMMAND_QUERY_INVOICE) {
                 return handleQueryInvoice(message);
+            } else if (message.command == COMMAND_BATCH_UPLOAD_INVOICE) {
+                return handleBatchUploadInvoice(message);
+            } else if (message.command == COMMAND_MULTI_QUERY_INVOICE) {
+                return handleMultiQueryInvoice(message);
+            } else if (message.command == COMMAND_INVOICE_CHANGES) {
+                return handleInvoiceChanges(message);
+            } else if (message.command == COMMAND_DELETE_INVOICES) {
+                return handleDeleteInvoices(message);
             } else {
-                System.err.println("Unknown command: " + message.command);
+                log.warn("Unknown command: {}", message.command);
                 return "Unknown command";
             }
         } catch (Exception e) {
-            System.err.println("Error processing message: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing message", e);
             return "Processing error: " + e.getMessage();
         }
     }
 
     private String handleUploadInvoice(BinaryMessage message) {
         try {
-            String invoiceData = message.content;
-            
-            System.out.println("Processing UploadInvoice:");
-            System.out.println("  Type: " + message.type + " (" + (message.type == TYPE_XML_OR_SERIES ? "XML" : "JSON") + ")");
-            System.out.println("  Data length: " + invoiceData.length());
-            System.out.println("  Raw data preview (first 200 chars): " + invoiceData.substring(0, Math.min(200, invoiceData.length())));
-            
-            // Parse invoice data using proper libraries
-            InvoiceUploadData.UploadSystem uploadData;
-            try {
-                if (message.type == TYPE_XML_OR_SERIES) {
-                    System.out.println("Parsing as XML...");
-                    uploadData = xmlMapper.readValue(invoiceData, InvoiceUploadData.UploadSystem.class);
-                } else if (message.type == TYPE_JSON_OR_NAME) {
-                    System.out.println("Parsing as JSON...");
-                    uploadData = gson.fromJson(invoiceData, InvoiceUploadData.UploadSystem.class);
-                } else {
-                    System.err.println("Invalid type for UploadInvoice: " + message.type);
-                    return "Fatura Kaydedilemedi";
-                }
-                System.out.println("Successfully parsed invoice data");
-                
-                // Debug invoice data structure
-                InvoiceUploadData.Customer customer = uploadData.customer;
-                InvoiceUploadData.InvoiceData invoiceDataObj = uploadData.invoiceData;
-                
-                System.out.println("Customer details:");
-                System.out.println("  Name: " + customer.name);
-                System.out.println("  SSN: " + customer.ssn);
-                System.out.println("  Type: " + customer.type);
-                System.out.println("  Is Company: " + customer.isCompany());
-                
-                System.out.println("Invoice details:");
-                System.out.println("  Series: " + invoiceDataObj.seri);
-                System.out.println("  Number: " + invoiceDataObj.number);
-                System.out.println("  Total Amount: " + invoiceDataObj.totalAmount);
-                System.out.println("  Discount: " + invoiceDataObj.discount);
-                System.out.println("  Amount to Pay: " + invoiceDataObj.amountToPay);
-                
-                if (invoiceDataObj.items != null) {
-                    System.out.println("Items (" + invoiceDataObj.items.size() + "):");
-                    for (int i = 0; i < invoiceDataObj.items.size(); i++) {
-                        InvoiceUploadData.Item item = invoiceDataObj.items.get(i);
-                        System.out.println("    " + (i+1) + ". " + item.name + 
-                            " - Qty: " + item.quantity + 
-                            ", Unit Price: " + item.unitPrice + 
-                            ", Line Total: " + item.lineTotal);
-                    }
-                } else {
-                    System.out.println("Items: null");
-                }
-                
-            } catch (Exception e) {
-                System.err.println("Error parsing invoice data: " + e.getMessage());
-                e.printStackTrace();
-                return "Fatura Kaydedilemedi";
+            if (log.isPayloadDumpEnabled() && message.type != TYPE_BINARY) {
+                String invoiceData = message.content();
+                log.debug("Raw data preview (first 200 chars): {}", invoiceData.substring(0, Math.min(200, invoiceData.length())));
             }
             
-            if (uploadData == null || uploadData.customer == null || uploadData.invoiceData == null) {
-                System.err.println("Invalid upload data structure");
-                System.err.println("  uploadData is null: " + (uploadData == null));
-                if (uploadData != null) {
-                    System.err.println("  customer is null: " + (uploadData.customer == null));
-                    System.err.println("  invoiceData is null: " + (uploadData.invoiceData == null));
-                }
+            InvoiceIngestService.Format format = ingestFormat(message.type);
+            if (format == null) {
+                log.warn("Invalid type for UploadInvoice: {}", message.type);
                 return "Fatura Kaydedilemedi";
             }
-            
-            // Save to database
-            if (saveInvoiceToDatabase(uploadData)) {
-                System.out.println("Invoice successfully saved to database");
+
+            // Decode, validate and save, or the earlier outcome of an identical resend
+            InvoiceIngestService.Outcome outcome = ingestService.ingest("TCP", format, message.data, 0, message.length,
+                StandardCharsets.UTF_8);
+            if (outcome == InvoiceIngestService.Outcome.SAVED) {
+                log.debug("Invoice successfully saved to database");
                 return "Fatura Kaydedildi";
-            } else {
-                System.err.println("Failed to save invoice to database");
-                return "Fatura Kaydedilemedi";
             }
+            if (outcome == InvoiceIngestService.Outcome.FAILED) {
+                log.warn("Failed to save invoice to database");
+            }
+            return "Fatura Kaydedilemedi";
             
         } catch (Exception e) {
-            System.err.println("Error in UploadInvoice: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error in UploadInvoice", e);
+            return "Fatura Kaydedilemedi";
+        }
+    }
+
+    private String handleBatchUploadInvoice(BinaryMessage message) {
+        InvoiceIngestService.Format format = ingestFormat(message.type);
+        if (format == null) {
+            log.warn("Invalid type for BatchUploadInvoice: {}", message.type);
+            return "Fatura Kaydedilemedi";
+        }
+
+        List<InvoiceUploadData.UploadSystem> documents;
+        List<int[]> ranges = new ArrayList<>();
+        try {
+            documents = ingestService.decodeBatch("TCP", format, message.data, 0, message.length, ranges);
+        } catch (Exception e) {
+            log.warn("Error parsing invoice batch: {}", e.getMessage());
             return "Fatura Kaydedilemedi";
         }
+
+        boolean[] results = ingestService.openSession("TCP").save(documents);
+        ingestService.archiveBatch(documents, results, ranges, format, message.data, 0, message.length);
+
+        StringBuilder vector = new StringBuilder(results.length);
+        int saved = 0;
+        for (boolean result : results) {
+            vector.append(result ? '1' : '0');
+            if (result) saved++;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Batch saved {}/{} invoices", saved, results.length);
+        }
+        return vector.toString();
+    }
+
+    private static InvoiceIngestService.Format ingestFormat(int type) {
+        switch (type) {
+            case TYPE_XML_OR_SERIES: return InvoiceIngestService.Format.XML;
+            case TYPE_JSON_OR_NAME: return InvoiceIngestService.Format.JSON;
+            case TYPE_BINARY: return InvoiceIngestService.Format.BINARY;
+            default: return null;
+        }
+    }
+
+    private String handleMultiQueryInvoice(BinaryMessage message) {
+        if (message.type != TYPE_XML_OR_SERIES) {
+            log.warn("Unknown multi-query type: {}", message.type);
+            return "Bilinmeyen sorgu türü";
+        }
+        List<Database.InvoiceKey> keys;
+        try {
+            keys = MultiGetFormat.parse(message.content(), Math.min(MAX_MULTI_QUERY_KEYS, config.getTcpMaxMultiGetKeys()));
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        Database.Invoice[] invoices = queryCache.getInvoicesBySeriesAndNumbers(keys);
+        if (log.isDebugEnabled()) {
+            log.debug("Multi-query for {} invoices", invoices.length);
+        }
+        // Totals have no upper bound, so very large ones can outgrow the frame; answer in full or not at all
+        String response = MultiGetFormat.formatTotals(invoices);
+        int bytes = response.getBytes(StandardCharsets.UTF_8).length;
+        if (bytes > MAX_FRAME_CONTENT) {
+            log.warn("Multi-query answer for {} invoices is {} bytes, over the frame limit", invoices.length, bytes);
+            return "Yanıt tek çerçeveye sığmıyor, daha az fatura sorgulayın";
+        }
+        return response;
+    }
+
+    private String handleInvoiceChanges(BinaryMessage message) {
+        if (message.type != TYPE_XML_OR_SERIES || !(database instanceof ServerDatabase)) {
+            log.warn("Unsupported change feed request: type {}", message.type);
+            return "Bilinmeyen sorgu türü";
+        }
+        String[] parts = message.content().trim().split("\\s+");
+        long since;
+        int limit;
+        try {
+            since = parts[0].isEmpty() ? 0 : Long.parseLong(parts[0]);
+            limit = parts.length > 1 ? Integer.parseInt(parts[1]) : MAX_CHANGES_PER_FRAME;
+        } catch (NumberFormatException e) {
+            return "Geçersiz sayfalama parametresi";
+        }
+        if (since < 0 || limit <= 0) {
+            return "Geçersiz sayfalama parametresi";
+        }
+
+        List<ServerDatabase.ChangeRecord> changes =
+            ((ServerDatabase) database).changesSince(since, Math.min(limit, MAX_CHANGES_PER_FRAME));
+        StringBuilder response = new StringBuilder(changes.size() * 64);
+        StringBuilder line = new StringBuilder(128);
+        int bytes = 0;
+        for (ServerDatabase.ChangeRecord change : changes) {
+            line.setLength(0);
+            ChangeFeedFormat.appendLine(line, change);
+            bytes += line.toString().getBytes(StandardCharsets.UTF_8).length;
+            if (bytes > MAX_FRAME_CONTENT) {
+                break; // The client continues from the last line it got
+            }
+            response.append(line);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Change feed after {}: {} changes", since, changes.size());
+        }
+        return response.toString();
+    }
+
+    private String handleDeleteInvoices(BinaryMessage message) {
+        if (message.type != TYPE_XML_OR_SERIES || !(database instanceof ServerDatabase)) {
+            log.warn("Unsupported delete request: type {}", message.type);
+            return "Bilinmeyen istek türü";
+        }
+        if (!adminCredential.isConfigured()) {
+            return "Toplu silme devre dışı";
+        }
+        // First line: the admin key, checked before the ranges are parsed
+        String content = message.content();
+        int newline = content.indexOf('\n');
+        String key = newline < 0 ? content : content.substring(0, newline);
+        if (!adminCredential.matches(key.strip())) {
+            log.warn("Rejected DeleteInvoices: missing or wrong admin key");
+            return "Yetkisiz istek";
+        }
+        List<ServerDatabase.IdRange> ranges;
+        try {
+            ranges = IdRangeFormat.parse(newline < 0 ? "" : content.substring(newline + 1),
+                config.getMaxDeleteRanges(), config.getMaxDeleteIds());
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        int deleted = ((ServerDatabase) database).deleteInvoices(ranges);
+        log.info("Bulk delete: {} invoices deleted ({} ids/ranges requested)", deleted, ranges.size());
+        return String.valueOf(deleted);
     }
 
     private String handleQueryInvoice(BinaryMessage message) {
         try {
-            String queryData = message.content.trim();
-            
-            System.out.println("Processing QueryInvoice:");
-            System.out.println("  Type: " + message.type + " (" + (message.type == TYPE_XML_OR_SERIES ? "Series" : "Name") + ")");
-            System.out.println("  Query data: " + queryData);
+            String queryData = message.content().trim();
             
             if (message.type == TYPE_XML_OR_SERIES) {
                 // Type 1: Query by series-number
                 // Expected format: "series number" (space separated)
                 String[] parts = queryData.split("\\s+", 2);
                 if (parts.length < 2) {
-                    System.err.println("Invalid series query format. Expected: 'series number'");
+                    log.debug("Invalid series query format. Expected: 'series number'");
                     return "Kayıt bulunamadı";
                 }
                 
                 String series = parts[0];
                 String number = parts[1];
                 
-                Database.Invoice invoice = database.getInvoiceBySeriesAndNumber(series, number);
+                Database.Invoice invoice = queryCache.getInvoiceBySeriesAndNumber(series, number);
                 if (invoice == null) {
-                    System.out.println("Invoice not found: " + series + "-" + number);
+                    log.debug("Invoice not found: {}-{}", series, number);
                     return "Kayıt bulunamadı";
                 }
                 
                 // Return only total amount as specified
                 String result = String.format("%.2f", invoice.totalAfter);
-                System.out.println("Found invoice, returning total: " + result);
+                log.debug("Found invoice, returning total: {}", result);
                 return result;
                 
             } else if (message.type == TYPE_JSON_OR_NAME) {
                 // Type 2: Query by customer name OR special "ALL_INVOICES" command for listing
                 if ("ALL_INVOICES".equals(queryData)) {
                     // Handle list query - return all invoices
-                    System.out.println("Processing invoice list query");
                     String[] invoiceList = database.getInvoiceList();
                     if (invoiceList.length == 0) {
                         return "Kayıt bulunamadı";
@@ -344,15 +693,17 @@ public class TcpServer {
                     for (String invoice : invoiceList) {
                         result.append(invoice).append("\n");
                     }
-                    System.out.println("Returning invoice list with " + invoiceList.length + " invoices");
+                    if (log.isDebugEnabled()) {
+                        log.debug("Returning invoice list with {} invoices", invoiceList.length);
+                    }
                     return result.toString();
                 } else {
                     // Regular customer name query
                     String customerName = queryData;
                     
-                    Database.Invoice[] invoices = database.getInvoicesByCustomerName(customerName);
+                    Database.Invoice[] invoices = queryCache.getInvoicesByCustomerName(customerName);
                     if (invoices.length == 0) {
-                        System.out.println("No invoices found for customer: " + customerName);
+                        log.debug("No invoices found for customer: {}", customerName);
                         return "Kayıt bulunamadı";
                     }
                     
@@ -363,147 +714,79 @@ public class TcpServer {
                     }
                     
                     String result = String.format("%.2f", totalSum);
-                    System.out.println("Found " + invoices.length + " invoices for customer, total sum: " + result);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Found {} invoices for customer, total sum: {}", invoices.length, result);
+                    }
                     return result;
                 }
                 
             } else {
-                System.err.println("Invalid type for QueryInvoice: " + message.type);
+                log.warn("Invalid type for QueryInvoice: {}", message.type);
                 return "Kayıt bulunamadı";
             }
             
         } catch (Exception e) {
-            System.err.println("Error in QueryInvoice: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error in QueryInvoice", e);
             return "Kayıt bulunamadı";
         }
     }
 
-    private boolean saveInvoiceToDatabase(InvoiceUploadData.UploadSystem uploadData) {
-        try {
-            InvoiceUploadData.Customer customer = uploadData.customer;
-            InvoiceUploadData.InvoiceData invoiceData = uploadData.invoiceData;
-            
-            // Find or create customer
-            int customerId = findOrCreateCustomer(customer.name, customer.ssn, customer.isCompany());
-            if (customerId == -1) {
-                System.err.println("Failed to find or create customer");
-                return false;
-            }
-            
-            // Ensure items exist and convert to map
-            Map<String, Double> itemQuantities = new HashMap<>();
-            for (InvoiceUploadData.Item item : invoiceData.items) {
-                if (!itemExists(item.name)) {
-                    database.addItem(item.name, item.unitPrice);
-                }
-                itemQuantities.put(item.name, item.quantity);
-            }
-            
-            // Save invoice with TCP source tracking if using ServerDatabase
-            if (database instanceof ServerDatabase) {
-                return ((ServerDatabase) database).saveInvoiceWithSource(
-                    invoiceData.seri, invoiceData.number, customerId, 
-                    invoiceData.discount, itemQuantities, "TCP");
-            } else {
-                return database.saveInvoice(
-                    invoiceData.seri, invoiceData.number, customerId, 
-                    invoiceData.discount, itemQuantities);
-            }
-        } catch (Exception e) {
-            System.err.println("Error saving invoice to database: " + e.getMessage());
-            e.printStackTrace();
-            return false;
-        }
-    }
-    
-    private int findOrCreateCustomer(String name, String ssn, boolean isCompany) {
-        try {
-            // Validate inputs
-            if (name == null || name.trim().isEmpty()) {
-                System.err.println("Customer name is null or empty");
-                return -1;
-            }
-            if (ssn == null || ssn.trim().isEmpty()) {
-                System.err.println("Customer SSN is null or empty");
-                return -1;
-            }
-            
-            String cleanName = name.trim();
-            String cleanSsn = ssn.trim();
-            
-            // Try to parse SSN as long for validation
-            long ssnNumber;
-            try {
-                ssnNumber = Long.parseLong(cleanSsn);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid SSN format: " + cleanSsn);
-                return -1;
-            }
-            
-            System.out.println("Finding or creating customer:");
-            System.out.println("  Name: '" + cleanName + "'");
-            System.out.println("  SSN: " + ssnNumber);
-            System.out.println("  Is Company: " + isCompany);
-            
-            // Try to find existing customer
-            int existingCustomerId = database.findCustomer(cleanName, ssnNumber);
-            if (existingCustomerId != -1) {
-                System.out.println("Found existing customer with ID: " + existingCustomerId);
-                return existingCustomerId;
-            }
-            
-            // Create new customer
-            boolean success = database.addCustomer(cleanName, cleanSsn, isCompany);
-            if (success) {
-                int newCustomerId = database.findCustomer(cleanName, ssnNumber);
-                System.out.println("Created new customer with ID: " + newCustomerId);
-                return newCustomerId;
-            } else {
-                System.err.println("Failed to add customer to database");
-                return -1;
-            }
-        } catch (Exception e) {
-            System.err.println("Error inserting customer: " + e.getMessage());
-            e.printStackTrace();
-            return -1;
-        }
-    }
-    
-    private boolean itemExists(String itemName) {
-        Map<String, Double> items = database.getItems();
-        return items.containsKey(itemName);
-    }
-
     private String getCommandName(int command) {
         switch (command) {
             case COMMAND_UPLOAD_INVOICE: return "UploadInvoice";
             case COMMAND_QUERY_INVOICE: return "QueryInvoice";
+            case COMMAND_BATCH_UPLOAD_INVOICE: return "BatchUploadInvoice";
+            case COMMAND_MULTI_QUERY_INVOICE: return "MultiQueryInvoice";
+            case COMMAND_INVOICE_CHANGES: return "InvoiceChanges";
+            case COMMAND_DELETE_INVOICES: return "DeleteInvoices";
+            case STATUS_BUSY: return "Busy";
             default: return "Unknown";
         }
     }
 
     private String getTypeName(int command, int type) {
-        if (command == COMMAND_UPLOAD_INVOICE) {
-            return type == TYPE_XML_OR_SERIES ? "XML" : type == TYPE_JSON_OR_NAME ? "JSON" : "Unknown";
+        if (command == COMMAND_UPLOAD_INVOICE || command == COMMAND_BATCH_UPLOAD_INVOICE) {
+            return type == TYPE_XML_OR_SERIES ? "XML" : type == TYPE_JSON_OR_NAME ? "JSON" : type == TYPE_BINARY ? "Binary" : "Unknown";
         } else if (command == COMMAND_QUERY_INVOICE) {
-            return type == TYPE_XML_OR_SERIES ? "Series" : type == TYPE_JSON_OR_NAME ? "Name" : "Unknown";
+            return type == TYPE_XML_OR_SERIES ? "Series" : type == TYPE_JSON_OR_NAME ? "Name" : type == TYPE_LIST_STREAM ? "List (streamed)" : "Unknown";
+        } else if (command == COMMAND_MULTI_QUERY_INVOICE) {
+            return type == TYPE_XML_OR_SERIES ? "Series" : "Unknown";
+        } else if (command == COMMAND_INVOICE_CHANGES) {
+            return type == TYPE_XML_OR_SERIES ? "Since" : "Unknown";
+        } else if (command == COMMAND_DELETE_INVOICES) {
+            return type == TYPE_XML_OR_SERIES ? "Ids" : "Unknown";
         }
         return "Unknown";
     }
 
-    // Helper class for binary messages
+    // Returned by readBinaryMessage for a frame over the client's rate limit
+    private static final BinaryMessage RATE_LIMITED = new BinaryMessage(0, STATUS_BUSY, 0, FrameCompression.CODEC_NONE, null, 0);
+
+    // Helper class for binary messages; data is a pooled buffer holding length content bytes
     private static class BinaryMessage {
         final int messageLength;
         final int command;
         final int type;
-        final String content;
+        final int codec;
+        final byte[] data;
+        final int length;
+        private String content;
 
-        BinaryMessage(int messageLength, int command, int type, String content) {
+        BinaryMessage(int messageLength, int command, int type, int codec, byte[] data, int length) {
             this.messageLength = messageLength;
             this.command = command;
             this.type = type;
-            this.content = content;
+            this.codec = codec;
+            this.data = data;
+            this.length = length;
+        }
+
+        // Text payloads (XML/JSON/query strings) are decoded on first use
+        String content() {
+            if (content == null) {
+                content = new String(data, 0, length, StandardCharsets.UTF_8);
+            }
+            return content;
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.ancienty.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory store of asynchronous upload tickets.
+ *
+ * A ticket is created when an upload is accepted and moves from QUEUED to
+ * PERSISTED or FAILED once the background writer has handled it. Finished
+ * tickets expire after the configured TTL; queued tickets never expire. When
+ * the store is full, new uploads are refused instead of evicting live tickets.
+ */
+public class UploadTicketStore {
+
+    public enum State { QUEUED, PERSISTED, FAILED }
+
+    public static class Ticket {
+        public final String id;
+        public final long createdAt;
+        private volatile State state = State.QUEUED;
+        private volatile String message;
+        private volatile long completedAt;
+
+        Ticket(String id, long createdAt) {
+            this.id = id;
+            this.createdAt = createdAt;
+        }
+
+        public State getState() { return state; }
+        public String getMessage() { return message; }
+        public long getCompletedAt() { return completedAt; }
+    }
+
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final String idPrefix = Long.toString(System.currentTimeMillis(), 36);
+    private final int maxTickets;
+    private final long ttlMillis;
+
+    public UploadTicketStore(int maxTickets, long ttlMillis) {
+        this.maxTickets = maxTickets;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Creates a QUEUED ticket.
+     *
+     * @return the ticket, or null if the store is full even after purging expired tickets
+     */
+    public Ticket create() {
+        if (!reserveSlot()) {
+            purgeExpired();
+            if (!reserveSlot()) {
+                return null;
+            }
+        }
+        // Sequence keeps ids unique, the random part keeps them from being guessed
+        String id = idPrefix + "-" + Long.toString(sequence.incrementAndGet(), 36)
+                + "-" + Integer.toString(ThreadLocalRandom.current().nextInt(0x100000, 0x1000000), 36);
+        Ticket ticket = new Ticket(id, System.currentTimeMillis());
+        tickets.put(id, ticket);
+        return ticket;
+    }
+
+    /**
+     * @return the ticket, or null if it is unknown or has expired
+     */
+    public Ticket get(String id) {
+        if (id == null) return null;
+        Ticket ticket = tickets.get(id);
+        if (ticket != null && isExpired(ticket, System.currentTimeMillis())) {
+            remove(ticket);
+            return null;
+        }
+        return ticket;
+    }
+
+    public void complete(Ticket ticket, boolean persisted, String message) {
+        ticket.message = message;
+        ticket.completedAt = System.currentTimeMillis();
+        ticket.state = persisted ? State.PERSISTED : State.FAILED;
+    }
+
+    /**
+     * Drops a ticket whose upload was never queued.
+     */
+    public void discard(Ticket ticket) {
+        remove(ticket);
+    }
+
+    /**
+     * Removes finished tickets older than the TTL.
+     *
+     * @return number of tickets removed
+     */
+    public int purgeExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Ticket ticket : tickets.values()) {
+            // get() may be removing the same ticket; only the removal that wins counts
+            if (isExpired(ticket, now) && remove(ticket)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    private boolean reserveSlot() {
+        int current;
+        do {
+            current = count.get();
+            if (current >= maxTickets) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private boolean remove(Ticket ticket) {
+        if (tickets.remove(ticket.id, ticket)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isExpired(Ticket ticket, long now) {
+        return ticket.state != State.QUEUED && now - ticket.completedAt > ttlMillis;
+    }
+}
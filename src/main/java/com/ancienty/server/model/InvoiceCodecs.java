@@ -0,0 +1,91 @@
+package com.ancienty.server.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.xml.XmlFactory;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Process-wide JSON/XML codecs for the {@link InvoiceUploadData} types.
+ *
+ * Mappers are built once and never reconfigured; callers get immutable,
+ * thread-safe ObjectReader/ObjectWriter instances bound to their type, in
+ * compact and pretty variants. Building a mapper and introspecting the model
+ * classes is the expensive part, so {@link #warmUp()} runs every reader and
+ * writer once at startup instead of on the first request or preview.
+ */
+public final class InvoiceCodecs {
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final XmlMapper XML_MAPPER = createXmlMapper();
+    private static final Gson GSON = new Gson();
+
+    private static final ObjectReader XML_DOCUMENT_READER = XML_MAPPER.readerFor(InvoiceUploadData.UploadSystem.class);
+    private static final ObjectReader XML_BATCH_READER = XML_MAPPER.readerFor(InvoiceUploadData.UploadBatch.class);
+    private static final ObjectWriter JSON_DOCUMENT_WRITER = JSON_MAPPER.writerFor(InvoiceUploadData.UploadSystem.class);
+    private static final ObjectWriter JSON_DOCUMENT_PRETTY_WRITER = JSON_DOCUMENT_WRITER.withDefaultPrettyPrinter();
+    private static final ObjectWriter XML_DOCUMENT_WRITER = XML_MAPPER.writerFor(InvoiceUploadData.UploadSystem.class);
+    private static final ObjectWriter XML_DOCUMENT_PRETTY_WRITER = XML_DOCUMENT_WRITER.withDefaultPrettyPrinter();
+
+    private InvoiceCodecs() {}
+
+    private static XmlMapper createXmlMapper() {
+        XmlMapper mapper = new XmlMapper();
+        // Configure to ignore unknown properties
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+
+    /** Reads one &lt;uploadSystem&gt; document. */
+    public static ObjectReader xmlDocumentReader() { return XML_DOCUMENT_READER; }
+
+    /** Reads an &lt;uploadBatch&gt; document. */
+    public static ObjectReader xmlBatchReader() { return XML_BATCH_READER; }
+
+    public static ObjectWriter jsonDocumentWriter(boolean pretty) {
+        return pretty ? JSON_DOCUMENT_PRETTY_WRITER : JSON_DOCUMENT_WRITER;
+    }
+
+    public static ObjectWriter xmlDocumentWriter(boolean pretty) {
+        return pretty ? XML_DOCUMENT_PRETTY_WRITER : XML_DOCUMENT_WRITER;
+    }
+
+    /** Factory for hand-written JSON responses (streamed lists, batch results). */
+    public static JsonFactory jsonFactory() { return JSON_MAPPER.getFactory(); }
+
+    /** Factory for hand-written XML responses. */
+    public static XmlFactory xmlFactory() { return XML_MAPPER.getFactory(); }
+
+    /** Reflective Gson, for the JSON decoding fallback. */
+    public static Gson gson() { return GSON; }
+
+    /**
+     * Round-trips a sample document through every reader and writer so that
+     * serializers and deserializers are resolved before the first real use.
+     */
+    public static void warmUp() {
+        InvoiceUploadData.UploadSystem sample = new InvoiceUploadData.UploadSystem(
+            new InvoiceUploadData.Customer("Örnek", "1", "SAHIS"),
+            new InvoiceUploadData.InvoiceData("A", "1",
+                List.of(new InvoiceUploadData.Item("Kalem", 1, 1, 1)), 1, 0, 1));
+        try {
+            for (boolean pretty : new boolean[]{false, true}) {
+                String json = jsonDocumentWriter(pretty).writeValueAsString(sample);
+                GSON.fromJson(json, InvoiceUploadData.UploadSystem.class);
+                String xml = xmlDocumentWriter(pretty).writeValueAsString(sample);
+                XML_DOCUMENT_READER.readValue(xml);
+            }
+            XML_BATCH_READER.readValue("<uploadBatch>" + XML_DOCUMENT_WRITER.writeValueAsString(sample) + "</uploadBatch>");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Invoice codec warm-up failed", e);
+        }
+    }
+}
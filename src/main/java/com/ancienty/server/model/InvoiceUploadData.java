@@ -30,6 +30,25 @@ public class InvoiceUploadData {
         }
     }
 
+    /**
+     * Batch of upload documents sent in a single request.
+     * XML form: &lt;uploadBatch&gt;&lt;uploadSystem&gt;...&lt;/uploadSystem&gt;...&lt;/uploadBatch&gt;
+     */
+    @JacksonXmlRootElement(localName = "uploadBatch")
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class UploadBatch {
+        @JsonProperty("invoices")
+        @JacksonXmlProperty(localName = "uploadSystem")
+        @JacksonXmlElementWrapper(useWrapping = false)
+        public List<UploadSystem> invoices;
+
+        public UploadBatch() {}
+
+        public UploadBatch(List<UploadSystem> invoices) {
+            this.invoices = invoices;
+        }
+    }
+
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class Customer {
         @JsonProperty("name")
@@ -0,0 +1,270 @@
+package com.ancienty.server.protocol;
+
+import com.ancienty.server.model.InvoiceUploadData;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link InvoiceUploadData.UploadSystem} (upload type 3).
+ *
+ * Document layout (version 1):
+ * - 1 byte: version
+ * - string customer.name, customer.ssn, customer.type
+ * - string invoiceData.seri, invoiceData.number
+ * - double totalAmount, discount, amountToPay
+ * - varint item count, then per item: string name, double quantity, unitPrice, lineTotal
+ *
+ * A batch is the version byte, a varint document count and the documents
+ * without their own version byte.
+ *
+ * Primitives:
+ * - varint: unsigned LEB128 (7 bits per byte, low bits first)
+ * - string: varint (UTF-8 byte length + 1) followed by the bytes; 0 encodes null
+ * - double: 8 bytes IEEE 754, big-endian
+ */
+public final class BinaryInvoiceCodec {
+
+    public static final int VERSION = 1;
+
+    // Smallest possible encoded item / document, used to reject absurd counts early
+    private static final int MIN_ITEM_SIZE = 1 + 3 * 8;
+    private static final int MIN_DOCUMENT_SIZE = 5 + 3 * 8 + 1;
+
+    private BinaryInvoiceCodec() {}
+
+    // ──────────────────────────────── DECODING ────────────────────────────────
+
+    public static InvoiceUploadData.UploadSystem decode(byte[] buffer, int offset, int length) throws IOException {
+        Reader reader = new Reader(buffer, offset, length);
+        reader.readVersion();
+        InvoiceUploadData.UploadSystem document = reader.readDocument();
+        if (reader.position != reader.end) {
+            throw new IOException("Trailing bytes after binary invoice: " + (reader.end - reader.position));
+        }
+        return document;
+    }
+
+    public static List<InvoiceUploadData.UploadSystem> decodeBatch(byte[] buffer, int offset, int length) throws IOException {
+        return decodeBatch(buffer, offset, length, null);
+    }
+
+    /**
+     * Decodes a batch and, if ranges is not null, adds the position of each
+     * encoded document in buffer as {offset, length}.
+     */
+    public static List<InvoiceUploadData.UploadSystem> decodeBatch(byte[] buffer, int offset, int length,
+                                                                   List<int[]> ranges) throws IOException {
+        Reader reader = new Reader(buffer, offset, length);
+        reader.readVersion();
+        int count = reader.readCount(MIN_DOCUMENT_SIZE);
+        List<InvoiceUploadData.UploadSystem> documents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int start = reader.position;
+            documents.add(reader.readDocument());
+            if (ranges != null) {
+                ranges.add(new int[] {start, reader.position - start});
+            }
+        }
+        if (reader.position != reader.end) {
+            throw new IOException("Trailing bytes after binary invoice batch: " + (reader.end - reader.position));
+        }
+        return documents;
+    }
+
+    /**
+     * The document at a range reported by {@link #decodeBatch(byte[], int, int, List)},
+     * as a stand-alone document that {@link #decode} reads.
+     */
+    public static byte[] batchDocument(byte[] buffer, int offset, int length) {
+        byte[] document = new byte[length + 1];
+        document[0] = VERSION;
+        System.arraycopy(buffer, offset, document, 1, length);
+        return document;
+    }
+
+    private static final class Reader {
+        private final byte[] buffer;
+        private final int end;
+        private int position;
+
+        Reader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        void readVersion() throws IOException {
+            require(1);
+            int version = buffer[position++] & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary invoice version: " + version);
+            }
+        }
+
+        InvoiceUploadData.UploadSystem readDocument() throws IOException {
+            InvoiceUploadData.Customer customer = new InvoiceUploadData.Customer(readString(), readString(), readString());
+
+            InvoiceUploadData.InvoiceData invoiceData = new InvoiceUploadData.InvoiceData();
+            invoiceData.seri = readString();
+            invoiceData.number = readString();
+            invoiceData.totalAmount = readDouble();
+            invoiceData.discount = readDouble();
+            invoiceData.amountToPay = readDouble();
+
+            int itemCount = readCount(MIN_ITEM_SIZE);
+            List<InvoiceUploadData.Item> items = new ArrayList<>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                items.add(new InvoiceUploadData.Item(readString(), readDouble(), readDouble(), readDouble()));
+            }
+            invoiceData.items = items;
+
+            return new InvoiceUploadData.UploadSystem(customer, invoiceData);
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                require(1);
+                int b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) throw new IOException("Varint out of range");
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readCount(int minElementSize) throws IOException {
+            int count = readVarint();
+            if ((long) count * minElementSize > end - position) {
+                throw new IOException("Element count " + count + " exceeds remaining payload");
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            int lengthPlusOne = readVarint();
+            if (lengthPlusOne == 0) return null;
+            int length = lengthPlusOne - 1;
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        double readDouble() throws IOException {
+            require(8);
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (buffer[position++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        private void require(int count) throws IOException {
+            if (count > end - position) {
+                throw new IOException("Truncated binary invoice");
+            }
+        }
+    }
+
+    // ──────────────────────────────── ENCODING ────────────────────────────────
+
+    public static byte[] encode(InvoiceUploadData.UploadSystem document) {
+        Writer writer = new Writer(256);
+        writer.writeByte(VERSION);
+        writer.writeDocument(document);
+        return writer.toByteArray();
+    }
+
+    public static byte[] encodeBatch(List<InvoiceUploadData.UploadSystem> documents) {
+        Writer writer = new Writer(256 * Math.max(1, documents.size()));
+        writer.writeByte(VERSION);
+        writer.writeVarint(documents.size());
+        for (InvoiceUploadData.UploadSystem document : documents) {
+            writer.writeDocument(document);
+        }
+        return writer.toByteArray();
+    }
+
+    private static final class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int initialCapacity) {
+            this.buffer = new byte[initialCapacity];
+        }
+
+        void writeDocument(InvoiceUploadData.UploadSystem document) {
+            InvoiceUploadData.Customer customer = document.customer != null ? document.customer : new InvoiceUploadData.Customer();
+            InvoiceUploadData.InvoiceData invoiceData = document.invoiceData != null ? document.invoiceData : new InvoiceUploadData.InvoiceData();
+
+            writeString(customer.name);
+            writeString(customer.ssn);
+            writeString(customer.type);
+            writeString(invoiceData.seri);
+            writeString(invoiceData.number);
+            writeDouble(invoiceData.totalAmount);
+            writeDouble(invoiceData.discount);
+            writeDouble(invoiceData.amountToPay);
+
+            List<InvoiceUploadData.Item> items = invoiceData.items != null ? invoiceData.items : List.of();
+            writeVarint(items.size());
+            for (InvoiceUploadData.Item item : items) {
+                writeString(item.name);
+                writeDouble(item.quantity);
+                writeDouble(item.unitPrice);
+                writeDouble(item.lineTotal);
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeDouble(double value) {
+            ensureCapacity(8);
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (bits >>> shift);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.ancienty.server.protocol;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Small pool of fixed-size byte arrays used for decompressing TCP frames.
+ * Requests larger than the pooled size get a fresh array that is simply
+ * dropped on release.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Returns an array of at least minSize bytes.
+     */
+    public byte[] acquire(int minSize) {
+        if (minSize > bufferSize) {
+            return new byte[minSize];
+        }
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.ancienty.server.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame compression for the TCP binary protocol.
+ *
+ * The command byte of a frame carries the compression flags:
+ * - bits 0-4: command
+ * - bits 5-6: codec (0=none, 1=deflate, 2=LZF). On a request this also
+ *   advertises that the client accepts responses compressed with that codec.
+ * - bit 7: payload of this frame is compressed
+ *
+ * A compressed payload is a 4-byte big-endian uncompressed length followed
+ * by the codec output. Clients that never set the codec bits see the
+ * protocol unchanged.
+ */
+public final class FrameCompression {
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int CODEC_LZF = 2;
+
+    public static final int COMMAND_MASK = 0x1F;
+    public static final int CODEC_MASK = 0x60;
+    public static final int CODEC_SHIFT = 5;
+    public static final int FLAG_COMPRESSED = 0x80;
+
+    /** Guard against decompression bombs */
+    public static final int MAX_UNCOMPRESSED_SIZE = 16 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private FrameCompression() {}
+
+    public static int command(int commandByte) {
+        return commandByte & COMMAND_MASK;
+    }
+
+    public static int codec(int commandByte) {
+        return (commandByte & CODEC_MASK) >>> CODEC_SHIFT;
+    }
+
+    public static boolean isCompressed(int commandByte) {
+        return (commandByte & FLAG_COMPRESSED) != 0;
+    }
+
+    public static boolean isSupported(int codec) {
+        return codec == CODEC_DEFLATE || codec == CODEC_LZF;
+    }
+
+    public static int commandByte(int command, int codec, boolean compressed) {
+        return (command & COMMAND_MASK) | ((codec << CODEC_SHIFT) & CODEC_MASK) | (compressed ? FLAG_COMPRESSED : 0);
+    }
+
+    /**
+     * Compresses data into a frame payload (length prefix + codec output).
+     */
+    public static byte[] compress(int codec, byte[] data, int off, int len) {
+        byte[] out;
+        int written;
+        if (codec == CODEC_DEFLATE) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(data, off, len);
+            deflater.finish();
+            // Deflate worst case: a few bytes per 16 KB stored block
+            out = new byte[4 + len + (len >>> 12) + 64];
+            written = 0;
+            while (!deflater.finished()) {
+                written += deflater.deflate(out, 4 + written, out.length - 4 - written);
+                if (!deflater.finished() && 4 + written == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+            }
+        } else if (codec == CODEC_LZF) {
+            out = new byte[4 + LzfCodec.maxCompressedLength(len)];
+            written = LzfCodec.compress(data, off, len, out, 4);
+        } else {
+            throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+
+        out[0] = (byte) (len >>> 24);
+        out[1] = (byte) (len >>> 16);
+        out[2] = (byte) (len >>> 8);
+        out[3] = (byte) len;
+        return Arrays.copyOf(out, 4 + written);
+    }
+
+    /**
+     * Reads the uncompressed length from a compressed frame payload.
+     */
+    public static int uncompressedLength(byte[] payload, int off, int len) throws IOException {
+        if (len < 4) {
+            throw new IOException("Compressed payload too short");
+        }
+        int size = (payload[off] & 0xFF) << 24 | (payload[off + 1] & 0xFF) << 16
+                | (payload[off + 2] & 0xFF) << 8 | (payload[off + 3] & 0xFF);
+        if (size < 0 || size > MAX_UNCOMPRESSED_SIZE) {
+            throw new IOException("Invalid uncompressed length: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Decompresses a frame payload into out, which must hold at least
+     * {@link #uncompressedLength} bytes.
+     *
+     * @return number of bytes written to out
+     */
+    public static int decompress(int codec, byte[] payload, int off, int len, byte[] out) throws IOException {
+        int size = uncompressedLength(payload, off, len);
+        if (codec == CODEC_DEFLATE) {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(payload, off + 4, len - 4);
+            try {
+                int total = 0;
+                while (total < size && !inflater.finished()) {
+                    int n = inflater.inflate(out, total, size - total);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated deflate payload");
+                    }
+                    total += n;
+                }
+                if (total != size) {
+                    throw new IOException("Deflate size mismatch: expected " + size + " bytes, got " + total);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate payload: " + e.getMessage(), e);
+            }
+        } else if (codec == CODEC_LZF) {
+            LzfCodec.decompress(payload, off + 4, len - 4, out, 0, size);
+        } else {
+            throw new IOException("Unsupported codec: " + codec);
+        }
+        return size;
+    }
+}
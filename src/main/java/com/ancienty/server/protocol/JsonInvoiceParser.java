@@ -0,0 +1,250 @@
+package com.ancienty.server.protocol;
+
+import com.ancienty.server.model.InvoiceUploadData;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming JSON reader for {@link InvoiceUploadData.UploadSystem} documents
+ * and arrays of them, mapping tokens straight into the model without
+ * reflection or an intermediate tree.
+ *
+ * Results match reflective Gson on the same input: unknown fields are
+ * skipped, strings also accept numbers and booleans (as their literal text),
+ * numbers also accept numeric strings, null leaves a number at 0, and the
+ * lenient syntax Gson accepts (comments, single quotes, unquoted names, NaN)
+ * is allowed. Empty input and a top-level null give null. Content after the
+ * document is an error.
+ */
+public final class JsonInvoiceParser {
+
+    private static final JsonFactory FACTORY = JsonFactory.builder()
+        .enable(JsonReadFeature.ALLOW_JAVA_COMMENTS)
+        .enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)
+        .enable(JsonReadFeature.ALLOW_UNQUOTED_FIELD_NAMES)
+        .enable(JsonReadFeature.ALLOW_NON_NUMERIC_NUMBERS)
+        .build();
+
+    private JsonInvoiceParser() {}
+
+    public static InvoiceUploadData.UploadSystem parse(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(data, offset, length)) {
+            return readRoot(parser);
+        }
+    }
+
+    public static InvoiceUploadData.UploadSystem parse(InputStream in, Charset charset) throws IOException {
+        try (JsonParser parser = createParser(in, charset)) {
+            return readRoot(parser);
+        }
+    }
+
+    public static InvoiceUploadData.UploadSystem parse(String text) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(text)) {
+            return readRoot(parser);
+        }
+    }
+
+    /**
+     * Parses a JSON array of documents; null entries stay null, a top-level null is an empty list.
+     */
+    public static List<InvoiceUploadData.UploadSystem> parseBatch(byte[] data, int offset, int length) throws IOException {
+        return parseBatch(data, offset, length, null);
+    }
+
+    /**
+     * Parses a batch and, if ranges is not null, adds the position of each
+     * document's object in data as {offset, length} (null for a null entry).
+     */
+    public static List<InvoiceUploadData.UploadSystem> parseBatch(byte[] data, int offset, int length,
+                                                                  List<int[]> ranges) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(data, offset, length)) {
+            JsonToken token = parser.nextToken();
+            List<InvoiceUploadData.UploadSystem> documents = new ArrayList<>();
+            if (token != null && token != JsonToken.VALUE_NULL) {
+                expect(parser, JsonToken.START_ARRAY);
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == JsonToken.VALUE_NULL) {
+                        documents.add(null);
+                        if (ranges != null) ranges.add(null);
+                        continue;
+                    }
+                    // Byte offsets count from the start of the parsed range
+                    long start = parser.currentTokenLocation().getByteOffset();
+                    documents.add(readUploadSystem(parser));
+                    if (ranges != null) {
+                        long end = parser.currentLocation().getByteOffset();
+                        ranges.add(new int[] {offset + (int) start, (int) (end - start)});
+                    }
+                }
+            }
+            expectEnd(parser);
+            return documents;
+        }
+    }
+
+    private static JsonParser createParser(InputStream in, Charset charset) throws IOException {
+        // Jackson detects UTF-8/16/32 itself; anything else goes through a decoder
+        return StandardCharsets.UTF_8.equals(charset)
+            ? FACTORY.createParser(in)
+            : FACTORY.createParser(new InputStreamReader(in, charset));
+    }
+
+    private static InvoiceUploadData.UploadSystem readRoot(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        InvoiceUploadData.UploadSystem document = null;
+        if (token != null && token != JsonToken.VALUE_NULL) {
+            document = readUploadSystem(parser);
+        }
+        expectEnd(parser);
+        return document;
+    }
+
+    // ──────────────────────────────── MODEL ────────────────────────────────
+
+    private static InvoiceUploadData.UploadSystem readUploadSystem(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        InvoiceUploadData.UploadSystem document = new InvoiceUploadData.UploadSystem();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "customer":
+                    document.customer = value == JsonToken.VALUE_NULL ? null : readCustomer(parser);
+                    break;
+                case "invoiceData":
+                    document.invoiceData = value == JsonToken.VALUE_NULL ? null : readInvoiceData(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return document;
+    }
+
+    private static InvoiceUploadData.Customer readCustomer(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        InvoiceUploadData.Customer customer = new InvoiceUploadData.Customer();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "name": customer.name = readString(parser); break;
+                case "ssn": customer.ssn = readString(parser); break;
+                case "type": customer.type = readString(parser); break;
+                default: parser.skipChildren();
+            }
+        }
+        return customer;
+    }
+
+    private static InvoiceUploadData.InvoiceData readInvoiceData(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        InvoiceUploadData.InvoiceData invoiceData = new InvoiceUploadData.InvoiceData();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "seri": invoiceData.seri = readString(parser); break;
+                case "number": invoiceData.number = readString(parser); break;
+                case "items": invoiceData.items = readItems(parser); break;
+                case "totalAmount": invoiceData.totalAmount = readDouble(parser, invoiceData.totalAmount); break;
+                case "discount": invoiceData.discount = readDouble(parser, invoiceData.discount); break;
+                case "amountToPay": invoiceData.amountToPay = readDouble(parser, invoiceData.amountToPay); break;
+                default: parser.skipChildren();
+            }
+        }
+        return invoiceData;
+    }
+
+    private static List<InvoiceUploadData.Item> readItems(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, JsonToken.START_ARRAY);
+        List<InvoiceUploadData.Item> items = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            items.add(token == JsonToken.VALUE_NULL ? null : readItem(parser));
+        }
+        return items;
+    }
+
+    private static InvoiceUploadData.Item readItem(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        InvoiceUploadData.Item item = new InvoiceUploadData.Item();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "name": item.name = readString(parser); break;
+                case "quantity": item.quantity = readDouble(parser, item.quantity); break;
+                case "unitPrice": item.unitPrice = readDouble(parser, item.unitPrice); break;
+                case "lineTotal": item.lineTotal = readDouble(parser, item.lineTotal); break;
+                default: parser.skipChildren();
+            }
+        }
+        return item;
+    }
+
+    // ──────────────────────────────── VALUES ────────────────────────────────
+
+    private static String readString(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getText();
+            default:
+                throw new JsonParseException(parser, "Expected a string but was " + parser.currentToken());
+        }
+    }
+
+    /**
+     * @param current value kept when the JSON value is null
+     */
+    private static double readDouble(JsonParser parser, double current) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NULL:
+                return current;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_STRING:
+                try {
+                    return Double.parseDouble(parser.getText());
+                } catch (NumberFormatException e) {
+                    throw new JsonParseException(parser, "Not a number: " + parser.getText());
+                }
+            default:
+                throw new JsonParseException(parser, "Expected a number but was " + parser.currentToken());
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken expected) throws IOException {
+        if (parser.currentToken() != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but was " + parser.currentToken());
+        }
+    }
+
+    private static void expectEnd(JsonParser parser) throws IOException {
+        if (parser.nextToken() != null) {
+            throw new JsonParseException(parser, "Unexpected content after the document");
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.ancienty.server.protocol;
+
+import java.io.IOException;
+
+/**
+ * Fast LZ77-style codec in the spirit of LZF: no entropy coding, a single
+ * hash probe per position, so it compresses repetitive XML several times
+ * faster than deflate at a somewhat lower ratio.
+ *
+ * Format (sequence of runs):
+ * - ctrl &lt; 32: literal run of (ctrl + 1) bytes follows
+ * - ctrl &gt;= 32: back reference, length = (ctrl &gt;&gt; 5) + 2, where a value of 7
+ *   is extended by the next byte; offset = ((ctrl &amp; 0x1F) &lt;&lt; 8 | next byte) + 1
+ */
+public final class LzfCodec {
+
+    private static final int HASH_BITS = 14;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_MATCH = 7 + 255 + 2;
+
+    private LzfCodec() {}
+
+    /**
+     * Upper bound for the compressed size of len input bytes.
+     */
+    public static int maxCompressedLength(int len) {
+        return len + (len / MAX_LITERAL) + 1;
+    }
+
+    /**
+     * Compresses input into output (sized with {@link #maxCompressedLength}).
+     *
+     * @return number of bytes written to output
+     */
+    public static int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        int[] table = new int[1 << HASH_BITS];
+        int inEnd = inOff + inLen;
+        int ip = inOff;
+        int op = outOff;
+        int literalStart = op++;
+        int literals = 0;
+
+        while (ip + 2 < inEnd) {
+            int hash = ((in[ip] & 0xFF) << 16 | (in[ip + 1] & 0xFF) << 8 | (in[ip + 2] & 0xFF)) * -1640531535 >>> (32 - HASH_BITS);
+            int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            int distance = ip - ref;
+
+            if (ref >= inOff && distance <= MAX_OFFSET
+                    && in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+                int maxLen = Math.min(MAX_MATCH, inEnd - ip);
+                int len = 3;
+                while (len < maxLen && in[ref + len] == in[ip + len]) len++;
+
+                // Close the pending literal run (or drop its reserved control byte)
+                if (literals > 0) {
+                    out[literalStart] = (byte) (literals - 1);
+                } else {
+                    op--;
+                }
+
+                int code = len - 2;
+                int offset = distance - 1;
+                if (code < 7) {
+                    out[op++] = (byte) ((code << 5) | (offset >>> 8));
+                } else {
+                    out[op++] = (byte) ((7 << 5) | (offset >>> 8));
+                    out[op++] = (byte) (code - 7);
+                }
+                out[op++] = (byte) offset;
+
+                ip += len;
+                literalStart = op++;
+                literals = 0;
+                continue;
+            }
+
+            out[op++] = in[ip++];
+            if (++literals == MAX_LITERAL) {
+                out[literalStart] = (byte) (literals - 1);
+                literalStart = op++;
+                literals = 0;
+            }
+        }
+
+        while (ip < inEnd) {
+            out[op++] = in[ip++];
+            if (++literals == MAX_LITERAL) {
+                out[literalStart] = (byte) (literals - 1);
+                literalStart = op++;
+                literals = 0;
+            }
+        }
+
+        if (literals > 0) {
+            out[literalStart] = (byte) (literals - 1);
+        } else {
+            op--;
+        }
+        return op - outOff;
+    }
+
+    /**
+     * Decompresses exactly outLen bytes into output.
+     */
+    public static void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) throws IOException {
+        int inEnd = inOff + inLen;
+        int outEnd = outOff + outLen;
+        int ip = inOff;
+        int op = outOff;
+
+        while (ip < inEnd) {
+            int ctrl = in[ip++] & 0xFF;
+            if (ctrl < MAX_LITERAL) {
+                int len = ctrl + 1;
+                if (ip + len > inEnd || op + len > outEnd) {
+                    throw new IOException("Corrupt LZF literal run");
+                }
+                System.arraycopy(in, ip, out, op, len);
+                ip += len;
+                op += len;
+            } else {
+                int len = ctrl >>> 5;
+                if (len == 7) {
+                    if (ip >= inEnd) throw new IOException("Truncated LZF back reference");
+                    len += in[ip++] & 0xFF;
+                }
+                len += 2;
+                if (ip >= inEnd) throw new IOException("Truncated LZF back reference");
+                int ref = op - (((ctrl & 0x1F) << 8) | (in[ip++] & 0xFF)) - 1;
+                if (ref < outOff || op + len > outEnd) {
+                    throw new IOException("Corrupt LZF back reference");
+                }
+                // Byte-wise copy: source and destination may overlap
+                for (int i = 0; i < len; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        }
+
+        if (op != outEnd) {
+            throw new IOException("LZF size mismatch: expected " + outLen + " bytes, got " + (op - outOff));
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.ancienty.server.protocol;
+
+import com.ancienty.server.model.InvoiceUploadData;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StAX reader for &lt;uploadSystem&gt; and &lt;uploadBatch&gt; documents,
+ * mapping elements straight into {@link InvoiceUploadData} without the
+ * databind layer.
+ *
+ * Results match Jackson's XmlMapper with unknown properties ignored:
+ * elements and attributes are matched by local name (namespaces and the
+ * root element's name are not checked), unknown elements are skipped, the
+ * last occurrence of a repeated field wins, text is kept as written while
+ * numbers are trimmed, and an empty element is "" for a string, 0 for a
+ * number and an empty object otherwise. DTDs and external entities are not
+ * supported.
+ *
+ * One deliberate difference: when other elements interrupt a run of
+ * &lt;item&gt; (or batch &lt;uploadSystem&gt;) elements, databind keeps only
+ * the last run; this parser keeps every element.
+ */
+public final class XmlInvoiceParser {
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private XmlInvoiceParser() {}
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    public static InvoiceUploadData.UploadSystem parse(byte[] data, int offset, int length) throws IOException {
+        return parse(new ByteArrayInputStream(data, offset, length));
+    }
+
+    /**
+     * Encoding is taken from the BOM / XML declaration (UTF-8 by default).
+     */
+    public static InvoiceUploadData.UploadSystem parse(InputStream in) throws IOException {
+        try {
+            return readDocument(FACTORY.createXMLStreamReader(in));
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid invoice XML: " + e.getMessage(), e);
+        }
+    }
+
+    public static InvoiceUploadData.UploadSystem parse(String text) throws IOException {
+        try {
+            return readDocument(FACTORY.createXMLStreamReader(new StringReader(text)));
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid invoice XML: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses an &lt;uploadBatch&gt;: every &lt;uploadSystem&gt; child in order.
+     */
+    public static List<InvoiceUploadData.UploadSystem> parseBatch(byte[] data, int offset, int length) throws IOException {
+        return parseBatch(data, offset, length, null);
+    }
+
+    /**
+     * Parses a batch and, if ranges is not null, adds the position of each
+     * document's &lt;uploadSystem&gt; element in data as {offset, length};
+     * null entries when the batch is not UTF-8, as the parser only reports
+     * character offsets.
+     */
+    public static List<InvoiceUploadData.UploadSystem> parseBatch(byte[] data, int offset, int length,
+                                                                  List<int[]> ranges) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(data, offset, length));
+            toRootElement(reader);
+            Utf8Offsets offsets = ranges != null && isUtf8(reader.getEncoding()) ? new Utf8Offsets(data, offset, length) : null;
+            List<InvoiceUploadData.UploadSystem> documents = new ArrayList<>();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("uploadSystem".equals(reader.getLocalName())) {
+                    int start = offsets != null ? offsets.byteOffset(reader.getLocation().getCharacterOffset()) : -1;
+                    documents.add(readUploadSystem(reader));
+                    if (offsets != null) {
+                        int end = offsets.endOfTag(offsets.byteOffset(reader.getLocation().getCharacterOffset()));
+                        ranges.add(new int[] {start, end - start});
+                    } else if (ranges != null) {
+                        ranges.add(null);
+                    }
+                } else {
+                    skipElement(reader);
+                }
+            }
+            return documents;
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid invoice batch XML: " + e.getMessage(), e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static InvoiceUploadData.UploadSystem readDocument(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            toRootElement(reader);
+            return readUploadSystem(reader);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static void toRootElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                return;
+            }
+        }
+        throw new XMLStreamException("No root element");
+    }
+
+    // ──────────────────────────────── MODEL ────────────────────────────────
+    // Each reader starts on its START_ELEMENT and returns on the matching END_ELEMENT.
+
+    private static InvoiceUploadData.UploadSystem readUploadSystem(XMLStreamReader reader) throws XMLStreamException {
+        InvoiceUploadData.UploadSystem document = new InvoiceUploadData.UploadSystem();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "customer": document.customer = readCustomer(reader); break;
+                case "invoiceData": document.invoiceData = readInvoiceData(reader); break;
+                default: skipElement(reader);
+            }
+        }
+        return document;
+    }
+
+    private static InvoiceUploadData.Customer readCustomer(XMLStreamReader reader) throws XMLStreamException {
+        InvoiceUploadData.Customer customer = new InvoiceUploadData.Customer();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            setCustomerField(customer, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            // Unknown fields are read and dropped
+            setCustomerField(customer, reader.getLocalName(), readText(reader));
+        }
+        return customer;
+    }
+
+    private static void setCustomerField(InvoiceUploadData.Customer customer, String field, String value) {
+        switch (field) {
+            case "name": customer.name = value; break;
+            case "ssn": customer.ssn = value; break;
+            case "type": customer.type = value; break;
+            default:
+        }
+    }
+
+    private static InvoiceUploadData.InvoiceData readInvoiceData(XMLStreamReader reader) throws XMLStreamException {
+        InvoiceUploadData.InvoiceData invoiceData = new InvoiceUploadData.InvoiceData();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            setInvoiceField(invoiceData, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("item".equals(reader.getLocalName())) {
+                if (invoiceData.items == null) {
+                    invoiceData.items = new ArrayList<>();
+                }
+                invoiceData.items.add(readItem(reader));
+            } else {
+                setInvoiceField(invoiceData, reader.getLocalName(), readText(reader));
+            }
+        }
+        return invoiceData;
+    }
+
+    private static void setInvoiceField(InvoiceUploadData.InvoiceData invoiceData, String field, String value)
+            throws XMLStreamException {
+        switch (field) {
+            case "seri": invoiceData.seri = value; break;
+            case "number": invoiceData.number = value; break;
+            case "totalAmount": invoiceData.totalAmount = toDouble(value); break;
+            case "discount": invoiceData.discount = toDouble(value); break;
+            case "amountToPay": invoiceData.amountToPay = toDouble(value); break;
+            default:
+        }
+    }
+
+    private static InvoiceUploadData.Item readItem(XMLStreamReader reader) throws XMLStreamException {
+        InvoiceUploadData.Item item = new InvoiceUploadData.Item();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            setItemField(item, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            setItemField(item, reader.getLocalName(), readText(reader));
+        }
+        return item;
+    }
+
+    private static void setItemField(InvoiceUploadData.Item item, String field, String value) throws XMLStreamException {
+        switch (field) {
+            case "name": item.name = value; break;
+            case "quantity": item.quantity = toDouble(value); break;
+            case "unitPrice": item.unitPrice = toDouble(value); break;
+            case "lineTotal": item.lineTotal = toDouble(value); break;
+            default:
+        }
+    }
+
+    // ──────────────────────────────── VALUES ────────────────────────────────
+
+    /**
+     * Text content of a leaf element, comments skipped and CDATA included.
+     * An element with child elements reads as "", as it does through databind.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        String text = "";
+        StringBuilder joined = null;
+        boolean hasChildElements = false;
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (text.isEmpty()) {
+                        text = reader.getText();
+                    } else {
+                        // Parsers may split text into several events
+                        if (joined == null) joined = new StringBuilder(text);
+                        joined.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    hasChildElements = true;
+                    skipElement(reader);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (hasChildElements) return "";
+                    return joined != null ? joined.toString() : text;
+                default:
+                    // Comments and processing instructions
+            }
+        }
+    }
+
+    private static double toDouble(String text) throws XMLStreamException {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(trimmed);
+        } catch (NumberFormatException e) {
+            throw new XMLStreamException("Not a number: " + trimmed);
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static boolean isUtf8(String encoding) {
+        return encoding == null || "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding)
+            || "US-ASCII".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Turns the parser's character offsets into byte offsets of UTF-8 input
+     * by walking the bytes once; offsets must be asked for in order.
+     */
+    private static final class Utf8Offsets {
+        private final byte[] data;
+        private final int end;
+        private int bytePosition;
+        private int charPosition;
+
+        Utf8Offsets(byte[] data, int offset, int length) {
+            this.data = data;
+            this.end = offset + length;
+            this.bytePosition = offset;
+            // The parser does not count a byte order mark
+            if (length >= 3 && data[offset] == (byte) 0xEF && data[offset + 1] == (byte) 0xBB && data[offset + 2] == (byte) 0xBF) {
+                bytePosition += 3;
+            }
+        }
+
+        int byteOffset(int charOffset) {
+            while (charPosition < charOffset && bytePosition < end) {
+                int b = data[bytePosition] & 0xFF;
+                if (b < 0x80) {
+                    bytePosition++;
+                    charPosition++;
+                } else if (b >= 0xF0) {
+                    // Outside the BMP: two chars, a surrogate pair
+                    bytePosition += 4;
+                    charPosition += 2;
+                } else {
+                    bytePosition += b >= 0xE0 ? 3 : 2;
+                    charPosition++;
+                }
+            }
+            return Math.min(bytePosition, end);
+        }
+
+        /**
+         * Position just after the tag starting at the given byte offset.
+         */
+        int endOfTag(int tagStart) {
+            for (int i = tagStart; i < end; i++) {
+                if (data[i] == '>') return i + 1;
+            }
+            return end;
+        }
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader == null) return;
+        try {
+            reader.close();
+        } catch (XMLStreamException ignored) {
+            // Nothing left to release
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.ancienty.server.protocol;
+
+import com.ancienty.server.model.InvoiceCodecs;
+import com.ancienty.server.model.InvoiceUploadData;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static com.ancienty.server.protocol.XmlInvoiceParserTest.assertSameResult;
+import static com.ancienty.server.protocol.XmlInvoiceParserTest.fixture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Golden tests: JsonInvoiceParser must decode every document exactly like
+ * the reflective Gson it replaced, including its lenient coercions and
+ * which inputs fail.
+ */
+class JsonInvoiceParserTest {
+
+    static Stream<String> documents() {
+        Stream<String> edgeCases = Stream.of(
+            fixture("invoice.json"),
+            "",
+            "  ",
+            "null",
+            "{\"customer\":{\"name\":\"  Ali  \",\"ssn\":\" 1 \"},\"invoiceData\":{\"totalAmount\":\" 2.5 \"}}",
+            "{\"customer\":{\"name\":\"a\",\"ssn\":123,\"type\":true},\"invoiceData\":{\"seri\":\"A\",\"number\":7,"
+                + "\"totalAmount\":\"12.5\",\"discount\":null,\"items\":[null,{\"name\":\"x\",\"quantity\":\"2\"}]}}",
+            "{'customer':{name:'b'}, /*c*/ \"x\":[1,{}]}",
+            "{\"invoiceData\":{\"totalAmount\":\"abc\"}}",
+            "{} {}",
+            "[]",
+            "{\"customer\":\"x\"}",
+            "{\"invoiceData\":{\"items\":{}}}",
+            "{\"customer\":{\"name\":{}}}",
+            "{\"customer\":{\"name\":1.50e3,\"ssn\":-0,\"type\":12345678901234567890}}",
+            "{\"invoiceData\":{\"totalAmount\":NaN}}",
+            "{\"customer\":null,\"invoiceData\":{\"items\":null,\"discount\":5,\"discount\":null}}",
+            "{\"customer\":{\"name\":\"\\u00c7a\\n\\\"q\\\"\"}}",
+            "{\"a\":{\"b\":[{\"c\":null}]},\"customer\":{\"name\":\"z\"}}",
+            "{\"invoiceData\":{\"items\":[1]}}",
+            "{\"customer\":{\"name\":\"x\"}",
+            "{\"invoiceData\":{\"totalAmount\":true}}");
+        // Lines as the NDJSON batch endpoint receives them
+        return Stream.concat(edgeCases, fixture("uploads.ndjson").lines());
+    }
+
+    static Stream<String> batches() {
+        return Stream.of(fixture("batch.json"), "null", "[]", "[null,{}]", "[{},{}] x", "",
+            "[ {\"customer\":{\"name\":\"Çağ 😀\"}} ,\r\n{'invoiceData':{}} ]");
+    }
+
+    @ParameterizedTest
+    @MethodSource("documents")
+    void parsesStringLikeGson(String json) {
+        assertSameResult(() -> InvoiceCodecs.gson().fromJson(json, InvoiceUploadData.UploadSystem.class),
+            () -> JsonInvoiceParser.parse(json));
+    }
+
+    @ParameterizedTest
+    @MethodSource("documents")
+    void parsesBytesLikeGson(String json) {
+        byte[] data = (" " + json + " ").getBytes(StandardCharsets.UTF_8);
+        assertSameResult(() -> InvoiceCodecs.gson().fromJson(json, InvoiceUploadData.UploadSystem.class),
+            () -> JsonInvoiceParser.parse(data, 1, data.length - 2));
+    }
+
+    @ParameterizedTest
+    @MethodSource("documents")
+    void parsesStreamLikeGson(String json) {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        assertSameResult(() -> InvoiceCodecs.gson().fromJson(json, InvoiceUploadData.UploadSystem.class),
+            () -> JsonInvoiceParser.parse(new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+    }
+
+    @ParameterizedTest
+    @MethodSource("batches")
+    void parsesBatchLikeGson(String json) {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        assertSameResult(() -> {
+            InvoiceUploadData.UploadSystem[] batch = InvoiceCodecs.gson().fromJson(json, InvoiceUploadData.UploadSystem[].class);
+            return batch != null ? Arrays.asList(batch) : List.of();
+        }, () -> JsonInvoiceParser.parseBatch(data, 0, data.length));
+    }
+
+    @ParameterizedTest
+    @MethodSource("batches")
+    void reportsWhereEachBatchDocumentIs(String json) throws Exception {
+        byte[] data = (" " + json + " ").getBytes(StandardCharsets.UTF_8);
+        List<int[]> ranges = new ArrayList<>();
+        List<InvoiceUploadData.UploadSystem> documents;
+        try {
+            documents = JsonInvoiceParser.parseBatch(data, 1, data.length - 2, ranges);
+        } catch (IOException e) {
+            return;
+        }
+
+        assertEquals(documents.size(), ranges.size());
+        for (int i = 0; i < documents.size(); i++) {
+            int[] range = ranges.get(i);
+            if (documents.get(i) == null) {
+                assertNull(range);
+                continue;
+            }
+            int index = i;
+            assertSameResult(() -> documents.get(index), () -> JsonInvoiceParser.parse(data, range[0], range[1]));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.ancienty.server.protocol;
+
+import com.ancienty.server.model.InvoiceCodecs;
+import com.ancienty.server.model.InvoiceUploadData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Golden tests: XmlInvoiceParser must decode every document exactly like the
+ * databind reader it replaced (InvoiceCodecs.xmlDocumentReader()), including
+ * which inputs fail.
+ */
+class XmlInvoiceParserTest {
+
+    interface Decoder {
+        Object decode() throws Exception;
+    }
+
+    static Stream<String> documents() {
+        return Stream.of(
+            fixture("invoice.xml"),
+            "<uploadSystem><customer><name>  Ali  </name><ssn>123</ssn></customer><invoiceData><seri>A</seri><number/>"
+                + "<totalAmount> 12.5 </totalAmount><discount></discount><item><name>x</name><quantity>2</quantity></item>"
+                + "</invoiceData></uploadSystem>",
+            "<foo><customer name='Veli' ssn='5'/><invoiceData seri='B'><items><item><name>y</name></item></items></invoiceData></foo>",
+            "<uploadSystem><customer/><invoiceData></invoiceData></uploadSystem>",
+            "<uploadSystem><customer>text</customer></uploadSystem>",
+            "<uploadSystem><customer><name>a<!--c-->b<![CDATA[<c>]]></name><ssn>1</ssn></customer>"
+                + "<invoiceData><item/><item><name>z</name></item></invoiceData></uploadSystem>",
+            "<uploadSystem><customer><name>first</name><name>second</name></customer></uploadSystem>",
+            "<uploadSystem><customer><name>a</name></customer><customer><ssn>2</ssn></customer></uploadSystem>",
+            "<uploadSystem/>",
+            "<uploadSystem>\n  <customer>\n <name>\n  Ali\n </name>\n </customer>\n</uploadSystem>",
+            "<a:uploadSystem xmlns:a='urn:x'><a:customer><a:name>ns</a:name></a:customer></a:uploadSystem>",
+            "<uploadSystem><invoiceData><totalAmount>abc</totalAmount></invoiceData></uploadSystem>",
+            "<uploadSystem><invoiceData><item><quantity/></item></invoiceData></uploadSystem>",
+            "<uploadSystem><customer><name><b>x</b></name></customer></uploadSystem>",
+            "<uploadSystem><invoiceData><item>  </item></invoiceData></uploadSystem>",
+            "<uploadSystem><customer><name>   </name></customer></uploadSystem>",
+            "<uploadSystem><customer><name></name></customer></uploadSystem>",
+            "<?xml version='1.0' encoding='UTF-8'?><!-- c --><uploadSystem><customer><name>Çağrı &amp; Şükrü</name></customer>"
+                + "<extra><deep><x>1</x></deep></extra></uploadSystem>",
+            "<uploadSystem><invoiceData><seri>S</seri><item><name>a</name><unitPrice>1e3</unitPrice><lineTotal>-0.5</lineTotal></item>"
+                + "<item><name>b</name></item><totalAmount>1</totalAmount></invoiceData></uploadSystem>",
+            "<uploadSystem><invoiceData><totalAmount>NaN</totalAmount></invoiceData></uploadSystem>",
+            "",
+            "<broken>",
+            "<uploadSystem><customer></uploadSystem>");
+    }
+
+    static Stream<String> batches() {
+        return Stream.of(
+            fixture("batch.xml"),
+            "<uploadBatch/>",
+            "<uploadBatch><uploadSystem/><uploadSystem><customer><name>q</name></customer></uploadSystem></uploadBatch>");
+    }
+
+    @ParameterizedTest
+    @MethodSource("documents")
+    void parsesStringLikeDatabind(String xml) {
+        assertSameResult(() -> InvoiceCodecs.xmlDocumentReader().readValue(xml), () -> XmlInvoiceParser.parse(xml));
+    }
+
+    @ParameterizedTest
+    @MethodSource("documents")
+    void parsesBytesLikeDatabind(String xml) {
+        byte[] data = ("  " + xml).getBytes(StandardCharsets.UTF_8);
+        assertSameResult(() -> InvoiceCodecs.xmlDocumentReader().readValue(xml),
+            () -> XmlInvoiceParser.parse(data, 2, data.length - 2));
+    }
+
+    @ParameterizedTest
+    @MethodSource("documents")
+    void parsesStreamLikeDatabind(String xml) {
+        byte[] data = xml.getBytes(StandardCharsets.UTF_8);
+        assertSameResult(() -> InvoiceCodecs.xmlDocumentReader().readValue(xml),
+            () -> XmlInvoiceParser.parse(new ByteArrayInputStream(data)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("batches")
+    void parsesBatchLikeDatabind(String xml) {
+        byte[] data = xml.getBytes(StandardCharsets.UTF_8);
+        assertSameResult(() -> {
+            InvoiceUploadData.UploadBatch batch = InvoiceCodecs.xmlBatchReader().readValue(data);
+            return batch != null && batch.invoices != null ? batch.invoices : List.of();
+        }, () -> XmlInvoiceParser.parseBatch(data, 0, data.length));
+    }
+
+    static Stream<String> rangedBatches() {
+        return Stream.concat(batches(), Stream.of(
+            "\uFEFF<?xml version='1.0' encoding='UTF-8'?>\r\n<uploadBatch>\r\n  <uploadSystem><customer><name>Çağrı 😀</name>"
+                + "</customer></uploadSystem>\r\n<x/><uploadSystem >\r\n<customer name='Şule'/></uploadSystem >\r\n</uploadBatch>",
+            "<!-- é --><b><uploadSystem><customer><name><![CDATA[ğ<>]]></name></customer></uploadSystem></b>"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("rangedBatches")
+    void reportsWhereEachBatchDocumentIs(String xml) throws Exception {
+        byte[] data = ("  " + xml + "  ").getBytes(StandardCharsets.UTF_8);
+        List<int[]> ranges = new ArrayList<>();
+        List<InvoiceUploadData.UploadSystem> documents = XmlInvoiceParser.parseBatch(data, 2, data.length - 4, ranges);
+
+        assertEquals(documents.size(), ranges.size());
+        for (int i = 0; i < documents.size(); i++) {
+            int[] range = ranges.get(i);
+            String element = new String(data, range[0], range[1], StandardCharsets.UTF_8);
+            assertTrue(element.startsWith("<uploadSystem") && element.endsWith(">"), element);
+            int index = i;
+            assertSameResult(() -> documents.get(index), () -> XmlInvoiceParser.parse(data, range[0], range[1]));
+        }
+    }
+
+    @Test
+    void reportsNoRangesForOtherEncodings() throws Exception {
+        byte[] data = "<?xml version='1.0' encoding='ISO-8859-9'?><uploadBatch><uploadSystem/></uploadBatch>"
+            .getBytes(StandardCharsets.ISO_8859_1);
+        List<int[]> ranges = new ArrayList<>();
+        XmlInvoiceParser.parseBatch(data, 0, data.length, ranges);
+        assertEquals(Collections.singletonList(null), ranges);
+    }
+
+    /**
+     * The one deliberate difference: databind keeps only the last run of
+     * &lt;item&gt; elements when another element interrupts them.
+     */
+    @Test
+    void keepsEveryItemOfAnInterruptedRun() throws Exception {
+        String xml = "<uploadSystem><invoiceData><item><name>a</name></item><seri>S</seri>"
+            + "<item><name>b</name></item><item><name>c</name></item></invoiceData></uploadSystem>";
+
+        InvoiceUploadData.UploadSystem databind = InvoiceCodecs.xmlDocumentReader().readValue(xml);
+        InvoiceUploadData.UploadSystem streaming = XmlInvoiceParser.parse(xml);
+
+        assertEquals(List.of("b", "c"), databind.invoiceData.items.stream().map(item -> item.name).toList());
+        assertEquals(List.of("a", "b", "c"), streaming.invoiceData.items.stream().map(item -> item.name).toList());
+        assertEquals("S", streaming.invoiceData.seri);
+    }
+
+    static void assertSameResult(Decoder expected, Decoder actual) {
+        assertEquals(canonical(expected), canonical(actual));
+    }
+
+    /**
+     * Gson rendering of the decoded object, or "error" when decoding fails.
+     */
+    static String canonical(Decoder decoder) {
+        try {
+            return InvoiceCodecs.gson().toJson(decoder.decode());
+        } catch (Exception e) {
+            return "error";
+        }
+    }
+
+    static String fixture(String name) {
+        try (InputStream in = XmlInvoiceParserTest.class.getResourceAsStream("/golden/" + name)) {
+            if (in == null) throw new IllegalStateException("Missing fixture " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}